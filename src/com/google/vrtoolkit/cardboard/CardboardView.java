@@ -16,6 +16,7 @@
 package com.google.vrtoolkit.cardboard;
 
 import android.content.Context;
+import android.os.Build;
 import android.opengl.GLES20;
 import android.opengl.GLSurfaceView;
 import android.opengl.GLSurfaceView.Renderer;
@@ -24,6 +25,8 @@ import android.util.AttributeSet;
 import android.util.Log;
 import android.view.WindowManager;
 import com.google.vrtoolkit.cardboard.sensors.HeadTracker;
+import java.io.File;
+import java.util.ArrayList;
 import javax.microedition.khronos.egl.EGLConfig;
 import javax.microedition.khronos.opengles.GL10;
 
@@ -50,10 +53,37 @@ public class CardboardView extends GLSurfaceView
 	private HeadTracker mHeadTracker;
 	private HeadMountedDisplay mHmd;
 	private DistortionRenderer mDistortionRenderer;
+	private RenderPlanCache mRenderPlanCache;
+	private ProgramBinaryCache mProgramBinaryCache;
+	private volatile ScanlineRacer mScanlineRacer;
 	private CardboardDeviceParamsObserver mCardboardDeviceParamsObserver;
 	private boolean mVRMode = true;
 	private volatile boolean mDistortionCorrectionEnabled = true;
 	private volatile float mDistortionCorrectionScale = 1.0F;
+	private volatile float mDistortionMeshTolerance = 0.0F;
+	private volatile float mEyeBufferReferenceRadius = 0.0F;
+	private volatile boolean mMultiResolutionEnabled = false;
+	private volatile float mMultiResolutionCenterFraction = 0.5F;
+	private volatile float mMultiResolutionPeripheryScale = 0.5F;
+	private volatile boolean mHiddenAreaMaskEnabled = false;
+	private final ArrayList<QuadLayer> mQuadLayers = new ArrayList<QuadLayer>();
+	private volatile VideoLayer mVideoLayer;
+	private volatile int mDistortionMode = DistortionRenderer.DistortionMode.MESH;
+	private volatile boolean mGLStateValidationEnabled = false;
+	private volatile long mRenderTargetIdleTimeout = RenderTargetPool.DEFAULT_IDLE_TIMEOUT_MS;
+	private volatile boolean mDynamicResolutionEnabled = false;
+	private volatile float mDynamicResolutionMinScale = ResolutionGovernor.DEFAULT_MIN_SCALE;
+	private volatile float mDynamicResolutionMaxScale = ResolutionGovernor.DEFAULT_MAX_SCALE;
+	private volatile float mTargetFrameRate = ResolutionGovernor.DEFAULT_TARGET_FRAME_RATE;
+	private volatile ResolutionScaleListener mResolutionScaleListener;
+	private volatile FirstFrameListener mFirstFrameListener;
+	private volatile boolean mReprojectionEnabled = false;
+	private volatile boolean mHalfRateRenderingEnabled = false;
+	private volatile int mMaxQueuedFrames = 0;
+	private volatile boolean mFrontBufferRenderingEnabled = false;
+	private volatile int mEyeBufferColorFormat = DistortionRenderer.ColorFormat.RGB565;
+	private volatile int mEyeBufferSampleCount = 1;
+	private volatile int mEyeBufferDepthFormat = DistortionRenderer.DepthFormat.DEPTH16;
 	private float mZNear = 0.1F;
 	private float mZFar = 100.0F;
 
@@ -211,6 +241,509 @@ public class CardboardView extends GLSurfaceView
 		return mDistortionCorrectionScale;
 	}
 
+	public void setDynamicResolutionEnabled(boolean enabled)
+	{
+		mDynamicResolutionEnabled = enabled;
+
+		if (mRendererHelper != null)
+			mRendererHelper.setDynamicResolutionEnabled(enabled);
+	}
+
+	public boolean getDynamicResolutionEnabled()
+	{
+		return mDynamicResolutionEnabled;
+	}
+
+	public void setDynamicResolutionBounds(float minScale, float maxScale)
+	{
+		if ((minScale <= 0.0F) || (maxScale > 1.0F) || (minScale > maxScale)) {
+			throw new IllegalArgumentException("Invalid resolution scale bounds: " + minScale + ", " + maxScale);
+		}
+		mDynamicResolutionMinScale = minScale;
+		mDynamicResolutionMaxScale = maxScale;
+
+		if (mRendererHelper != null)
+			mRendererHelper.setDynamicResolutionBounds(minScale, maxScale);
+	}
+
+	public float getDynamicResolutionMinScale()
+	{
+		return mDynamicResolutionMinScale;
+	}
+
+	public float getDynamicResolutionMaxScale()
+	{
+		return mDynamicResolutionMaxScale;
+	}
+
+	public void setTargetFrameRate(float frameRate)
+	{
+		if (frameRate <= 0.0F) {
+			throw new IllegalArgumentException("Invalid target frame rate: " + frameRate);
+		}
+		mTargetFrameRate = frameRate;
+
+		if (mRendererHelper != null)
+			mRendererHelper.setTargetFrameRate(frameRate);
+	}
+
+	public float getTargetFrameRate()
+	{
+		return mTargetFrameRate;
+	}
+
+	public void setResolutionScaleListener(ResolutionScaleListener listener)
+	{
+		mResolutionScaleListener = listener;
+	}
+
+	/** Sets a listener timing the first frame drawn after each surface creation, for measuring cold start latency. */
+	public void setFirstFrameListener(FirstFrameListener listener)
+	{
+		mFirstFrameListener = listener;
+	}
+
+	public void setReprojectionEnabled(boolean enabled)
+	{
+		mReprojectionEnabled = enabled;
+
+		if (mRendererHelper != null)
+			mRendererHelper.setReprojectionEnabled(enabled);
+	}
+
+	public boolean getReprojectionEnabled()
+	{
+		return mReprojectionEnabled;
+	}
+
+	public void setHalfRateRenderingEnabled(boolean enabled)
+	{
+		mHalfRateRenderingEnabled = enabled;
+
+		if (mRendererHelper != null)
+			mRendererHelper.setHalfRateRenderingEnabled(enabled);
+	}
+
+	public boolean getHalfRateRenderingEnabled()
+	{
+		return mHalfRateRenderingEnabled;
+	}
+
+	/**
+	 * Limits how many frames the driver may queue ahead of the GPU, or 0 to leave it to the driver.
+	 * Before sampling the head pose of a frame, the view waits for the frame that many frames earlier to finish on the GPU, which bounds the latency between the pose and the display at the cost of some throughput.
+	 * Limiting the queue needs OpenGL ES 3.0 fence syncs, and has no effect otherwise.
+	 */
+	public void setMaxQueuedFrames(int frames)
+	{
+		if ((frames < 0) || (frames > FrameQueueLimiter.MAX_QUEUED_FRAMES)) {
+			throw new IllegalArgumentException("Invalid queued frame count: " + frames);
+		}
+		mMaxQueuedFrames = frames;
+
+		if (mRendererHelper != null)
+			mRendererHelper.setMaxQueuedFrames(frames);
+	}
+
+	public int getMaxQueuedFrames()
+	{
+		return mMaxQueuedFrames;
+	}
+
+	/** Returns the time the last frame waited for queued frames before sampling its head pose, in nanoseconds. */
+	public long getFrameQueueWaitTime()
+	{
+		return mRendererHelper != null ? mRendererHelper.mFrameQueueLimiter.getLastWaitTime() : 0L;
+	}
+
+	/**
+	 * Renders the distortion pass straight to the front buffer, racing the display scanout one half of the screen at a time.
+	 * The eye the display scans first is distorted while it scans the other half, and the other eye once the next refresh has started, each with a head pose sampled just before its draw.
+	 * Needs a surface that can switch to single buffering through EGL_KHR_mutable_render_buffer, and falls back to double buffering otherwise. Enable it before setRenderer so that a suitable EGL config is chosen.
+	 * Only applies to VR mode with distortion correction enabled, and needs API level 17.
+	 */
+	public void setFrontBufferRenderingEnabled(boolean enabled)
+	{
+		if ((enabled) && (Build.VERSION.SDK_INT < 17)) {
+			Log.w(TAG, "Front buffer rendering needs API level 17, rendering is double buffered.");
+			return;
+		}
+		if (enabled) {
+			if (mRendererHelper == null) {
+				setEGLConfigChooser(new ScanlineRacer.ConfigChooser());
+			}
+			if (mScanlineRacer == null) {
+				mScanlineRacer = new ScanlineRacer(((WindowManager)getContext().getSystemService("window")).getDefaultDisplay());
+			}
+		}
+		mFrontBufferRenderingEnabled = enabled;
+		if (mScanlineRacer != null) {
+			mScanlineRacer.setVsyncTracking(enabled);
+		}
+
+		if (mRendererHelper != null)
+			mRendererHelper.setFrontBufferRenderingEnabled(enabled);
+	}
+
+	public boolean getFrontBufferRenderingEnabled()
+	{
+		return mFrontBufferRenderingEnabled;
+	}
+
+	/** Returns how many halves of an eye finished on the GPU before the display started scanning them. */
+	public long getFrontBufferRacesWon(int eye)
+	{
+		return mScanlineRacer != null ? mScanlineRacer.getRacesWon(eye) : 0L;
+	}
+
+	/** Returns how many halves of an eye were still drawing when the display started scanning them. */
+	public long getFrontBufferRacesLost(int eye)
+	{
+		return mScanlineRacer != null ? mScanlineRacer.getRacesLost(eye) : 0L;
+	}
+
+	/** Returns how long before the display reached the last half of an eye it was submitted, in nanoseconds. */
+	public long getFrontBufferSubmitLead(int eye)
+	{
+		return mScanlineRacer != null ? mScanlineRacer.getSubmitLead(eye) : 0L;
+	}
+
+	/** Returns how long before the display reached the last won half of an eye the GPU finished it, in nanoseconds. */
+	public long getFrontBufferSlack(int eye)
+	{
+		return mScanlineRacer != null ? mScanlineRacer.getSlack(eye) : 0L;
+	}
+
+	public long getRenderedFrameCount()
+	{
+		return mRendererHelper != null ? mRendererHelper.mRenderedFrameCount : 0L;
+	}
+
+	public long getSynthesizedFrameCount()
+	{
+		return mRendererHelper != null ? mRendererHelper.mSynthesizedFrameCount : 0L;
+	}
+
+	public void setDistortionMeshTolerance(float tolerancePx)
+	{
+		mDistortionMeshTolerance = tolerancePx;
+
+		if (mRendererHelper != null)
+			mRendererHelper.setDistortionMeshTolerance(tolerancePx);
+	}
+
+	public float getDistortionMeshTolerance()
+	{
+		return mDistortionMeshTolerance;
+	}
+
+	public void setDistortionMode(int mode)
+	{
+		if ((mode != DistortionRenderer.DistortionMode.MESH) && (mode != DistortionRenderer.DistortionMode.LOOKUP_TEXTURE)) {
+			throw new IllegalArgumentException("Invalid distortion mode: " + mode);
+		}
+		mDistortionMode = mode;
+
+		if (mRendererHelper != null)
+			mRendererHelper.setDistortionMode(mode);
+	}
+
+	public int getDistortionMode()
+	{
+		return mDistortionMode;
+	}
+
+	public int getActiveDistortionMode()
+	{
+		return mDistortionRenderer != null ? mDistortionRenderer.getActiveDistortionMode() : DistortionRenderer.DistortionMode.MESH;
+	}
+
+	public void setEyeBufferColorFormat(int format)
+	{
+		if ((format != DistortionRenderer.ColorFormat.RGB565) && (format != DistortionRenderer.ColorFormat.RGBA8888) && (format != DistortionRenderer.ColorFormat.SRGB8_ALPHA8)) {
+			throw new IllegalArgumentException("Invalid color format: " + format);
+		}
+		mEyeBufferColorFormat = format;
+
+		if (mRendererHelper != null)
+			mRendererHelper.setEyeBufferColorFormat(format);
+	}
+
+	public int getEyeBufferColorFormat()
+	{
+		return mEyeBufferColorFormat;
+	}
+
+	public int getActiveEyeBufferColorFormat()
+	{
+		return mDistortionRenderer != null ? mDistortionRenderer.getActiveColorFormat() : DistortionRenderer.ColorFormat.RGB565;
+	}
+
+	/**
+	 * Sets the number of samples per pixel of the eye buffers, to antialias edges that the lenses magnify for far less than a larger eye buffer costs.
+	 * Multisampled eye buffers need OpenGL ES 3.0, and fall back to single sampled eye buffers otherwise.
+	 */
+	public void setEyeBufferSampleCount(int samples)
+	{
+		if (samples < 1) {
+			throw new IllegalArgumentException("Invalid sample count: " + samples);
+		}
+		mEyeBufferSampleCount = samples;
+
+		if (mRendererHelper != null)
+			mRendererHelper.setEyeBufferSampleCount(samples);
+	}
+
+	public int getEyeBufferSampleCount()
+	{
+		return mEyeBufferSampleCount;
+	}
+
+	public int getActiveEyeBufferSampleCount()
+	{
+		return mDistortionRenderer != null ? mDistortionRenderer.getActiveSampleCount() : 1;
+	}
+
+	public void setEyeBufferDepthFormat(int format)
+	{
+		if ((format != DistortionRenderer.DepthFormat.NONE) && (format != DistortionRenderer.DepthFormat.DEPTH16) && (format != DistortionRenderer.DepthFormat.DEPTH24) && (format != DistortionRenderer.DepthFormat.DEPTH24_STENCIL8)) {
+			throw new IllegalArgumentException("Invalid depth format: " + format);
+		}
+		mEyeBufferDepthFormat = format;
+
+		if (mRendererHelper != null)
+			mRendererHelper.setEyeBufferDepthFormat(format);
+	}
+
+	public int getEyeBufferDepthFormat()
+	{
+		return mEyeBufferDepthFormat;
+	}
+
+	public int getActiveEyeBufferDepthFormat()
+	{
+		return mDistortionRenderer != null ? mDistortionRenderer.getActiveDepthFormat() : DistortionRenderer.DepthFormat.DEPTH16;
+	}
+
+	public void setGLStateValidationEnabled(boolean enabled)
+	{
+		mGLStateValidationEnabled = enabled;
+
+		if (mRendererHelper != null)
+			mRendererHelper.setGLStateValidationEnabled(enabled);
+	}
+
+	public boolean getGLStateValidationEnabled()
+	{
+		return mGLStateValidationEnabled;
+	}
+
+	/**
+	 * Makes the distortion pass read the framebuffer binding and the depth and color buffer sizes from the driver again on the next frame.
+	 * Call it after binding a different framebuffer for the frames to be distorted into; capabilities are read on every frame and need no call. The state is also read again after each surface creation.
+	 */
+	public void invalidateGLState()
+	{
+		if (mRendererHelper != null)
+			mRendererHelper.invalidateGLState();
+	}
+
+	public void setRenderTargetIdleTimeout(long idleTimeoutMs)
+	{
+		mRenderTargetIdleTimeout = idleTimeoutMs;
+
+		if (mDistortionRenderer != null)
+			mDistortionRenderer.setRenderTargetIdleTimeout(idleTimeoutMs);
+	}
+
+	public long getRenderTargetIdleTimeout()
+	{
+		return mRenderTargetIdleTimeout;
+	}
+
+	public long getRenderTargetMemoryFootprint()
+	{
+		return mDistortionRenderer != null ? mDistortionRenderer.getRenderTargetMemoryFootprint() : 0L;
+	}
+
+	public GLCommandCounter getGLCommandCounter()
+	{
+		return mDistortionRenderer != null ? mDistortionRenderer.getGLCommandCounter() : null;
+	}
+
+	public void setEyeBufferReferenceRadius(float radiusM)
+	{
+		if (radiusM < 0.0F) {
+			throw new IllegalArgumentException("Invalid reference radius: " + radiusM);
+		}
+		mEyeBufferReferenceRadius = radiusM;
+
+		if (mRendererHelper != null)
+			mRendererHelper.setEyeBufferReferenceRadius(radiusM);
+	}
+
+	public float getEyeBufferReferenceRadius()
+	{
+		return mEyeBufferReferenceRadius;
+	}
+
+	public int getEyeBufferPixelCount()
+	{
+		return mDistortionRenderer != null ? mDistortionRenderer.getEyeBufferPixelCount() : 0;
+	}
+
+	public int estimateEyeBufferPixelCount(float radiusM)
+	{
+		if (radiusM < 0.0F) {
+			throw new IllegalArgumentException("Invalid reference radius: " + radiusM);
+		}
+		RenderPlan.Options options = new RenderPlan.Options();
+		options.referenceRadiusM = radiusM;
+		return RenderPlan.computeTexturePixelCount(mHmd, options);
+	}
+
+	public void setMultiResolutionEnabled(boolean enabled)
+	{
+		mMultiResolutionEnabled = enabled;
+
+		if (mRendererHelper != null)
+			mRendererHelper.setMultiResolution(enabled, mMultiResolutionCenterFraction, mMultiResolutionPeripheryScale);
+	}
+
+	public boolean getMultiResolutionEnabled()
+	{
+		return mMultiResolutionEnabled;
+	}
+
+	public void setMultiResolutionLayout(float centerFraction, float peripheryScale)
+	{
+		if ((peripheryScale <= 0.0F) || (peripheryScale > 1.0F) || (centerFraction <= 0.0F) || (centerFraction > 1.0F)) {
+			throw new IllegalArgumentException("Invalid multi-resolution layout: " + centerFraction + ", " + peripheryScale);
+		}
+		mMultiResolutionCenterFraction = centerFraction;
+		mMultiResolutionPeripheryScale = peripheryScale;
+
+		if (mRendererHelper != null)
+			mRendererHelper.setMultiResolution(mMultiResolutionEnabled, centerFraction, peripheryScale);
+	}
+
+	public float getMultiResolutionCenterFraction()
+	{
+		return mMultiResolutionCenterFraction;
+	}
+
+	public float getMultiResolutionPeripheryScale()
+	{
+		return mMultiResolutionPeripheryScale;
+	}
+
+	public boolean isMultiResolutionActive()
+	{
+		return mDistortionRenderer != null ? mDistortionRenderer.isMultiResolutionActive() : false;
+	}
+
+	/**
+	 * Enables masking the parts of each eye buffer that are not visible after distortion correction.
+	 *
+	 * When enabled, each eye viewport is cleared and its hidden area is written into depth at the near plane before onDrawEye is called,
+	 * so the application must not clear depth while drawing the eye and should draw with depth testing and the default GL_LESS function.
+	 * Requires a StereoRenderer and an eye buffer depth format other than NONE.
+	 */
+	public void setHiddenAreaMaskEnabled(boolean enabled)
+	{
+		mHiddenAreaMaskEnabled = enabled;
+
+		if (mRendererHelper != null)
+			mRendererHelper.setHiddenAreaMaskEnabled(enabled);
+	}
+
+	public boolean getHiddenAreaMaskEnabled()
+	{
+		return mHiddenAreaMaskEnabled;
+	}
+
+	/**
+	 * Returns the hidden area of an eye as a triangle strip of x, y pairs in tangent of angle units, or null before the first frame.
+	 * Drawn at z = -1 in eye space with the eye perspective, it covers the pixels of the eye buffer that cannot be seen through the lens.
+	 */
+	public float[] getHiddenAreaMesh(int eye)
+	{
+		return mDistortionRenderer != null ? mDistortionRenderer.getHiddenAreaMesh(eye) : null;
+	}
+
+	public float getHiddenAreaFraction()
+	{
+		return mDistortionRenderer != null ? mDistortionRenderer.getHiddenAreaFraction() : 0.0F;
+	}
+
+	/**
+	 * Adds a textured quad that the distortion pass samples directly through the lens warp, at display resolution.
+	 * Layers are composited over the eye buffers in the order they were added, and only while distortion correction uses the mesh mode.
+	 */
+	public void addQuadLayer(QuadLayer layer)
+	{
+		if (layer == null) {
+			throw new IllegalArgumentException("Quad layer must not be null");
+		}
+		synchronized (mQuadLayers) {
+			if (mQuadLayers.contains(layer)) {
+				return;
+			}
+			if (mQuadLayers.size() >= DistortionRenderer.MAX_QUAD_LAYERS) {
+				throw new IllegalArgumentException("Too many quad layers, the maximum is " + DistortionRenderer.MAX_QUAD_LAYERS);
+			}
+			mQuadLayers.add(layer);
+		}
+
+		if (mRendererHelper != null)
+			mRendererHelper.addQuadLayer(layer);
+	}
+
+	public void removeQuadLayer(QuadLayer layer)
+	{
+		synchronized (mQuadLayers) {
+			if (!mQuadLayers.remove(layer)) {
+				return;
+			}
+		}
+
+		if (mRendererHelper != null)
+			mRendererHelper.removeQuadLayer(layer);
+	}
+
+	/**
+	 * Sets a 360 degree video that the distortion pass samples directly from its external texture with the latest head pose, or null to remove it.
+	 * Quad layers are composited over the video. Unless the layer keeps an eye buffer overlay, a StereoRenderer still gets onNewFrame and onFinishFrame but no onDrawEye calls while the video is shown, so the video texture should be updated in onNewFrame.
+	 * A Renderer still renders the eye buffers every frame, but they are only shown, over the video, when the layer keeps an eye buffer overlay. The video is only shown while distortion correction uses the mesh mode.
+	 */
+	public void setVideoLayer(VideoLayer layer)
+	{
+		mVideoLayer = layer;
+
+		if (mRendererHelper != null)
+			mRendererHelper.setVideoLayer(layer);
+	}
+
+	public VideoLayer getVideoLayer()
+	{
+		return mVideoLayer;
+	}
+
+	public int getDistortionMeshVertexCount()
+	{
+		return mDistortionRenderer != null ? mDistortionRenderer.getMeshVertexCount() : 0;
+	}
+
+	public float getDistortionMeshMaxError()
+	{
+		return mDistortionRenderer != null ? mDistortionRenderer.getMeshMaxError() : 0.0F;
+	}
+
+	public float getDistortionMeshCulledFraction()
+	{
+		return mDistortionRenderer != null ? mDistortionRenderer.getMeshCulledFraction() : 0.0F;
+	}
+
 	public void onResume()
 	{
 		if (mRendererHelper == null) {
@@ -261,6 +794,8 @@ public class CardboardView extends GLSurfaceView
 
 		mHeadTracker = new HeadTracker(context);
 		mHmd = new HeadMountedDisplay(windowManager.getDefaultDisplay());
+		mRenderPlanCache = new RenderPlanCache(new File(context.getCacheDir(), "cardboard"));
+		mProgramBinaryCache = new ProgramBinaryCache(new File(context.getCacheDir(), "cardboard"));
 	}
 
 	private class StereoRendererHelper
@@ -268,6 +803,8 @@ public class CardboardView extends GLSurfaceView
 	{
 		private final CardboardView.StereoRenderer mStereoRenderer;
 		private boolean mVRMode;
+		private DistortionRenderer mHiddenAreaRenderer;
+		private boolean mEyesSkipped;
 
 		public StereoRendererHelper(CardboardView.StereoRenderer stereoRenderer)
 		{
@@ -284,22 +821,56 @@ public class CardboardView extends GLSurfaceView
 			});
 		}
 
+		/** Sets the renderer masking the hidden area of each eye before it is drawn, or null to draw eyes unmasked. */
+		public void setHiddenAreaRenderer(DistortionRenderer renderer)
+		{
+			mHiddenAreaRenderer = renderer;
+		}
+
+		/** Skips the onDrawEye calls of the following frames while still starting each frame with onNewFrame. */
+		public void setEyesSkipped(boolean skipped)
+		{
+			mEyesSkipped = skipped;
+		}
+
 		public void onDrawFrame(HeadTransform head, EyeParams leftEye, EyeParams rightEye)
 		{
 			mStereoRenderer.onNewFrame(head);
 			GLES20.glEnable(3089);
 
-			leftEye.getViewport().setGLViewport();
-			leftEye.getViewport().setGLScissor();
-			mStereoRenderer.onDrawEye(leftEye.getTransform());
+			drawEye(leftEye);
 
 			if (rightEye == null) {
 				return;
 			}
 
-			rightEye.getViewport().setGLViewport();
-			rightEye.getViewport().setGLScissor();
-			mStereoRenderer.onDrawEye(rightEye.getTransform());
+			drawEye(rightEye);
+		}
+
+		public void onDrawFrame(HeadTransform head, EyeParams[] leftRegions, int leftRegionCount, EyeParams[] rightRegions, int rightRegionCount)
+		{
+			mStereoRenderer.onNewFrame(head);
+			GLES20.glEnable(3089);
+
+			for (int i = 0; i < leftRegionCount; i++) {
+				drawEye(leftRegions[i]);
+			}
+			for (int i = 0; i < rightRegionCount; i++) {
+				drawEye(rightRegions[i]);
+			}
+		}
+
+		private void drawEye(EyeParams eye)
+		{
+			if (mEyesSkipped) {
+				return;
+			}
+			eye.getViewport().setGLViewport();
+			eye.getViewport().setGLScissor();
+			if (mHiddenAreaRenderer != null) {
+				mHiddenAreaRenderer.drawHiddenAreaMask(eye);
+			}
+			mStereoRenderer.onDrawEye(eye.getTransform());
 		}
 
 		public void onFinishFrame(Viewport viewport)
@@ -338,12 +909,36 @@ public class CardboardView extends GLSurfaceView
 		private final EyeParams mRightEye;
 		private final float[] mLeftEyeTranslate;
 		private final float[] mRightEyeTranslate;
+		private final float[] mRenderedHeadView;
+		private final EyeParams[] mLeftRegions;
+		private final EyeParams[] mRightRegions;
+		private final int[] mLeftRegionViewports;
+		private final int[] mRightRegionViewports;
+		private int mLeftRegionCount;
+		private int mRightRegionCount;
+		private final float[] mLatestHeadView;
 		private final CardboardView.Renderer mRenderer;
 		private boolean mShuttingDown;
+		private long mSurfaceCreatedNanos;
+		private long mSurfaceProgramSetupNanos;
+		private boolean mFirstFrameDrawn;
 		private HeadMountedDisplay mHmd;
 		private boolean mVRMode;
 		private boolean mDistortionCorrectionEnabled;
 		private float mDistortionCorrectionScale;
+		private final ResolutionGovernor mResolutionGovernor;
+		private boolean mDynamicResolutionEnabled;
+		private float mTargetFrameRate;
+		private boolean mReprojectionEnabled;
+		private boolean mHalfRateRenderingEnabled;
+		private boolean mFrontBufferRenderingEnabled;
+		private boolean mMultiResolutionEnabled;
+		private boolean mFrameInvalidated;
+		private boolean mLastFrameRendered;
+		private float mRenderedScale;
+		private volatile long mRenderedFrameCount;
+		private final FrameQueueLimiter mFrameQueueLimiter;
+		private volatile long mSynthesizedFrameCount;
 		private float mZNear;
 		private float mZFar;
 		private boolean mProjectionChanged;
@@ -357,19 +952,61 @@ public class CardboardView extends GLSurfaceView
 			mMonocular = new EyeParams(0);
 			mLeftEye = new EyeParams(1);
 			mRightEye = new EyeParams(2);
-			updateFieldOfView(mLeftEye.getFov(), mRightEye.getFov());
+			RenderPlan.updateFieldOfView(mHmd, mLeftEye.getFov(), mRightEye.getFov());
 			mDistortionRenderer = new DistortionRenderer();
+			mDistortionRenderer.setRenderPlanCache(mRenderPlanCache);
+			mDistortionRenderer.setProgramBinaryCache(mProgramBinaryCache);
+			mDistortionRenderer.setMeshTolerance(CardboardView.this.mDistortionMeshTolerance);
+			mDistortionRenderer.setEyeBufferReferenceRadius(CardboardView.this.mEyeBufferReferenceRadius);
+			mDistortionRenderer.setDistortionMode(CardboardView.this.mDistortionMode);
+			mDistortionRenderer.setGLStateValidationEnabled(CardboardView.this.mGLStateValidationEnabled);
+			mDistortionRenderer.setRenderTargetIdleTimeout(CardboardView.this.mRenderTargetIdleTimeout);
+			mDistortionRenderer.setColorFormat(CardboardView.this.mEyeBufferColorFormat);
+			mDistortionRenderer.setSampleCount(CardboardView.this.mEyeBufferSampleCount);
+			mDistortionRenderer.setDepthFormat(CardboardView.this.mEyeBufferDepthFormat);
+			mDistortionRenderer.setHiddenAreaMaskEnabled(CardboardView.this.mHiddenAreaMaskEnabled);
+			synchronized (CardboardView.this.mQuadLayers) {
+				for (QuadLayer layer : CardboardView.this.mQuadLayers) {
+					mDistortionRenderer.addQuadLayer(layer);
+				}
+			}
+			mDistortionRenderer.setVideoLayer(CardboardView.this.mVideoLayer);
 
 			mLeftEyeTranslate = new float[16];
 			mRightEyeTranslate = new float[16];
+			mRenderedHeadView = new float[16];
+			mLeftRegions = new EyeParams[EyeRegionLayout.REGION_COUNT];
+			mRightRegions = new EyeParams[EyeRegionLayout.REGION_COUNT];
+			for (int i = 0; i < EyeRegionLayout.REGION_COUNT; i++) {
+				mLeftRegions[i] = new EyeParams(EyeParams.Eye.LEFT);
+				mRightRegions[i] = new EyeParams(EyeParams.Eye.RIGHT);
+			}
+			mLeftRegionViewports = new int[EyeRegionLayout.REGION_COUNT * 4];
+			mRightRegionViewports = new int[EyeRegionLayout.REGION_COUNT * 4];
+			mLatestHeadView = new float[16];
 
 			mVRMode = CardboardView.this.mVRMode;
 			mDistortionCorrectionEnabled = CardboardView.this.mDistortionCorrectionEnabled;
 			mDistortionCorrectionScale = CardboardView.this.mDistortionCorrectionScale;
+			mResolutionGovernor = new ResolutionGovernor();
+			mResolutionGovernor.setBounds(CardboardView.this.mDynamicResolutionMinScale, CardboardView.this.mDynamicResolutionMaxScale);
+			mResolutionGovernor.reset(mDistortionCorrectionScale);
+			mDynamicResolutionEnabled = CardboardView.this.mDynamicResolutionEnabled;
+			mDistortionRenderer.setResolutionScale(mDynamicResolutionEnabled ? mResolutionGovernor.getScale() : mDistortionCorrectionScale);
 			mZNear = CardboardView.this.mZNear;
 			mZFar = CardboardView.this.mZFar;
+			mTargetFrameRate = CardboardView.this.mTargetFrameRate;
+			mReprojectionEnabled = CardboardView.this.mReprojectionEnabled;
+			mHalfRateRenderingEnabled = CardboardView.this.mHalfRateRenderingEnabled;
+			mFrontBufferRenderingEnabled = CardboardView.this.mFrontBufferRenderingEnabled;
+			mFrameQueueLimiter = new FrameQueueLimiter();
+			mFrameQueueLimiter.setMaxQueuedFrames(CardboardView.this.mMaxQueuedFrames);
+			mMultiResolutionEnabled = CardboardView.this.mMultiResolutionEnabled;
+			updateFramePacing();
+			updateMultiResolution(CardboardView.this.mMultiResolutionCenterFraction, CardboardView.this.mMultiResolutionPeripheryScale);
 
 			mProjectionChanged = true;
+			mFrameInvalidated = true;
 		}
 
 		public void shutdown() {
@@ -378,6 +1015,8 @@ public class CardboardView extends GLSurfaceView
 				public void run() {
 					synchronized (this) {
 						mShuttingDown = true;
+						mDistortionRenderer.shutdown();
+						mResolutionGovernor.release();
 						mRenderer.onRendererShutdown();
 						notifyAll();
 					}
@@ -453,7 +1092,225 @@ public class CardboardView extends GLSurfaceView
 			{
 				public void run() {
 					mDistortionCorrectionScale = scale;
-					mDistortionRenderer.setResolutionScale(scale);
+					if (!mDynamicResolutionEnabled) {
+						mDistortionRenderer.setResolutionScale(scale);
+					}
+				}
+			});
+		}
+
+		public void setDynamicResolutionEnabled(final boolean enabled) {
+			queueEvent(new Runnable()
+			{
+				public void run() {
+					if (mDynamicResolutionEnabled == enabled) {
+						return;
+					}
+
+					mDynamicResolutionEnabled = enabled;
+					mResolutionGovernor.reset(mDistortionCorrectionScale);
+					mDistortionRenderer.setResolutionScale(enabled ? mResolutionGovernor.getScale() : mDistortionCorrectionScale);
+				}
+			});
+		}
+
+		public void setDynamicResolutionBounds(final float minScale, final float maxScale) {
+			queueEvent(new Runnable()
+			{
+				public void run() {
+					mResolutionGovernor.setBounds(minScale, maxScale);
+					if (mDynamicResolutionEnabled) {
+						mDistortionRenderer.setResolutionScale(mResolutionGovernor.getScale());
+					}
+				}
+			});
+		}
+
+		public void setTargetFrameRate(final float frameRate) {
+			queueEvent(new Runnable()
+			{
+				public void run() {
+					mTargetFrameRate = frameRate;
+					updateFramePacing();
+				}
+			});
+		}
+
+		public void setDistortionMeshTolerance(final float tolerancePx) {
+			queueEvent(new Runnable()
+			{
+				public void run() {
+					mDistortionRenderer.setMeshTolerance(tolerancePx);
+					mProjectionChanged = true;
+				}
+			});
+		}
+
+		public void setEyeBufferReferenceRadius(final float radiusM) {
+			queueEvent(new Runnable()
+			{
+				public void run() {
+					mDistortionRenderer.setEyeBufferReferenceRadius(radiusM);
+					mProjectionChanged = true;
+				}
+			});
+		}
+
+		public void addQuadLayer(final QuadLayer layer) {
+			queueEvent(new Runnable()
+			{
+				public void run() {
+					mDistortionRenderer.addQuadLayer(layer);
+				}
+			});
+		}
+
+		public void removeQuadLayer(final QuadLayer layer) {
+			queueEvent(new Runnable()
+			{
+				public void run() {
+					mDistortionRenderer.removeQuadLayer(layer);
+				}
+			});
+		}
+
+		public void setVideoLayer(final VideoLayer layer) {
+			queueEvent(new Runnable()
+			{
+				public void run() {
+					mDistortionRenderer.setVideoLayer(layer);
+				}
+			});
+		}
+
+		public void setHiddenAreaMaskEnabled(final boolean enabled) {
+			queueEvent(new Runnable()
+			{
+				public void run() {
+					mDistortionRenderer.setHiddenAreaMaskEnabled(enabled);
+				}
+			});
+		}
+
+		public void setDistortionMode(final int mode) {
+			queueEvent(new Runnable()
+			{
+				public void run() {
+					mDistortionRenderer.setDistortionMode(mode);
+					mProjectionChanged = true;
+				}
+			});
+		}
+
+		public void setEyeBufferColorFormat(final int format) {
+			queueEvent(new Runnable()
+			{
+				public void run() {
+					mDistortionRenderer.setColorFormat(format);
+					mFrameInvalidated = true;
+				}
+			});
+		}
+
+		public void setEyeBufferSampleCount(final int samples) {
+			queueEvent(new Runnable()
+			{
+				public void run() {
+					mDistortionRenderer.setSampleCount(samples);
+					mFrameInvalidated = true;
+				}
+			});
+		}
+
+		public void setEyeBufferDepthFormat(final int format) {
+			queueEvent(new Runnable()
+			{
+				public void run() {
+					mDistortionRenderer.setDepthFormat(format);
+					mFrameInvalidated = true;
+				}
+			});
+		}
+
+		public void setGLStateValidationEnabled(final boolean enabled) {
+			queueEvent(new Runnable()
+			{
+				public void run() {
+					mDistortionRenderer.setGLStateValidationEnabled(enabled);
+				}
+			});
+		}
+
+		public void setReprojectionEnabled(final boolean enabled) {
+			queueEvent(new Runnable()
+			{
+				public void run() {
+					mReprojectionEnabled = enabled;
+					updateFramePacing();
+				}
+			});
+		}
+
+		public void setHalfRateRenderingEnabled(final boolean enabled) {
+			queueEvent(new Runnable()
+			{
+				public void run() {
+					mHalfRateRenderingEnabled = enabled;
+					updateFramePacing();
+				}
+			});
+		}
+
+		public void setFrontBufferRenderingEnabled(final boolean enabled) {
+			queueEvent(new Runnable()
+			{
+				public void run() {
+					mFrontBufferRenderingEnabled = enabled;
+					updateFramePacing();
+				}
+			});
+		}
+
+		public void setMaxQueuedFrames(final int frames) {
+			queueEvent(new Runnable()
+			{
+				public void run() {
+					mFrameQueueLimiter.setMaxQueuedFrames(frames);
+				}
+			});
+		}
+
+		public void setMultiResolution(final boolean enabled, final float centerFraction, final float peripheryScale) {
+			queueEvent(new Runnable()
+			{
+				public void run() {
+					mMultiResolutionEnabled = enabled;
+					updateMultiResolution(centerFraction, peripheryScale);
+					mProjectionChanged = true;
+				}
+			});
+		}
+
+		private void updateMultiResolution(float centerFraction, float peripheryScale) {
+			boolean enabled = (mMultiResolutionEnabled) && ((mRenderer instanceof CardboardView.StereoRendererHelper));
+			mDistortionRenderer.setMultiResolution(centerFraction, enabled ? peripheryScale : 0.0F);
+		}
+
+		private void updateFramePacing() {
+			boolean reprojection = (mReprojectionEnabled) || (mHalfRateRenderingEnabled) || (mFrontBufferRenderingEnabled);
+			if ((mMultiResolutionEnabled) && (mDistortionRenderer.getReprojectionEnabled() != reprojection)) {
+				mProjectionChanged = true;
+			}
+			mDistortionRenderer.setReprojectionEnabled(reprojection);
+
+			mResolutionGovernor.setTargetFrameRate(mHalfRateRenderingEnabled ? mTargetFrameRate / 2.0F : mTargetFrameRate);
+		}
+
+		public void invalidateGLState() {
+			queueEvent(new Runnable()
+			{
+				public void run() {
+					mDistortionRenderer.invalidateGLState();
 				}
 			});
 		}
@@ -488,6 +1345,9 @@ public class CardboardView extends GLSurfaceView
 			ScreenParams screen = mHmd.getScreen();
 			CardboardDeviceParams cdp = mHmd.getCardboard();
 
+			ScanlineRacer racer = mScanlineRacer;
+			boolean raceScanlines = (racer != null) && (racer.update((mFrontBufferRenderingEnabled) && (mVRMode) && (mDistortionCorrectionEnabled)));
+			mFrameQueueLimiter.waitForQueuedFrames();
 			mHeadTracker.getLastHeadView(mHeadTransform.getHeadView(), 0);
 
 			float halfInterpupillaryDistance = cdp.getInterpupillaryDistance() * 0.5F;
@@ -520,7 +1380,6 @@ public class CardboardView extends GLSurfaceView
 					Matrix.perspectiveM(mMonocular.getTransform().getPerspective(), 0, cdp.getFovY(), aspectRatio, mZNear, mZFar);
 				}
 				else if (mDistortionCorrectionEnabled) {
-					updateFieldOfView(mLeftEye.getFov(), mRightEye.getFov());
 					mDistortionRenderer.onProjectionChanged(mHmd, mLeftEye, mRightEye, mZNear, mZFar);
 				}
 				else
@@ -558,37 +1417,108 @@ public class CardboardView extends GLSurfaceView
 				}
 
 				mProjectionChanged = false;
+				mFrameInvalidated = true;
 			}
 
 			if (mVRMode) {
 				if (mDistortionCorrectionEnabled) {
-					mDistortionRenderer.beforeDrawFrame();
-
-					if (mDistortionCorrectionScale == 1.0F) {
-						mRenderer.onDrawFrame(mHeadTransform, mLeftEye, mRightEye);
+					if (mDistortionRenderer.swapPendingProjection()) {
+						mFrameInvalidated = true;
 					}
-					else {
-						int leftX = mLeftEye.getViewport().x;
-						int leftY = mLeftEye.getViewport().y;
-						int leftWidth = mLeftEye.getViewport().width;
-						int leftHeight = mLeftEye.getViewport().height;
-						int rightX = mRightEye.getViewport().x;
-						int rightY = mRightEye.getViewport().y;
-						int rightWidth = mRightEye.getViewport().width;
-						int rightHeight = mRightEye.getViewport().height;
+					float scale = mDynamicResolutionEnabled ? mResolutionGovernor.getScale() : mDistortionCorrectionScale;
 
-						mLeftEye.getViewport().setViewport((int)(leftX * mDistortionCorrectionScale), (int)(leftY * mDistortionCorrectionScale), (int)(leftWidth * mDistortionCorrectionScale), (int)(leftHeight * mDistortionCorrectionScale));
+					boolean skipEyes = (mDistortionRenderer.isVideoLayerReplacingEyeBuffers()) && ((mRenderer instanceof CardboardView.StereoRendererHelper));
+					boolean synthesize = (mHalfRateRenderingEnabled) && (mLastFrameRendered) && (!mFrameInvalidated) && (scale == mRenderedScale) && (mDistortionRenderer.getActiveDistortionMode() == DistortionRenderer.DistortionMode.MESH) && (!skipEyes);
 
-						mRightEye.getViewport().setViewport((int)(rightX * mDistortionCorrectionScale), (int)(rightY * mDistortionCorrectionScale), (int)(rightWidth * mDistortionCorrectionScale), (int)(rightHeight * mDistortionCorrectionScale));
+					if (synthesize) {
+						mLastFrameRendered = false;
+						mSynthesizedFrameCount += 1L;
+					}
+					else {
+						if (mDynamicResolutionEnabled) {
+							mResolutionGovernor.beginFrame();
+						}
+						mDistortionRenderer.beforeDrawFrame();
+						System.arraycopy(mHeadTransform.getHeadView(), 0, mRenderedHeadView, 0, mRenderedHeadView.length);
+
+						boolean maskHiddenArea = (mDistortionRenderer.isHiddenAreaMaskActive()) && ((mRenderer instanceof CardboardView.StereoRendererHelper));
+						if (maskHiddenArea) {
+							((CardboardView.StereoRendererHelper)mRenderer).setHiddenAreaRenderer(mDistortionRenderer);
+						}
+						if (skipEyes) {
+							((CardboardView.StereoRendererHelper)mRenderer).setEyesSkipped(true);
+						}
+
+						if (mFrameInvalidated) {
+							mLeftRegionCount = getEyeRegions(EyeParams.Eye.LEFT, mLeftRegions, mLeftRegionViewports);
+							mRightRegionCount = getEyeRegions(EyeParams.Eye.RIGHT, mRightRegions, mRightRegionViewports);
+						}
+
+						if ((mLeftRegionCount > 0) && ((mRenderer instanceof CardboardView.StereoRendererHelper))) {
+							prepareEyeRegions(mLeftEye, mLeftRegions, mLeftRegionViewports, mLeftRegionCount, scale);
+							prepareEyeRegions(mRightEye, mRightRegions, mRightRegionViewports, mRightRegionCount, scale);
+							((CardboardView.StereoRendererHelper)mRenderer).onDrawFrame(mHeadTransform, mLeftRegions, mLeftRegionCount, mRightRegions, mRightRegionCount);
+						}
+						else if (scale == 1.0F) {
+							mRenderer.onDrawFrame(mHeadTransform, mLeftEye, mRightEye);
+						}
+						else {
+							int leftX = mLeftEye.getViewport().x;
+							int leftY = mLeftEye.getViewport().y;
+							int leftWidth = mLeftEye.getViewport().width;
+							int leftHeight = mLeftEye.getViewport().height;
+							int rightX = mRightEye.getViewport().x;
+							int rightY = mRightEye.getViewport().y;
+							int rightWidth = mRightEye.getViewport().width;
+							int rightHeight = mRightEye.getViewport().height;
+
+							mLeftEye.getViewport().setViewport((int)(leftX * scale), (int)(leftY * scale), (int)(leftWidth * scale), (int)(leftHeight * scale));
+
+							mRightEye.getViewport().setViewport((int)(rightX * scale), (int)(rightY * scale), (int)(rightWidth * scale), (int)(rightHeight * scale));
+
+							mRenderer.onDrawFrame(mHeadTransform, mLeftEye, mRightEye);
+
+							mLeftEye.getViewport().setViewport(leftX, leftY, leftWidth, leftHeight);
+
+							mRightEye.getViewport().setViewport(rightX, rightY, rightWidth, rightHeight);
+						}
+
+						if (maskHiddenArea) {
+							((CardboardView.StereoRendererHelper)mRenderer).setHiddenAreaRenderer(null);
+						}
+						if (skipEyes) {
+							((CardboardView.StereoRendererHelper)mRenderer).setEyesSkipped(false);
+						}
+						mLastFrameRendered = true;
+						mFrameInvalidated = false;
+						mRenderedScale = scale;
+						mRenderedFrameCount += 1L;
+					}
 
-						mRenderer.onDrawFrame(mHeadTransform, mLeftEye, mRightEye);
+					if (raceScanlines) {
+						for (int half = 0; half < 2; half++) {
+							int eye = racer.beginHalf(half);
+							if ((!synthesize) && (mDynamicResolutionEnabled)) {
+								mResolutionGovernor.excludeTime(racer.getLastWaitTime());
+							}
+							updateDistortionPoses();
+							mDistortionRenderer.afterDrawFrame(eye);
+							racer.endHalf(eye);
+						}
+					}
+					else {
+						updateDistortionPoses();
+						mDistortionRenderer.afterDrawFrame();
+					}
 
-						mLeftEye.getViewport().setViewport(leftX, leftY, leftWidth, leftHeight);
+					if ((!synthesize) && (mDynamicResolutionEnabled) && (mResolutionGovernor.endFrame())) {
+						mDistortionRenderer.setResolutionScale(mResolutionGovernor.getScale());
 
-						mRightEye.getViewport().setViewport(rightX, rightY, rightWidth, rightHeight);
+						ResolutionScaleListener listener = mResolutionScaleListener;
+						if (listener != null) {
+							listener.onResolutionScaleChanged(mResolutionGovernor.getScale(), mResolutionGovernor.getHeadroom());
+						}
 					}
-
-					mDistortionRenderer.afterDrawFrame();
 				} else {
 					mRenderer.onDrawFrame(mHeadTransform, mLeftEye, mRightEye);
 				}
@@ -596,6 +1526,47 @@ public class CardboardView extends GLSurfaceView
 			else mRenderer.onDrawFrame(mHeadTransform, mMonocular, null);
 
 			mRenderer.onFinishFrame(mMonocular.getViewport());
+			mFrameQueueLimiter.insertFence();
+
+			if (!mFirstFrameDrawn) {
+				mFirstFrameDrawn = true;
+				FirstFrameListener listener = mFirstFrameListener;
+				if (listener != null) {
+					listener.onFirstFrame(System.nanoTime() - mSurfaceCreatedNanos, mDistortionRenderer.getProgramSetupTime() - mSurfaceProgramSetupNanos);
+				}
+			}
+		}
+
+		private void updateDistortionPoses() {
+			if (mDistortionRenderer.getReprojectionEnabled()) {
+				mHeadTracker.getLastHeadView(mLatestHeadView, 0);
+				mDistortionRenderer.setReprojectionPoses(mRenderedHeadView, mLatestHeadView);
+			}
+			mDistortionRenderer.setLayerPoses(mDistortionRenderer.getReprojectionEnabled() ? mLatestHeadView : mHeadTransform.getHeadView(), mLeftEyeTranslate, mRightEyeTranslate);
+		}
+
+		private int getEyeRegions(int eye, EyeParams[] regions, int[] viewports) {
+			int count = mDistortionRenderer.getEyeRegions(eye, regions, mZNear, mZFar);
+			for (int i = 0; i < count; i++) {
+				Viewport viewport = regions[i].getViewport();
+				viewports[(i * 4)] = viewport.x;
+				viewports[(i * 4 + 1)] = viewport.y;
+				viewports[(i * 4 + 2)] = viewport.width;
+				viewports[(i * 4 + 3)] = viewport.height;
+			}
+			return count;
+		}
+
+		private void prepareEyeRegions(EyeParams eye, EyeParams[] regions, int[] viewports, int count, float scale) {
+			for (int i = 0; i < count; i++) {
+				System.arraycopy(eye.getTransform().getEyeView(), 0, regions[i].getTransform().getEyeView(), 0, 16);
+
+				int x = (int)(viewports[(i * 4)] * scale);
+				int y = (int)(viewports[(i * 4 + 1)] * scale);
+				int right = (int)((viewports[(i * 4)] + viewports[(i * 4 + 2)]) * scale);
+				int top = (int)((viewports[(i * 4 + 1)] + viewports[(i * 4 + 3)]) * scale);
+				regions[i].getViewport().setViewport(x, y, right - x, top - y);
+			}
 		}
 
 		public void onSurfaceChanged(GL10 gl, int width, int height)
@@ -625,43 +1596,33 @@ public class CardboardView extends GLSurfaceView
 				return;
 			}
 
+			mFrameQueueLimiter.reset();
+			mDistortionRenderer.invalidateGLState();
+			ScanlineRacer racer = mScanlineRacer;
+			if (racer != null) {
+				racer.reset();
+			}
+			mSurfaceCreatedNanos = System.nanoTime();
+			mSurfaceProgramSetupNanos = mDistortionRenderer.getProgramSetupTime();
+			mFirstFrameDrawn = false;
 			mRenderer.onSurfaceCreated(config);
 		}
+	}
 
-		private void updateFieldOfView(FieldOfView leftEyeFov, FieldOfView rightEyeFov) {
-			CardboardDeviceParams cdp = mHmd.getCardboard();
-			ScreenParams screen = mHmd.getScreen();
-			Distortion distortion = cdp.getDistortion();
-
-			float idealFovAngle = (float)Math.toDegrees(Math.atan2(cdp.getLensDiameter() / 2.0F, cdp.getEyeToLensDistance()));
-
-			float eyeToScreenDist = cdp.getEyeToLensDistance() + cdp.getScreenToLensDistance();
-
-			float outerDist = (screen.getWidthMeters() - cdp.getInterpupillaryDistance()) / 2.0F;
-
-			float innerDist = cdp.getInterpupillaryDistance() / 2.0F;
-			float bottomDist = cdp.getVerticalDistanceToLensCenter() - screen.getBorderSizeMeters();
-
-			float topDist = screen.getHeightMeters() + screen.getBorderSizeMeters() - cdp.getVerticalDistanceToLensCenter();
-
-			float outerAngle = (float)Math.toDegrees(Math.atan2(distortion.distort(outerDist), eyeToScreenDist));
-
-			float innerAngle = (float)Math.toDegrees(Math.atan2(distortion.distort(innerDist), eyeToScreenDist));
-
-			float bottomAngle = (float)Math.toDegrees(Math.atan2(distortion.distort(bottomDist), eyeToScreenDist));
-
-			float topAngle = (float)Math.toDegrees(Math.atan2(distortion.distort(topDist), eyeToScreenDist));
-
-			leftEyeFov.setLeft(Math.min(outerAngle, idealFovAngle));
-			leftEyeFov.setRight(Math.min(innerAngle, idealFovAngle));
-			leftEyeFov.setBottom(Math.min(bottomAngle, idealFovAngle));
-			leftEyeFov.setTop(Math.min(topAngle, idealFovAngle));
+	/** Receives the eye buffer resolution scale chosen by the dynamic resolution governor, on the rendering thread. */
+	public static abstract interface ResolutionScaleListener
+	{
+		public abstract void onResolutionScaleChanged(float scale, float headroom);
+	}
 
-			rightEyeFov.setLeft(Math.min(innerAngle, idealFovAngle));
-			rightEyeFov.setRight(Math.min(outerAngle, idealFovAngle));
-			rightEyeFov.setBottom(Math.min(bottomAngle, idealFovAngle));
-			rightEyeFov.setTop(Math.min(topAngle, idealFovAngle));
-		}
+	/** Receives the timing of the first frame drawn after a surface is created, on the rendering thread. */
+	public static abstract interface FirstFrameListener
+	{
+		/**
+		 * Called once the first frame has been submitted.
+		 * startupNanos runs from the surface creation to the end of that frame, and shaderSetupNanos is the part of it spent creating the toolkit programs, from cached binaries where possible.
+		 */
+		public abstract void onFirstFrame(long startupNanos, long shaderSetupNanos);
 	}
 
 	/** Intercepts changes in the current Cardboard device parameters. */
@@ -20,7 +20,12 @@ package com.google.vrtoolkit.cardboard;
 public class Distortion
 {
 	private static final float[] DEFAULT_COEFFICIENTS = { 250.0F, 50000.0F };
+	private static final int INVERSE_TABLE_SIZE = 512;
+	private static final float INVERSE_TABLE_MAX_RADIUS = 0.2F;
+	private static final int MAX_INVERSE_ITERATIONS = 32;
+	private static final float INVERSE_TOLERANCE = 0.0001F;
 	private float[] mCoefficients;
+	private volatile InverseTable mInverseTable;
 
 	public Distortion()
 	{
@@ -34,6 +39,7 @@ public class Distortion
 		mCoefficients = new float[2];
 		mCoefficients[0] = other.mCoefficients[0];
 		mCoefficients[1] = other.mCoefficients[1];
+		mInverseTable = other.mInverseTable;
 	}
 
 	public void setCoefficients(float[] coefficients)
@@ -58,15 +64,95 @@ public class Distortion
 		return radius * distortionFactor(radius);
 	}
 
+	public float distortDerivative(float radius)
+	{
+		float rSq = radius * radius;
+		return 1.0F + 3.0F * mCoefficients[0] * rSq + 5.0F * mCoefficients[1] * rSq * rSq;
+	}
+
 	public float distortInverse(float radius)
+	{
+		InverseTable table = getInverseTable();
+		if ((table == null) || (radius < 0.0F) || (radius > table.maxDistortedRadius)) {
+			return distortInverseIterative(radius);
+		}
+
+		return table.lookup(this, radius);
+	}
+
+	public void distort(float[] radii, float[] result)
+	{
+		distort(radii, 0, result, 0, radii.length);
+	}
+
+	public void distort(float[] radii, int radiiOffset, float[] result, int resultOffset, int count)
+	{
+		if ((radiiOffset + count > radii.length) || (resultOffset + count > result.length)) {
+			throw new IllegalArgumentException("Not enough space to write the result");
+		}
+
+		float k1 = mCoefficients[0];
+		float k2 = mCoefficients[1];
+		for (int i = 0; i < count; i++) {
+			float radius = radii[(radiiOffset + i)];
+			float rSq = radius * radius;
+			result[(resultOffset + i)] = radius * (1.0F + k1 * rSq + k2 * rSq * rSq);
+		}
+	}
+
+	public void distortInverse(float[] radii, float[] result)
+	{
+		distortInverse(radii, 0, result, 0, radii.length);
+	}
+
+	public void distortInverse(float[] radii, int radiiOffset, float[] result, int resultOffset, int count)
+	{
+		if ((radiiOffset + count > radii.length) || (resultOffset + count > result.length)) {
+			throw new IllegalArgumentException("Not enough space to write the result");
+		}
+
+		InverseTable table = getInverseTable();
+		for (int i = 0; i < count; i++) {
+			float radius = radii[(radiiOffset + i)];
+			if ((table == null) || (radius < 0.0F) || (radius > table.maxDistortedRadius)) {
+				result[(resultOffset + i)] = distortInverseIterative(radius);
+			}
+			else {
+				result[(resultOffset + i)] = table.lookup(this, radius);
+			}
+		}
+	}
+
+	/**
+	 * Returns a guaranteed bound on the error of distortInverse, in meters, for distorted radii up to the distortion of 0.2 m.
+	 * The bound is derived when the table is built from the largest second derivative and smallest first derivative of the distortion over each table step, and includes a margin for float rounding.
+	 * Without a table, which needs monotone coefficients, no bound is guaranteed and this returns positive infinity.
+	 */
+	public float getInverseErrorBound()
+	{
+		InverseTable table = getInverseTable();
+		return table != null ? table.errorBound : Float.POSITIVE_INFINITY;
+	}
+
+	/** Returns the largest error of distortInverse measured at three points inside each table step, in meters, or -1 without a table. */
+	public float getInverseMeasuredError()
+	{
+		InverseTable table = getInverseTable();
+		return table != null ? table.measuredError : -1.0F;
+	}
+
+	private float distortInverseIterative(float radius)
 	{
 		float r0 = radius / 0.9F;
 		float r1 = radius * 0.9F;
 
 		float dr0 = radius - distort(r0);
 
-		while (Math.abs(r1 - r0) > 0.0001D) {
+		for (int i = 0; (i < MAX_INVERSE_ITERATIONS) && (Math.abs(r1 - r0) > INVERSE_TOLERANCE); i++) {
 			float dr1 = radius - distort(r1);
+			if (dr1 == dr0) {
+				break;
+			}
 			float r2 = r1 - dr1 * ((r1 - r0) / (dr1 - dr0));
 			r0 = r1;
 			r1 = r2;
@@ -75,6 +161,18 @@ public class Distortion
 		return r1;
 	}
 
+	private InverseTable getInverseTable()
+	{
+		InverseTable table = mInverseTable;
+		if ((table != null) && (table.k1 == mCoefficients[0]) && (table.k2 == mCoefficients[1])) {
+			return table.valid ? table : null;
+		}
+
+		table = new InverseTable(this);
+		mInverseTable = table;
+		return table.valid ? table : null;
+	}
+
 	public boolean equals(Object other)
 	{
 		if (other == null) {
@@ -97,4 +195,108 @@ public class Distortion
 	{
 		return "Distortion {" + mCoefficients[0] + ", " + mCoefficients[1] + "}";
 	}
-}
\ No newline at end of file
+
+	/** Monotone lookup table for the inverse distortion of one coefficient set. */
+	private static class InverseTable
+	{
+		final float k1;
+		final float k2;
+		final boolean valid;
+		final float maxDistortedRadius;
+		final float step;
+		final float errorBound;
+		final float measuredError;
+		private final float[] mDistorted;
+
+		InverseTable(Distortion distortion)
+		{
+			k1 = distortion.mCoefficients[0];
+			k2 = distortion.mCoefficients[1];
+			step = INVERSE_TABLE_MAX_RADIUS / (INVERSE_TABLE_SIZE - 1);
+			mDistorted = new float[INVERSE_TABLE_SIZE];
+
+			boolean monotone = true;
+			for (int i = 0; i < INVERSE_TABLE_SIZE; i++) {
+				mDistorted[i] = distortion.distort(i * step);
+				if ((i > 0) && (mDistorted[i] <= mDistorted[(i - 1)])) {
+					monotone = false;
+				}
+			}
+			valid = monotone;
+			maxDistortedRadius = mDistorted[(INVERSE_TABLE_SIZE - 1)];
+			errorBound = valid ? computeErrorBound() : Float.POSITIVE_INFINITY;
+
+			float maxError = 0.0F;
+			if (valid) {
+				for (int i = 0; i < INVERSE_TABLE_SIZE - 1; i++) {
+					for (int j = 1; j < 4; j++) {
+						double r = (i + j / 4.0D) * step;
+						float radius = distortion.distort((float)r);
+						maxError = Math.max(maxError, (float)Math.abs(lookup(distortion, radius) - r));
+					}
+				}
+			}
+			measuredError = maxError;
+		}
+
+		/**
+		 * Bounds the lookup error over every table step, with M the largest |f''| and m the smallest f' over the step.
+		 * Interpolating linearly between the samples misses f by at most M/8 step^2, so it starts within e0 = M/(8m) step^2 of the inverse, and the Newton step leaves at most M/(2m) e0^2.
+		 * The clamp to the step caps it at one step, and the rounding of the table samples and of the Newton step in float adds a few ulps of the distorted radius over m.
+		 */
+		private float computeErrorBound()
+		{
+			double maxError = 0.0D;
+			for (int i = 0; i < INVERSE_TABLE_SIZE - 1; i++) {
+				double a = i * (double)step;
+				double b = (i + 1) * (double)step;
+				double maxSecond = 6.0D * Math.abs(k1) * b + 20.0D * Math.abs(k2) * b * b * b;
+				double minFirst = Math.min(derivative(a * a), derivative(b * b));
+				if (k2 != 0.0F) {
+					double vertex = -3.0D * k1 / (10.0D * k2);
+					if ((vertex > a * a) && (vertex < b * b)) {
+						minFirst = Math.min(minFirst, derivative(vertex));
+					}
+				}
+				if (minFirst <= 0.0D) {
+					return Float.POSITIVE_INFINITY;
+				}
+
+				double startError = Math.min(step, maxSecond / (8.0D * minFirst) * step * step);
+				double newtonError = Math.min(step, maxSecond / (2.0D * minFirst) * startError * startError);
+				double roundingError = 4.0D * Math.ulp(mDistorted[(i + 1)]) / minFirst + 2.0D * Math.ulp((float)b);
+				maxError = Math.max(maxError, newtonError + roundingError);
+			}
+			return (float)maxError;
+		}
+
+		/** Returns f' at the squared radius rSq. */
+		private double derivative(double rSq)
+		{
+			return 1.0D + 3.0D * k1 * rSq + 5.0D * k2 * rSq * rSq;
+		}
+
+		float lookup(Distortion distortion, float radius)
+		{
+			int lo = 0;
+			int hi = INVERSE_TABLE_SIZE - 1;
+			while (hi - lo > 1) {
+				int mid = (lo + hi) >>> 1;
+				if (mDistorted[mid] <= radius) {
+					lo = mid;
+				}
+				else {
+					hi = mid;
+				}
+			}
+
+			float rLo = lo * step;
+			float rHi = hi * step;
+			float t = (radius - mDistorted[lo]) / (mDistorted[hi] - mDistorted[lo]);
+			float r = rLo + t * step;
+
+			r -= (distortion.distort(r) - radius) / distortion.distortDerivative(r);
+			return Math.max(rLo, Math.min(rHi, r));
+		}
+	}
+}
@@ -0,0 +1,82 @@
+/*
+ * Copyright 2014 Google Inc. All Rights Reserved.
+
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.vrtoolkit.cardboard;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Encodes per-eye distortion lookup textures: half-float RGB texels holding the texture coordinate offset from the screen coordinate and the vignette.
+ */
+class DistortionLookupEncoder
+{
+	public static final int TEXEL_SIZE_PX = 4;
+	public static final int COMPONENTS_PER_TEXEL = 3;
+	public static final int BYTES_PER_TEXEL = 6;
+
+	private DistortionLookupEncoder()
+	{
+	}
+
+	public static int getLookupSize(int screenSizePx)
+	{
+		return Math.max(2, screenSizePx / TEXEL_SIZE_PX);
+	}
+
+	public static ByteBuffer encode(DistortionMeshBuilder builder, int width, int height, float uScreenMin, float uScreenMax)
+	{
+		ByteBuffer buffer = ByteBuffer.allocateDirect(width * height * BYTES_PER_TEXEL).order(ByteOrder.nativeOrder());
+		float[] texel = new float[COMPONENTS_PER_TEXEL];
+
+		for (int row = 0; row < height; row++) {
+			float vScreen = row / (height - 1.0F);
+			for (int col = 0; col < width; col++) {
+				float uScreen = uScreenMin + col / (width - 1.0F) * (uScreenMax - uScreenMin);
+				builder.computeLookupTexel(uScreen, vScreen, texel, 0);
+
+				buffer.putShort(toHalfFloat(texel[0] - uScreen));
+				buffer.putShort(toHalfFloat(texel[1] - vScreen));
+				buffer.putShort(toHalfFloat(texel[2]));
+			}
+		}
+
+		buffer.position(0);
+		return buffer;
+	}
+
+	static short toHalfFloat(float value)
+	{
+		int bits = Float.floatToIntBits(value);
+		int sign = bits >>> 16 & 0x8000;
+		int exponent = (bits >>> 23 & 0xFF) - 127 + 15;
+		int mantissa = bits & 0x7FFFFF;
+
+		if (exponent <= 0) {
+			if (exponent < -10) {
+				return (short)sign;
+			}
+			mantissa |= 0x800000;
+			int shift = 14 - exponent;
+			return (short)(sign | (mantissa + (1 << (shift - 1))) >> shift);
+		}
+
+		if (exponent >= 31) {
+			return (short)(sign | 0x7C00);
+		}
+
+		return (short)((sign | exponent << 10 | mantissa >> 13) + (mantissa >> 12 & 1));
+	}
+}
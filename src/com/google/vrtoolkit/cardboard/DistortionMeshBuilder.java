@@ -0,0 +1,514 @@
+/*
+ * Copyright 2014 Google Inc. All Rights Reserved.
+
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.vrtoolkit.cardboard;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Computes the distortion mesh of one eye, either as a fixed grid or adaptively subdivided to a pixel tolerance.
+ *
+ * When the other eye is a mirror image, a fixed grid shares only some vertices with it: the inverse distortion of a mirrored vertex is reused only where its texture radius is bit-identical, about 40% of the default grid, so the output never differs from building the eye alone.
+ */
+class DistortionMeshBuilder
+{
+	public static final int COMPONENTS_PER_VERT = 5;
+	public static final float VIGNETTE_SIZE_M_SCREEN = 0.002F;
+	private static final int GRID_BAND_QUADS = 6;
+	private static final int ADAPTIVE_BASE_CELLS = 4;
+	private static final int ADAPTIVE_MAX_DEPTH = 5;
+	private static final float MIRROR_EPSILON_M = 1.0E-6F;
+	private static ExecutorService sExecutor;
+	private final Distortion mDistortion;
+	private final float mScreenWidthM;
+	private final float mScreenHeightM;
+	private final float mXPxPerM;
+	private final float mYPxPerM;
+	private final float mXEyeOffsetMScreen;
+	private final float mYEyeOffsetMScreen;
+	private final float mTextureWidthM;
+	private final float mTextureHeightM;
+	private final RenderPlan.EyeViewport mViewport;
+	private EyeRegionLayout mRegionLayout;
+	private float mTextureWidthPx;
+	private float mTextureHeightPx;
+
+	public DistortionMeshBuilder(HeadMountedDisplay hmd, RenderPlan.EyeViewport viewport, float textureWidthM, float textureHeightM, float xEyeOffsetMScreen, float yEyeOffsetMScreen)
+	{
+		ScreenParams screen = hmd.getScreen();
+		mDistortion = hmd.getCardboard().getDistortion();
+		mScreenWidthM = screen.getWidthMeters();
+		mScreenHeightM = screen.getHeightMeters();
+		mXPxPerM = screen.getWidth() / mScreenWidthM;
+		mYPxPerM = screen.getHeight() / mScreenHeightM;
+		mXEyeOffsetMScreen = xEyeOffsetMScreen;
+		mYEyeOffsetMScreen = yEyeOffsetMScreen;
+		mTextureWidthM = textureWidthM;
+		mTextureHeightM = textureHeightM;
+		mViewport = viewport;
+	}
+
+	/**
+	 * Makes the texture coordinates of the mesh address a region packed eye buffer.
+	 * Mesh lines are kept on the region edges so that the piecewise linear packing is interpolated exactly.
+	 */
+	public void setRegionLayout(EyeRegionLayout layout, int textureWidthPx, int textureHeightPx)
+	{
+		mRegionLayout = layout;
+		mTextureWidthPx = textureWidthPx;
+		mTextureHeightPx = textureHeightPx;
+	}
+
+	public void computeVertex(float uTexture, float vTexture, float[] vertexData, int offset)
+	{
+		float rTexture = getTextureRadius(uTexture, vTexture);
+		computeVertex(uTexture, vTexture, rTexture, mDistortion.distortInverse(rTexture), vertexData, offset);
+	}
+
+	private float getTextureRadius(float uTexture, float vTexture)
+	{
+		float xTextureEye = uTexture * mTextureWidthM - mViewport.eyeX;
+		float yTextureEye = vTexture * mTextureHeightM - mViewport.eyeY;
+		return (float)Math.sqrt(xTextureEye * xTextureEye + yTextureEye * yTextureEye);
+	}
+
+	private void computeVertex(float uTexture, float vTexture, float rTexture, float rScreen, float[] vertexData, int offset)
+	{
+		float xTexture = uTexture * mTextureWidthM;
+		float yTexture = vTexture * mTextureHeightM;
+		float xTextureEye = xTexture - mViewport.eyeX;
+		float yTextureEye = yTexture - mViewport.eyeY;
+
+		float textureToScreen = rTexture > 0.0F ? rScreen / rTexture : 1.0F;
+
+		float xScreen = xTextureEye * textureToScreen + mXEyeOffsetMScreen;
+		float yScreen = yTextureEye * textureToScreen + mYEyeOffsetMScreen;
+		float uScreen = xScreen / mScreenWidthM;
+		float vScreen = yScreen / mScreenHeightM;
+		float vignette = getVignette(xTexture, yTexture, textureToScreen);
+
+		vertexData[(offset + 0)] = (2.0F * uScreen - 1.0F);
+		vertexData[(offset + 1)] = (2.0F * vScreen - 1.0F);
+		vertexData[(offset + 2)] = vignette;
+		if (mRegionLayout != null) {
+			uTexture = mRegionLayout.map(0, (xTexture - mViewport.x) / mViewport.width) / mTextureWidthPx;
+			vTexture = mRegionLayout.map(1, (yTexture - mViewport.y) / mViewport.height) / mTextureHeightPx;
+		}
+		vertexData[(offset + 3)] = uTexture;
+		vertexData[(offset + 4)] = vTexture;
+	}
+
+	public void computeLookupTexel(float uScreen, float vScreen, float[] texelData, int offset)
+	{
+		float xScreenEye = uScreen * mScreenWidthM - mXEyeOffsetMScreen;
+		float yScreenEye = vScreen * mScreenHeightM - mYEyeOffsetMScreen;
+		float rScreen = (float)Math.sqrt(xScreenEye * xScreenEye + yScreenEye * yScreenEye);
+
+		float screenToTexture = mDistortion.distortionFactor(rScreen);
+
+		float xTexture = xScreenEye * screenToTexture + mViewport.eyeX;
+		float yTexture = yScreenEye * screenToTexture + mViewport.eyeY;
+
+		texelData[(offset + 0)] = xTexture / mTextureWidthM;
+		texelData[(offset + 1)] = yTexture / mTextureHeightM;
+		texelData[(offset + 2)] = getVignette(xTexture, yTexture, 1.0F / screenToTexture);
+	}
+
+	private float getVignette(float xTexture, float yTexture, float textureToScreen)
+	{
+		float viewportXMTexture = mViewport.x;
+		float viewportYMTexture = mViewport.y;
+		float viewportWidthMTexture = mViewport.width;
+		float viewportHeightMTexture = mViewport.height;
+		float vignetteSizeMTexture = VIGNETTE_SIZE_M_SCREEN / textureToScreen;
+
+		float dxTexture = xTexture - clamp(xTexture, viewportXMTexture + vignetteSizeMTexture, viewportXMTexture + viewportWidthMTexture - vignetteSizeMTexture);
+
+		float dyTexture = yTexture - clamp(yTexture, viewportYMTexture + vignetteSizeMTexture, viewportYMTexture + viewportHeightMTexture - vignetteSizeMTexture);
+
+		float drTexture = (float)Math.sqrt(dxTexture * dxTexture + dyTexture * dyTexture);
+
+		return 1.0F - clamp(drTexture / vignetteSizeMTexture, 0.0F, 1.0F);
+	}
+
+	private float getU(float col, float cols)
+	{
+		return col / cols * (mViewport.width / mTextureWidthM) + mViewport.x / mTextureWidthM;
+	}
+
+	private float getV(float row, float rows)
+	{
+		return row / rows * (mViewport.height / mTextureHeightM) + mViewport.y / mTextureHeightM;
+	}
+
+	public boolean isMirrorOf(DistortionMeshBuilder other)
+	{
+		return (mDistortion.equals(other.mDistortion)) && (mViewport.width == other.mViewport.width) && (mViewport.height == other.mViewport.height) && (mViewport.eyeY == other.mViewport.eyeY) && (mYEyeOffsetMScreen == other.mYEyeOffsetMScreen) && (Math.abs(mXEyeOffsetMScreen + other.mXEyeOffsetMScreen - mScreenWidthM) < MIRROR_EPSILON_M) && (Math.abs(mViewport.eyeX - mViewport.x - (other.mViewport.x + other.mViewport.width - other.mViewport.eyeX)) < MIRROR_EPSILON_M);
+	}
+
+	public Mesh buildGrid(int rows, int cols)
+	{
+		return buildGrid(rows, cols, null, null, null);
+	}
+
+	/**
+	 * Builds the fixed grid, splitting its rows across the executor if one is given.
+	 * If radii is given, the texture and screen radius of every vertex are stored in it as pairs.
+	 * If mirrorRadii holds the radii of the mirrored eye, its screen radius is reused wherever the mirrored column has a bit-identical texture radius.
+	 */
+	public Mesh buildGrid(final int rows, final int cols, final float[] radii, final float[] mirrorRadii, ExecutorService executor)
+	{
+		final float[] vertexData = new float[rows * cols * COMPONENTS_PER_VERT];
+
+		int tasks = executor != null ? Math.min(rows, Runtime.getRuntime().availableProcessors()) : 1;
+		if (tasks <= 1) {
+			computeGridRows(0, rows, rows, cols, vertexData, radii, mirrorRadii);
+		}
+		else {
+			List<Future<?>> futures = new ArrayList<Future<?>>(tasks);
+			for (int task = 0; task < tasks; task++) {
+				final int firstRow = task * rows / tasks;
+				final int lastRow = (task + 1) * rows / tasks;
+				futures.add(executor.submit(new Runnable()
+				{
+					public void run() {
+						computeGridRows(firstRow, lastRow, rows, cols, vertexData, radii, mirrorRadii);
+					}
+				}));
+			}
+			for (Future<?> future : futures) {
+				await(future);
+			}
+		}
+
+		int bands = (cols - 2) / GRID_BAND_QUADS + 1;
+		int[] indexData = new int[2 * (cols - 1 + bands) * (rows - 1) + (rows - 1) * bands + bands - 2];
+		int indexOffset = 0;
+		for (int band = 0; band < bands; band++) {
+			int firstCol = band * GRID_BAND_QUADS;
+			int lastCol = Math.min(firstCol + GRID_BAND_QUADS, cols - 1);
+
+			for (int row = 0; row < rows - 1; row++) {
+				boolean forward = row % 2 == 0;
+				if (indexOffset > 0) {
+					indexData[indexOffset] = indexData[(indexOffset - 1)];
+					indexOffset++;
+					if (row == 0) {
+						indexData[(indexOffset++)] = firstCol;
+					}
+				}
+				for (int i = 0; i <= lastCol - firstCol; i++) {
+					int col = forward ? firstCol + i : lastCol - i;
+					indexData[(indexOffset++)] = (row * cols + col);
+					indexData[(indexOffset++)] = ((row + 1) * cols + col);
+				}
+			}
+		}
+
+		return new Mesh(vertexData, rows * cols, indexData, 5, -1.0F);
+	}
+
+	private void computeGridRows(int firstRow, int lastRow, int rows, int cols, float[] vertexData, float[] radii, float[] mirrorRadii)
+	{
+		float[] rTexture = new float[cols];
+		float[] rScreen = new float[cols];
+		int vertexOffset = firstRow * cols * COMPONENTS_PER_VERT;
+
+		for (int row = firstRow; row < lastRow; row++) {
+			float vTexture = getV(row, rows - 1.0F);
+			for (int col = 0; col < cols; col++) {
+				rTexture[col] = getTextureRadius(getU(col, cols - 1.0F), vTexture);
+			}
+
+			if (mirrorRadii == null) {
+				mDistortion.distortInverse(rTexture, rScreen);
+			}
+			else {
+				for (int col = 0; col < cols; col++) {
+					int mirrored = 2 * (row * cols + cols - 1 - col);
+					if (Float.floatToRawIntBits(mirrorRadii[mirrored]) == Float.floatToRawIntBits(rTexture[col])) {
+						rScreen[col] = mirrorRadii[(mirrored + 1)];
+					}
+					else {
+						rScreen[col] = mDistortion.distortInverse(rTexture[col]);
+					}
+				}
+			}
+
+			for (int col = 0; col < cols; col++)
+			{
+				computeVertex(getU(col, cols - 1.0F), vTexture, rTexture[col], rScreen[col], vertexData, vertexOffset);
+				vertexOffset += COMPONENTS_PER_VERT;
+
+				if (radii != null) {
+					radii[(2 * (row * cols + col))] = rTexture[col];
+					radii[(2 * (row * cols + col) + 1)] = rScreen[col];
+				}
+			}
+		}
+	}
+
+	public Mesh buildAdaptive(float tolerancePx)
+	{
+		int size = ADAPTIVE_BASE_CELLS << ADAPTIVE_MAX_DEPTH;
+		int cellSize = 1 << ADAPTIVE_MAX_DEPTH;
+		int[] leafSize = new int[size * size];
+		float[] maxError = new float[1];
+		float[] scratch = new float[COMPONENTS_PER_VERT * 5];
+
+		for (int y = 0; y < size; y += cellSize) {
+			for (int x = 0; x < size; x += cellSize) {
+				subdivide(x, y, cellSize, size, tolerancePx, leafSize, maxError, scratch);
+			}
+		}
+
+		balance(leafSize, size);
+
+		Map<Integer, Integer> vertexIds = new HashMap<Integer, Integer>();
+		List<float[]> vertices = new ArrayList<float[]>();
+		int[] indices = new int[64];
+		int indexCount = 0;
+		int[] ring = new int[8];
+
+		for (int y = 0; y < size; y++) {
+			for (int x = 0; x < size; x++) {
+				int s = leafSize[(y * size + x)];
+				if ((x % s != 0) || (y % s != 0)) {
+					continue;
+				}
+
+				int n = 0;
+				ring[(n++)] = vertexId(x, y, size, vertexIds, vertices);
+				if ((y > 0) && (s > 1) && (leafSize[((y - 1) * size + x)] < s)) {
+					ring[(n++)] = vertexId(x + s / 2, y, size, vertexIds, vertices);
+				}
+				ring[(n++)] = vertexId(x + s, y, size, vertexIds, vertices);
+				if ((x + s < size) && (s > 1) && (leafSize[(y * size + x + s)] < s)) {
+					ring[(n++)] = vertexId(x + s, y + s / 2, size, vertexIds, vertices);
+				}
+				ring[(n++)] = vertexId(x + s, y + s, size, vertexIds, vertices);
+				if ((y + s < size) && (s > 1) && (leafSize[((y + s) * size + x)] < s)) {
+					ring[(n++)] = vertexId(x + s / 2, y + s, size, vertexIds, vertices);
+				}
+				ring[(n++)] = vertexId(x, y + s, size, vertexIds, vertices);
+				if ((x > 0) && (s > 1) && (leafSize[(y * size + x - 1)] < s)) {
+					ring[(n++)] = vertexId(x, y + s / 2, size, vertexIds, vertices);
+				}
+
+				if (indexCount + 3 * n + 3 > indices.length) {
+					indices = Arrays.copyOf(indices, Math.max(indices.length * 2, indexCount + 3 * n + 3));
+				}
+
+				if (n == 4) {
+					indices[(indexCount++)] = ring[0];
+					indices[(indexCount++)] = ring[1];
+					indices[(indexCount++)] = ring[2];
+					indices[(indexCount++)] = ring[0];
+					indices[(indexCount++)] = ring[2];
+					indices[(indexCount++)] = ring[3];
+				}
+				else {
+					int center = vertexId(x + s / 2, y + s / 2, size, vertexIds, vertices);
+					for (int i = 0; i < n; i++) {
+						indices[(indexCount++)] = center;
+						indices[(indexCount++)] = ring[i];
+						indices[(indexCount++)] = ring[((i + 1) % n)];
+					}
+				}
+			}
+		}
+
+		float[] vertexData = new float[vertices.size() * COMPONENTS_PER_VERT];
+		for (int i = 0; i < vertices.size(); i++) {
+			System.arraycopy(vertices.get(i), 0, vertexData, i * COMPONENTS_PER_VERT, COMPONENTS_PER_VERT);
+		}
+
+		return new Mesh(vertexData, vertices.size(), Arrays.copyOf(indices, indexCount), 4, maxError[0]);
+	}
+
+	private void subdivide(int x, int y, int s, int size, float tolerancePx, int[] leafSize, float[] maxError, float[] scratch)
+	{
+		float error = cellError(x, y, s, size, scratch);
+		if (((error > tolerancePx) || (crossesRegionEdge(x, y, s, size))) && (s > 1)) {
+			int half = s / 2;
+			subdivide(x, y, half, size, tolerancePx, leafSize, maxError, scratch);
+			subdivide(x + half, y, half, size, tolerancePx, leafSize, maxError, scratch);
+			subdivide(x, y + half, half, size, tolerancePx, leafSize, maxError, scratch);
+			subdivide(x + half, y + half, half, size, tolerancePx, leafSize, maxError, scratch);
+			return;
+		}
+
+		maxError[0] = Math.max(maxError[0], error);
+		fillLeaf(x, y, s, size, leafSize);
+	}
+
+	private boolean crossesRegionEdge(int x, int y, int s, int size)
+	{
+		if (mRegionLayout == null) {
+			return false;
+		}
+
+		for (int i = 0; i < 2; i++) {
+			int xEdge = Math.round(mRegionLayout.getEdge(0, i) * size);
+			int yEdge = Math.round(mRegionLayout.getEdge(1, i) * size);
+			if (((xEdge > x) && (xEdge < x + s)) || ((yEdge > y) && (yEdge < y + s))) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private float cellError(int x, int y, int s, int size, float[] scratch)
+	{
+		float n = size;
+		computeVertex(getU(x, n), getV(y, n), scratch, 0);
+		computeVertex(getU(x + s, n), getV(y, n), scratch, 5);
+		computeVertex(getU(x + s, n), getV(y + s, n), scratch, 10);
+		computeVertex(getU(x, n), getV(y + s, n), scratch, 15);
+
+		float error = 0.0F;
+		float half = s / 2.0F;
+		error = Math.max(error, midpointError(x + half, y, n, 0, 5, scratch));
+		error = Math.max(error, midpointError(x + s, y + half, n, 5, 10, scratch));
+		error = Math.max(error, midpointError(x + half, y + s, n, 10, 15, scratch));
+		error = Math.max(error, midpointError(x, y + half, n, 15, 0, scratch));
+		error = Math.max(error, midpointError(x + half, y + half, n, 0, 10, scratch));
+		return error;
+	}
+
+	private float midpointError(float x, float y, float n, int a, int b, float[] scratch)
+	{
+		computeVertex(getU(x, n), getV(y, n), scratch, 20);
+		float dx = (scratch[20] - 0.5F * (scratch[a] + scratch[b])) * 0.5F * mScreenWidthM * mXPxPerM;
+		float dy = (scratch[21] - 0.5F * (scratch[(a + 1)] + scratch[(b + 1)])) * 0.5F * mScreenHeightM * mYPxPerM;
+		return (float)Math.sqrt(dx * dx + dy * dy);
+	}
+
+	private static void fillLeaf(int x, int y, int s, int size, int[] leafSize)
+	{
+		for (int j = y; j < y + s; j++) {
+			Arrays.fill(leafSize, j * size + x, j * size + x + s, s);
+		}
+	}
+
+	private static void balance(int[] leafSize, int size)
+	{
+		boolean changed = true;
+		while (changed) {
+			changed = false;
+			for (int y = 0; y < size; y++) {
+				for (int x = 0; x < size; x++) {
+					int s = leafSize[(y * size + x)];
+					if ((s < 4) || (x % s != 0) || (y % s != 0)) {
+						continue;
+					}
+
+					int finest = s;
+					for (int i = 0; i < s; i++) {
+						if (y > 0) finest = Math.min(finest, leafSize[((y - 1) * size + x + i)]);
+						if (y + s < size) finest = Math.min(finest, leafSize[((y + s) * size + x + i)]);
+						if (x > 0) finest = Math.min(finest, leafSize[((y + i) * size + x - 1)]);
+						if (x + s < size) finest = Math.min(finest, leafSize[((y + i) * size + x + s)]);
+					}
+
+					if (finest < s / 2) {
+						int half = s / 2;
+						fillLeaf(x, y, half, size, leafSize);
+						fillLeaf(x + half, y, half, size, leafSize);
+						fillLeaf(x, y + half, half, size, leafSize);
+						fillLeaf(x + half, y + half, half, size, leafSize);
+						changed = true;
+					}
+				}
+			}
+		}
+	}
+
+	private int vertexId(int x, int y, int size, Map<Integer, Integer> vertexIds, List<float[]> vertices)
+	{
+		Integer key = Integer.valueOf(y * (size + 1) + x);
+		Integer id = vertexIds.get(key);
+		if (id != null) {
+			return id.intValue();
+		}
+
+		float[] vertex = new float[COMPONENTS_PER_VERT];
+		computeVertex(getU(x, size), getV(y, size), vertex, 0);
+		vertices.add(vertex);
+		vertexIds.put(key, Integer.valueOf(vertices.size() - 1));
+		return vertices.size() - 1;
+	}
+
+	static synchronized ExecutorService getExecutor()
+	{
+		int threads = Runtime.getRuntime().availableProcessors();
+		if ((sExecutor == null) && (threads > 1)) {
+			sExecutor = Executors.newFixedThreadPool(threads, new ThreadFactory()
+			{
+				public Thread newThread(Runnable runnable) {
+					Thread thread = new Thread(runnable, "DistortionMeshBuilder");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		}
+		return sExecutor;
+	}
+
+	static <T> T await(Future<T> future)
+	{
+		try {
+			return future.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException("Interrupted while building distortion mesh", e);
+		} catch (ExecutionException e) {
+			throw new RuntimeException("Could not build distortion mesh", e.getCause());
+		}
+	}
+
+	private static float clamp(float val, float min, float max)
+	{
+		return Math.max(min, Math.min(max, val));
+	}
+
+	/** Vertex and index data of a distortion mesh, with the measured interpolation error. */
+	static class Mesh
+	{
+		public final float[] vertexData;
+		public final int vertexCount;
+		public final int[] indexData;
+		public final int mode;
+		public final float maxErrorPx;
+
+		public Mesh(float[] vertexData, int vertexCount, int[] indexData, int mode, float maxErrorPx)
+		{
+			this.vertexData = vertexData;
+			this.vertexCount = vertexCount;
+			this.indexData = indexData;
+			this.mode = mode;
+			this.maxErrorPx = maxErrorPx;
+		}
+	}
+}
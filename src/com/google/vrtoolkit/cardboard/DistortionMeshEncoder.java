@@ -0,0 +1,505 @@
+/*
+ * Copyright 2014 Google Inc. All Rights Reserved.
+
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.vrtoolkit.cardboard;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Packs distortion meshes into the compact GPU format: normalized 16-bit positions and texture coordinates, an 8-bit vignette and 16-bit indices.
+ */
+class DistortionMeshEncoder
+{
+	public static final int VERTEX_STRIDE_BYTES = 12;
+	public static final int POSITION_OFFSET_BYTES = 0;
+	public static final int TEXTURE_COORD_OFFSET_BYTES = 4;
+	public static final int VIGNETTE_OFFSET_BYTES = 8;
+	public static final int BYTES_PER_INDEX = 2;
+	public static final int MAX_VERTICES = 65536;
+	public static final int VERTEX_CACHE_SIZE = 16;
+	public static final float MAX_BLACK_VIGNETTE = 0.5F / 255.0F;
+
+	private DistortionMeshEncoder()
+	{
+	}
+
+	public static DistortionMeshBuilder.Mesh optimize(DistortionMeshBuilder.Mesh mesh)
+	{
+		if (mesh.mode != 4) {
+			return mesh;
+		}
+
+		int[] indexData = optimizeTriangleOrder(mesh.indexData, mesh.vertexCount, VERTEX_CACHE_SIZE);
+
+		int[] remap = new int[mesh.vertexCount];
+		Arrays.fill(remap, -1);
+		int nextVertex = 0;
+		for (int i = 0; i < indexData.length; i++) {
+			int vertex = indexData[i];
+			if (remap[vertex] == -1) {
+				remap[vertex] = nextVertex++;
+			}
+			indexData[i] = remap[vertex];
+		}
+
+		int components = DistortionMeshBuilder.COMPONENTS_PER_VERT;
+		float[] vertexData = new float[nextVertex * components];
+		for (int vertex = 0; vertex < mesh.vertexCount; vertex++) {
+			if (remap[vertex] != -1) {
+				System.arraycopy(mesh.vertexData, vertex * components, vertexData, remap[vertex] * components, components);
+			}
+		}
+
+		return new DistortionMeshBuilder.Mesh(vertexData, nextVertex, indexData, mesh.mode, mesh.maxErrorPx);
+	}
+
+	/**
+	 * Removes the triangles that cannot show anything: those black at all three vertices once the vignette is encoded, those entirely outside the screen half between minX and maxX or above or below the screen, and those entirely outside the lens ellipse.
+	 * Strips are re-stitched with degenerate triangles that keep the winding of each surviving run, and unreferenced vertices are dropped.
+	 * The fraction of the screen half area covered by the culled triangles is stored in culledFraction[eye]. If every triangle would be culled the mesh is returned unchanged and the fraction is 0.
+	 * The lens is given in normalized device coordinates as its center and radii.
+	 */
+	public static DistortionMeshBuilder.Mesh cull(DistortionMeshBuilder.Mesh mesh, float minX, float maxX, float lensX, float lensY, float lensRadiusX, float lensRadiusY, float[] culledFraction, int eye)
+	{
+		boolean strip = mesh.mode == 5;
+		int[] indexData = mesh.indexData;
+		int triangleCount = strip ? Math.max(0, indexData.length - 2) : indexData.length / 3;
+		int stride = strip ? 1 : 3;
+		float[] v = mesh.vertexData;
+		int components = DistortionMeshBuilder.COMPONENTS_PER_VERT;
+
+		boolean[] keep = new boolean[triangleCount];
+		int keptCount = 0;
+		float totalArea = 0.0F;
+		float culledArea = 0.0F;
+		for (int triangle = 0; triangle < triangleCount; triangle++) {
+			int a = indexData[(triangle * stride)] * components;
+			int b = indexData[(triangle * stride + 1)] * components;
+			int c = indexData[(triangle * stride + 2)] * components;
+			if ((a == b) || (b == c) || (a == c)) {
+				continue;
+			}
+
+			float area = Math.abs((clamp(v[b], minX, maxX) - clamp(v[a], minX, maxX)) * (v[(c + 1)] - v[(a + 1)]) - (clamp(v[c], minX, maxX) - clamp(v[a], minX, maxX)) * (v[(b + 1)] - v[(a + 1)])) / 2.0F;
+			totalArea += area;
+
+			boolean black = (v[(a + 2)] < MAX_BLACK_VIGNETTE) && (v[(b + 2)] < MAX_BLACK_VIGNETTE) && (v[(c + 2)] < MAX_BLACK_VIGNETTE);
+			boolean outside = ((v[a] <= minX) && (v[b] <= minX) && (v[c] <= minX)) || ((v[a] >= maxX) && (v[b] >= maxX) && (v[c] >= maxX)) || ((v[(a + 1)] <= -1.0F) && (v[(b + 1)] <= -1.0F) && (v[(c + 1)] <= -1.0F)) || ((v[(a + 1)] >= 1.0F) && (v[(b + 1)] >= 1.0F) && (v[(c + 1)] >= 1.0F));
+
+			if ((black) || (outside) || (isOutsideUnitCircle((v[a] - lensX) / lensRadiusX, (v[(a + 1)] - lensY) / lensRadiusY, (v[b] - lensX) / lensRadiusX, (v[(b + 1)] - lensY) / lensRadiusY, (v[c] - lensX) / lensRadiusX, (v[(c + 1)] - lensY) / lensRadiusY))) {
+				culledArea += area;
+			}
+			else {
+				keep[triangle] = true;
+				keptCount++;
+			}
+		}
+
+		if (keptCount == 0) {
+			culledFraction[eye] = 0.0F;
+			return mesh;
+		}
+		culledFraction[eye] = totalArea > 0.0F ? culledArea / totalArea : 0.0F;
+
+		int[] culled = new int[strip ? indexData.length + 3 * triangleCount : keptCount * 3];
+		int size = 0;
+		if (strip) {
+			int triangle = 0;
+			while (triangle < triangleCount) {
+				if (!keep[triangle]) {
+					triangle++;
+					continue;
+				}
+				int end = triangle;
+				while ((end + 1 < triangleCount) && (keep[(end + 1)])) {
+					end++;
+				}
+
+				if (size > 0) {
+					culled[size] = culled[(size - 1)];
+					size++;
+					culled[(size++)] = indexData[triangle];
+				}
+				if (size % 2 != triangle % 2) {
+					culled[(size++)] = indexData[triangle];
+				}
+				for (int i = triangle; i <= end + 2; i++) {
+					culled[(size++)] = indexData[i];
+				}
+				triangle = end + 1;
+			}
+		}
+		else {
+			for (int triangle = 0; triangle < triangleCount; triangle++) {
+				if (keep[triangle]) {
+					System.arraycopy(indexData, triangle * 3, culled, size, 3);
+					size += 3;
+				}
+			}
+		}
+
+		int[] remap = new int[mesh.vertexCount];
+		Arrays.fill(remap, -1);
+		for (int i = 0; i < size; i++) {
+			remap[culled[i]] = 0;
+		}
+		int nextVertex = 0;
+		for (int vertex = 0; vertex < mesh.vertexCount; vertex++) {
+			if (remap[vertex] != -1) {
+				remap[vertex] = nextVertex++;
+			}
+		}
+		float[] vertexData = new float[nextVertex * components];
+		for (int vertex = 0; vertex < mesh.vertexCount; vertex++) {
+			if (remap[vertex] != -1) {
+				System.arraycopy(v, vertex * components, vertexData, remap[vertex] * components, components);
+			}
+		}
+		int[] compacted = new int[size];
+		for (int i = 0; i < size; i++) {
+			compacted[i] = remap[culled[i]];
+		}
+
+		return new DistortionMeshBuilder.Mesh(vertexData, nextVertex, compacted, mesh.mode, mesh.maxErrorPx);
+	}
+
+	/** Returns whether a triangle lies entirely outside the unit circle around the origin. */
+	private static boolean isOutsideUnitCircle(float ax, float ay, float bx, float by, float cx, float cy)
+	{
+		if ((ax * ax + ay * ay <= 1.0F) || (bx * bx + by * by <= 1.0F) || (cx * cx + cy * cy <= 1.0F)) {
+			return false;
+		}
+		if ((edgeReachesUnitCircle(ax, ay, bx, by)) || (edgeReachesUnitCircle(bx, by, cx, cy)) || (edgeReachesUnitCircle(cx, cy, ax, ay))) {
+			return false;
+		}
+
+		float d1 = ax * by - ay * bx;
+		float d2 = bx * cy - by * cx;
+		float d3 = cx * ay - cy * ax;
+		boolean containsOrigin = ((d1 >= 0.0F) && (d2 >= 0.0F) && (d3 >= 0.0F)) || ((d1 <= 0.0F) && (d2 <= 0.0F) && (d3 <= 0.0F));
+		return !containsOrigin;
+	}
+
+	private static boolean edgeReachesUnitCircle(float ax, float ay, float bx, float by)
+	{
+		float dx = bx - ax;
+		float dy = by - ay;
+		float lengthSquared = dx * dx + dy * dy;
+		float t = lengthSquared > 0.0F ? clamp(-(ax * dx + ay * dy) / lengthSquared, 0.0F, 1.0F) : 0.0F;
+		float x = ax + t * dx;
+		float y = ay + t * dy;
+		return x * x + y * y <= 1.0F;
+	}
+
+	public static void clampToHalf(DistortionMeshBuilder.Mesh mesh, float minX, float maxX)
+	{
+		for (int vertex = 0; vertex < mesh.vertexCount; vertex++) {
+			int offset = vertex * DistortionMeshBuilder.COMPONENTS_PER_VERT;
+			mesh.vertexData[offset] = clamp(mesh.vertexData[offset], minX, maxX);
+		}
+	}
+
+	public static DistortionMeshBuilder.Mesh merge(DistortionMeshBuilder.Mesh left, DistortionMeshBuilder.Mesh right, int[] indexOffset, int[] indexCount)
+	{
+		if (left.mode != right.mode) {
+			throw new IllegalArgumentException("Cannot merge meshes with different primitive modes");
+		}
+
+		int components = DistortionMeshBuilder.COMPONENTS_PER_VERT;
+		float[] vertexData = new float[(left.vertexCount + right.vertexCount) * components];
+		System.arraycopy(left.vertexData, 0, vertexData, 0, left.vertexCount * components);
+		System.arraycopy(right.vertexData, 0, vertexData, left.vertexCount * components, right.vertexCount * components);
+
+		int joinIndices = left.mode == 5 ? 2 : 0;
+		int[] indexData = new int[left.indexData.length + joinIndices + right.indexData.length];
+		System.arraycopy(left.indexData, 0, indexData, 0, left.indexData.length);
+		int offset = left.indexData.length;
+		if (joinIndices > 0) {
+			indexData[offset] = left.indexData[(left.indexData.length - 1)];
+			indexData[(offset + 1)] = right.indexData[0] + left.vertexCount;
+			offset += joinIndices;
+		}
+		for (int i = 0; i < right.indexData.length; i++) {
+			indexData[(offset + i)] = right.indexData[i] + left.vertexCount;
+		}
+
+		indexOffset[0] = 0;
+		indexCount[0] = left.indexData.length;
+		indexOffset[1] = offset;
+		indexCount[1] = right.indexData.length;
+
+		return new DistortionMeshBuilder.Mesh(vertexData, left.vertexCount + right.vertexCount, indexData, left.mode, Math.max(left.maxErrorPx, right.maxErrorPx));
+	}
+
+	public static ByteBuffer encodeVertices(DistortionMeshBuilder.Mesh mesh)
+	{
+		if (mesh.vertexCount > MAX_VERTICES) {
+			throw new IllegalArgumentException("Too many vertices for 16-bit indices: " + mesh.vertexCount);
+		}
+
+		ByteBuffer buffer = ByteBuffer.allocateDirect(mesh.vertexCount * VERTEX_STRIDE_BYTES).order(ByteOrder.nativeOrder());
+		float[] vertexData = mesh.vertexData;
+
+		for (int vertex = 0; vertex < mesh.vertexCount; vertex++) {
+			int offset = vertex * DistortionMeshBuilder.COMPONENTS_PER_VERT;
+			buffer.putShort(toSignedNormalized(vertexData[(offset + 0)]));
+			buffer.putShort(toSignedNormalized(vertexData[(offset + 1)]));
+			buffer.putShort(toUnsignedNormalized(vertexData[(offset + 3)]));
+			buffer.putShort(toUnsignedNormalized(vertexData[(offset + 4)]));
+			buffer.put((byte)Math.round(clamp(vertexData[(offset + 2)], 0.0F, 1.0F) * 255.0F));
+			buffer.put((byte)0);
+			buffer.putShort((short)0);
+		}
+
+		buffer.position(0);
+		return buffer;
+	}
+
+	public static ByteBuffer encodeIndices(DistortionMeshBuilder.Mesh mesh)
+	{
+		ByteBuffer buffer = ByteBuffer.allocateDirect(mesh.indexData.length * BYTES_PER_INDEX).order(ByteOrder.nativeOrder());
+
+		for (int index : mesh.indexData) {
+			buffer.putShort((short)index);
+		}
+
+		buffer.position(0);
+		return buffer;
+	}
+
+	/**
+	 * Returns whether the encoded triangles in the given index range cover the whole screen half between minX and maxX, so that nothing under them needs clearing.
+	 * The half is covered when no boundary edge of the mesh, one used by a single triangle, crosses its interior and the center of the half lies in a triangle. This assumes the mesh does not fold over itself, which holds for distortion meshes.
+	 */
+	public static boolean coversScreenHalf(ByteBuffer vertexData, ByteBuffer indexData, int mode, int indexOffset, int indexCount, float minX, float maxX)
+	{
+		boolean strip = mode == 5;
+		int triangleCount = strip ? Math.max(0, indexCount - 2) : indexCount / 3;
+		int stride = strip ? 1 : 3;
+		float centerX = (minX + maxX) / 2.0F;
+		boolean centerCovered = false;
+		HashMap<Long, Integer> edgeUses = new HashMap<Long, Integer>();
+		int[] vertices = new int[3];
+
+		for (int triangle = 0; triangle < triangleCount; triangle++) {
+			for (int i = 0; i < 3; i++) {
+				vertices[i] = indexData.getShort((indexOffset + triangle * stride + i) * BYTES_PER_INDEX) & 0xFFFF;
+			}
+			if ((vertices[0] == vertices[1]) || (vertices[1] == vertices[2]) || (vertices[0] == vertices[2])) {
+				continue;
+			}
+
+			for (int i = 0; i < 3; i++) {
+				Long edge = Long.valueOf(getEdgeKey(vertices[i], vertices[((i + 1) % 3)]));
+				Integer uses = edgeUses.get(edge);
+				edgeUses.put(edge, Integer.valueOf(uses != null ? uses.intValue() + 1 : 1));
+			}
+			if ((!centerCovered) && (containsPoint(vertexData, vertices, centerX, 0.0F))) {
+				centerCovered = true;
+			}
+		}
+		if (!centerCovered) {
+			return false;
+		}
+
+		for (Map.Entry<Long, Integer> entry : edgeUses.entrySet()) {
+			if (entry.getValue().intValue() != 1) {
+				continue;
+			}
+			long edge = entry.getKey().longValue();
+			int a = (int)(edge >>> 32);
+			int b = (int)edge;
+			if (crossesInterior(getX(vertexData, a), getY(vertexData, a), getX(vertexData, b), getY(vertexData, b), minX, maxX)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static long getEdgeKey(int a, int b)
+	{
+		return a < b ? ((long)a << 32) | b : ((long)b << 32) | a;
+	}
+
+	private static float getX(ByteBuffer vertexData, int vertex)
+	{
+		return Math.max(-1.0F, vertexData.getShort(vertex * VERTEX_STRIDE_BYTES + POSITION_OFFSET_BYTES) / 32767.0F);
+	}
+
+	private static float getY(ByteBuffer vertexData, int vertex)
+	{
+		return Math.max(-1.0F, vertexData.getShort(vertex * VERTEX_STRIDE_BYTES + POSITION_OFFSET_BYTES + 2) / 32767.0F);
+	}
+
+	private static boolean containsPoint(ByteBuffer vertexData, int[] vertices, float x, float y)
+	{
+		float ax = getX(vertexData, vertices[0]);
+		float ay = getY(vertexData, vertices[0]);
+		float bx = getX(vertexData, vertices[1]);
+		float by = getY(vertexData, vertices[1]);
+		float cx = getX(vertexData, vertices[2]);
+		float cy = getY(vertexData, vertices[2]);
+
+		float d0 = (bx - ax) * (y - ay) - (by - ay) * (x - ax);
+		float d1 = (cx - bx) * (y - by) - (cy - by) * (x - bx);
+		float d2 = (ax - cx) * (y - cy) - (ay - cy) * (x - cx);
+		return ((d0 >= 0.0F) && (d1 >= 0.0F) && (d2 >= 0.0F)) || ((d0 <= 0.0F) && (d1 <= 0.0F) && (d2 <= 0.0F));
+	}
+
+	/** Returns whether a segment passes through the interior of the rectangle between minX and maxX and the bottom and top of the screen, rather than missing or only touching it. */
+	private static boolean crossesInterior(float x0, float y0, float x1, float y1, float minX, float maxX)
+	{
+		float dx = x1 - x0;
+		float dy = y1 - y0;
+		float[] p = { -dx, dx, -dy, dy };
+		float[] q = { x0 - minX, maxX - x0, y0 + 1.0F, 1.0F - y0 };
+		float t0 = 0.0F;
+		float t1 = 1.0F;
+		for (int i = 0; i < 4; i++) {
+			if (p[i] == 0.0F) {
+				if (q[i] < 0.0F) {
+					return false;
+				}
+			}
+			else {
+				float t = q[i] / p[i];
+				if (p[i] < 0.0F) {
+					t0 = Math.max(t0, t);
+				}
+				else {
+					t1 = Math.min(t1, t);
+				}
+			}
+		}
+		if (t0 >= t1) {
+			return false;
+		}
+
+		float x = x0 + dx * (t0 + t1) / 2.0F;
+		float y = y0 + dy * (t0 + t1) / 2.0F;
+		return (x > minX) && (x < maxX) && (y > -1.0F) && (y < 1.0F);
+	}
+
+	private static short toSignedNormalized(float value)
+	{
+		return (short)Math.round(clamp(value, -1.0F, 1.0F) * 32767.0F);
+	}
+
+	private static short toUnsignedNormalized(float value)
+	{
+		return (short)Math.round(clamp(value, 0.0F, 1.0F) * 65535.0F);
+	}
+
+	private static float clamp(float val, float min, float max)
+	{
+		return Math.max(min, Math.min(max, val));
+	}
+
+	static int[] optimizeTriangleOrder(int[] indices, int vertexCount, int cacheSize)
+	{
+		int triangleCount = indices.length / 3;
+
+		int[] adjacencyOffset = new int[vertexCount + 1];
+		for (int index : indices) {
+			adjacencyOffset[(index + 1)]++;
+		}
+		for (int vertex = 0; vertex < vertexCount; vertex++) {
+			adjacencyOffset[(vertex + 1)] += adjacencyOffset[vertex];
+		}
+
+		int[] liveTriangles = new int[vertexCount];
+		int[] adjacency = new int[indices.length];
+		for (int i = 0; i < indices.length; i++) {
+			int vertex = indices[i];
+			adjacency[(adjacencyOffset[vertex] + liveTriangles[vertex]++)] = i / 3;
+		}
+
+		int[] cacheTimestamp = new int[vertexCount];
+		boolean[] emitted = new boolean[triangleCount];
+		int[] deadEnd = new int[indices.length];
+		int deadEndSize = 0;
+		int[] candidates = new int[indices.length];
+		int[] output = new int[indices.length];
+		int outputSize = 0;
+
+		int timestamp = cacheSize + 1;
+		int cursor = 1;
+		int fanningVertex = vertexCount > 0 ? 0 : -1;
+
+		while (fanningVertex >= 0) {
+			int candidateCount = 0;
+
+			for (int i = adjacencyOffset[fanningVertex]; i < adjacencyOffset[(fanningVertex + 1)]; i++) {
+				int triangle = adjacency[i];
+				if (emitted[triangle]) {
+					continue;
+				}
+
+				for (int corner = 0; corner < 3; corner++) {
+					int vertex = indices[(triangle * 3 + corner)];
+					output[(outputSize++)] = vertex;
+					deadEnd[(deadEndSize++)] = vertex;
+					candidates[(candidateCount++)] = vertex;
+					liveTriangles[vertex]--;
+
+					if (timestamp - cacheTimestamp[vertex] > cacheSize) {
+						cacheTimestamp[vertex] = timestamp++;
+					}
+				}
+				emitted[triangle] = true;
+			}
+
+			int best = -1;
+			int bestPriority = -1;
+			for (int i = 0; i < candidateCount; i++) {
+				int vertex = candidates[i];
+				if (liveTriangles[vertex] <= 0) {
+					continue;
+				}
+
+				int priority = 0;
+				if (timestamp - cacheTimestamp[vertex] + 2 * liveTriangles[vertex] <= cacheSize) {
+					priority = timestamp - cacheTimestamp[vertex];
+				}
+				if (priority > bestPriority) {
+					bestPriority = priority;
+					best = vertex;
+				}
+			}
+
+			while ((best == -1) && (deadEndSize > 0)) {
+				int vertex = deadEnd[(--deadEndSize)];
+				if (liveTriangles[vertex] > 0) {
+					best = vertex;
+				}
+			}
+
+			while ((best == -1) && (cursor < vertexCount)) {
+				if (liveTriangles[cursor] > 0) {
+					best = cursor;
+				}
+				cursor++;
+			}
+
+			fanningVertex = best;
+		}
+
+		return Arrays.copyOf(output, outputSize);
+	}
+}
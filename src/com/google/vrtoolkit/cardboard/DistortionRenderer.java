@@ -16,11 +16,17 @@
 package com.google.vrtoolkit.cardboard;
 
 import android.opengl.GLES20;
+import android.opengl.GLES30;
+import android.opengl.Matrix;
 import android.util.Log;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.nio.FloatBuffer;
-import java.nio.IntBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicReference;
 
 /** 
  * Encapsulates the rendering operations to correct lens distortion. 
@@ -28,81 +34,331 @@ import java.nio.IntBuffer;
 public class DistortionRenderer
 {
 	private static final String TAG = "DistortionRenderer";
+	public static final int MAX_QUAD_LAYERS = 4;
+	private static final int VIDEO_TEXTURE_UNIT = MAX_QUAD_LAYERS + 1;
+	private static final int BACKGROUND_EYE_BUFFER = 0;
+	private static final int BACKGROUND_VIDEO = 1;
+	private static final int BACKGROUND_VIDEO_UNDER_EYE_BUFFER = 2;
 	private int mTextureId;
-	private int mRenderbufferId;
 	private int mFramebufferId;
-	private IntBuffer mOriginalFramebufferId;
-	private IntBuffer mCullFaceEnabled;
-	private IntBuffer mScissorTestEnabled;
-	private IntBuffer mViewport;
+	private int mResolveFramebufferId;
+	private final RenderTargetPool mRenderTargetPool;
+	private RenderTargetPool.RenderTarget mRenderTarget;
+	private int mOriginalFramebufferId;
+	private boolean mEyeFramebufferBound;
+	private boolean mInvalidateSupported;
+	private int[] mEyeDiscardAttachments;
+	private final int[] mWindowDiscardAttachments;
+	private final int[] mFramebufferDiscardAttachments;
+	private final int[] mMultisampleDiscardAttachments;
+	private final GLStateTracker mGLState;
+	private final GLCommandCounter mGLCommandCounter;
 	private float mResolutionScale;
-	private DistortionMesh mLeftEyeDistortionMesh;
-	private DistortionMesh mRightEyeDistortionMesh;
+	private DistortionMesh mDistortionMesh;
+	private DistortionLookup mDistortionLookup;
 	private HeadMountedDisplay mHmd;
 	private FieldOfView mLeftEyeFov;
 	private FieldOfView mRightEyeFov;
+	private EyeRegionLayout[] mRegionLayouts;
 	private ProgramHolder mProgramHolder;
+	private ProgramHolder mLookupProgramHolder;
+	private ProgramHolder mReprojectionProgramHolder;
+	private ProgramHolder mHiddenAreaProgramHolder;
+	private HiddenAreaMask mHiddenAreaMask;
+	private volatile float[][] mHiddenAreaVertices;
+	private volatile float mHiddenAreaFraction;
+	private volatile boolean mHiddenAreaMaskEnabled;
+	private final ArrayList<QuadLayer> mQuadLayers;
+	private final HashMap<Integer, ProgramHolder> mCompositorProgramHolders;
+	private final float[] mLayerHeadView;
+	private final float[][] mLayerEyeTranslate;
+	private final float[] mLayerEyeView;
+	private final float[] mLayerScratch;
+	private final float[] mLayerTransforms;
+	private final float[] mLayerOpacities;
+	private final int[] mLayerTextureIds;
+	private final int[] mLayerTextureUnits;
+	private final float[][] mScreenToLens;
+	private final float[] mLayerDistortion;
+	private int mActiveLayerCount;
+	private int mHalfCount;
+	private volatile VideoLayer mVideoLayer;
+	private final float[] mVideoRotation;
+	private final float[] mVideoTextureTransform;
+	private final float[][] mVideoRects;
+	private int mVideoTextureId;
+	private int mVideoProjection;
+	private int mLookupInternalFormat;
+	private int mLookupType;
+	private volatile int mDistortionMode;
+	private volatile int mActiveDistortionMode;
+	private volatile int mColorFormat;
+	private volatile int mDepthFormat;
+	private volatile int mActiveColorFormat;
+	private volatile int mActiveDepthFormat;
+	private volatile int mSampleCount;
+	private volatile int mActiveSampleCount;
+	private RenderPlanCache mRenderPlanCache;
+	private ProgramBinaryCache mProgramBinaryCache;
+	private volatile long mProgramSetupNanos;
+	private final RenderPlan.Options mPlanOptions;
+	private volatile int mMeshVertexCount;
+	private volatile int mEyeBufferPixelCount;
+	private volatile int mRequestGeneration;
+	private volatile int mActiveGeneration;
+	private final AtomicReference<ProjectionRequest> mPendingRequest;
+	private ExecutorService mWorker;
+	private volatile float mMeshMaxErrorPx;
+	private volatile float mMeshCulledFraction;
+	private volatile boolean mReprojectionEnabled;
+	private final float[] mReprojection;
+	private final float[][] mTanAngleFromUv;
 	private final String VERTEX_SHADER = "attribute vec2 aPosition;\nattribute float aVignette;\nattribute vec2 aTextureCoord;\nvarying vec2 vTextureCoord;\nvarying float vVignette;\nuniform float uTextureCoordScale;\nvoid main() {\n    gl_Position = vec4(aPosition, 0.0, 1.0);\n    vTextureCoord = aTextureCoord.xy * uTextureCoordScale;\n    vVignette = aVignette;\n}\n";
 	private final String FRAGMENT_SHADER = "precision mediump float;\nvarying vec2 vTextureCoord;\nvarying float vVignette;\nuniform sampler2D uTextureSampler;\nvoid main() {\n    gl_FragColor = vVignette * texture2D(uTextureSampler, vTextureCoord);\n}\n";
+	private final String LOOKUP_VERTEX_SHADER = "attribute vec2 aPosition;\nattribute vec2 aTextureCoord;\nvarying vec2 vScreenCoord;\nvarying vec2 vLookupCoord;\nvoid main() {\n    gl_Position = vec4(aPosition, 0.0, 1.0);\n    vScreenCoord = aPosition * 0.5 + 0.5;\n    vLookupCoord = aTextureCoord;\n}\n";
+	private final String LOOKUP_FRAGMENT_SHADER = "#ifdef GL_FRAGMENT_PRECISION_HIGH\nprecision highp float;\n#else\nprecision mediump float;\n#endif\nvarying vec2 vScreenCoord;\nvarying vec2 vLookupCoord;\nuniform float uTextureCoordScale;\nuniform sampler2D uTextureSampler;\nuniform sampler2D uLookupSampler;\nvoid main() {\n    vec3 lookup = texture2D(uLookupSampler, vLookupCoord).rgb;\n    gl_FragColor = lookup.b * texture2D(uTextureSampler, (vScreenCoord + lookup.rg) * uTextureCoordScale);\n}\n";
+	private final String HIDDEN_AREA_VERTEX_SHADER = "attribute vec2 aPosition;\nuniform vec4 uTanAngleToNdc;\nvoid main() {\n    gl_Position = vec4(aPosition * uTanAngleToNdc.xy + uTanAngleToNdc.zw, -1.0, 1.0);\n}\n";
+	private final String HIDDEN_AREA_FRAGMENT_SHADER = "precision mediump float;\nvoid main() {\n    gl_FragColor = vec4(0.0);\n}\n";
+	private final String VIDEO_VERTEX_SHADER = "attribute vec2 aPosition;\nattribute float aVignette;\nvarying float vVignette;\nvoid main() {\n    gl_Position = vec4(aPosition, 0.0, 1.0);\n    vVignette = aVignette;\n}\n";
+	private final String REPROJECTION_VERTEX_SHADER = "attribute vec2 aPosition;\nattribute float aVignette;\nattribute vec2 aTextureCoord;\nvarying vec2 vTextureCoord;\nvarying float vVignette;\nuniform float uTextureCoordScale;\nuniform mat3 uReprojection;\nuniform vec4 uTanAngleFromUv;\nvoid main() {\n    gl_Position = vec4(aPosition, 0.0, 1.0);\n    vec3 ray = uReprojection * vec3(aTextureCoord * uTanAngleFromUv.xy + uTanAngleFromUv.zw, -1.0);\n    vTextureCoord = ((ray.xy / -ray.z - uTanAngleFromUv.zw) / uTanAngleFromUv.xy) * uTextureCoordScale;\n    vVignette = aVignette;\n}\n";
 
 	public DistortionRenderer()
 	{
 		mTextureId = -1;
-		mRenderbufferId = -1;
 		mFramebufferId = -1;
-		mOriginalFramebufferId = IntBuffer.allocate(1);
-		mCullFaceEnabled = IntBuffer.allocate(1);
-		mScissorTestEnabled = IntBuffer.allocate(1);
-		mViewport = IntBuffer.allocate(4);
+		mResolveFramebufferId = -1;
+		mRenderTargetPool = new RenderTargetPool();
+		mGLState = new GLStateTracker();
+		mGLCommandCounter = new GLCommandCounter();
+		mWindowDiscardAttachments = new int[] { 6144 };
+		mFramebufferDiscardAttachments = new int[] { 36064 };
+		mMultisampleDiscardAttachments = new int[] { 36064 };
 
 		mResolutionScale = 1.0F;
+		mRenderPlanCache = new RenderPlanCache(null);
+		mPlanOptions = new RenderPlan.Options();
+		mPendingRequest = new AtomicReference<ProjectionRequest>();
+		mReprojection = new float[] { 1.0F, 0.0F, 0.0F, 0.0F, 1.0F, 0.0F, 0.0F, 0.0F, 1.0F };
+		mTanAngleFromUv = new float[2][4];
+		mColorFormat = ColorFormat.RGB565;
+		mDepthFormat = DepthFormat.DEPTH16;
+		mSampleCount = 1;
+		mActiveSampleCount = 1;
+
+		mQuadLayers = new ArrayList<QuadLayer>();
+		mCompositorProgramHolders = new HashMap<Integer, ProgramHolder>();
+		mLayerHeadView = new float[16];
+		mLayerEyeTranslate = new float[2][16];
+		mLayerEyeView = new float[16];
+		mLayerScratch = new float[16];
+		mLayerTransforms = new float[2 * MAX_QUAD_LAYERS * 9];
+		mLayerOpacities = new float[2 * MAX_QUAD_LAYERS];
+		mLayerTextureIds = new int[MAX_QUAD_LAYERS];
+		mLayerTextureUnits = new int[MAX_QUAD_LAYERS];
+		for (int i = 0; i < MAX_QUAD_LAYERS; i++) {
+			mLayerTextureUnits[i] = (i + 1);
+		}
+		mScreenToLens = new float[2][4];
+		mLayerDistortion = new float[3];
+		mVideoRotation = new float[9];
+		mVideoTextureTransform = new float[16];
+		mVideoRects = new float[2][4];
+		Matrix.setIdentityM(mLayerHeadView, 0);
+		Matrix.setIdentityM(mLayerEyeTranslate[0], 0);
+		Matrix.setIdentityM(mLayerEyeTranslate[1], 0);
 	}
 
 	public void beforeDrawFrame()
 	{
-		GLES20.glGetIntegerv(36006, mOriginalFramebufferId);
-		GLES20.glBindFramebuffer(36160, mFramebufferId);
+		mGLState.validateFramebufferBinding();
+		mOriginalFramebufferId = mGLState.getFramebufferBinding();
+		mGLState.bindFramebuffer(mFramebufferId);
+		mEyeFramebufferBound = true;
+		mRenderTargetPool.evictIdle();
 	}
 
 	public void afterDrawFrame()
 	{
-		GLES20.glBindFramebuffer(36160, mOriginalFramebufferId.array()[0]);
-		GLES20.glViewport(0, 0, mHmd.getScreen().getWidth(), mHmd.getScreen().getHeight());
+		afterDrawFrame(EyeParams.Eye.MONOCULAR);
+	}
+
+	/**
+	 * Runs the distortion pass for one eye, leaving the other half of the screen untouched, or for both eyes with EyeParams.Eye.MONOCULAR.
+	 * Drawing the halves separately lets a single buffered surface be updated behind the display scanout. The eye buffers are resolved and discarded by the first call after they were rendered.
+	 */
+	public void afterDrawFrame(int eye)
+	{
+		boolean resolve = (mEyeFramebufferBound) && (mResolveFramebufferId != -1) && (!isVideoLayerReplacingEyeBuffers());
+		if ((mEyeFramebufferBound) && (mInvalidateSupported) && (mEyeDiscardAttachments != null)) {
+			GLES30.glInvalidateFramebuffer(36160, mEyeDiscardAttachments.length, mEyeDiscardAttachments, 0);
+			mGLCommandCounter.countInvalidate(mRenderTarget.getDepthMemoryFootprint());
+		}
+		mEyeFramebufferBound = false;
 
-		GLES20.glGetIntegerv(2978, mViewport);
-		GLES20.glGetIntegerv(2884, mCullFaceEnabled);
-		GLES20.glGetIntegerv(3089, mScissorTestEnabled);
-		GLES20.glDisable(3089);
-		GLES20.glDisable(2884);
+		mGLState.bindFramebuffer(mOriginalFramebufferId);
+		mGLState.setViewport(0, 0, mHmd.getScreen().getWidth(), mHmd.getScreen().getHeight());
 
-		GLES20.glClearColor(0.0F, 0.0F, 0.0F, 1.0F);
-		GLES20.glClear(16640);
+		mGLState.syncCapabilities();
+		boolean cullFaceEnabled = mGLState.isEnabled(2884);
+		boolean scissorTestEnabled = mGLState.isEnabled(3089);
+		boolean depthTestEnabled = mGLState.isEnabled(2929);
+		mGLState.setEnabled(3089, false);
+		mGLState.setEnabled(2884, false);
+		mGLState.setEnabled(2929, false);
 
-		GLES20.glUseProgram(mProgramHolder.program);
+		if (resolve) {
+			resolveEyeBuffer();
+		}
 
-		GLES20.glEnable(3089);
-		GLES20.glScissor(0, 0, mHmd.getScreen().getWidth() / 2, mHmd.getScreen().getHeight());
+		boolean invalidateColor = (mInvalidateSupported) && (eye == EyeParams.Eye.MONOCULAR) && (isScreenCovered(eye));
+		int clearMask = invalidateColor ? 0 : 16384;
+		if (mGLState.getDepthBits() > 0) {
+			clearMask |= 256;
+		}
+		if (invalidateColor) {
+			int[] attachments = mOriginalFramebufferId == 0 ? mWindowDiscardAttachments : mFramebufferDiscardAttachments;
+			GLES30.glInvalidateFramebuffer(36160, attachments.length, attachments, 0);
+			mGLCommandCounter.countInvalidate((long)mHmd.getScreen().getWidth() * mHmd.getScreen().getHeight() * ((mGLState.getColorBits() + 7) / 8));
+			mGLCommandCounter.countElidedClear();
+		}
 
-		renderDistortionMesh(mLeftEyeDistortionMesh);
+		if (clearMask != 0) {
+			GLES20.glClearColor(0.0F, 0.0F, 0.0F, 1.0F);
+			if (eye != EyeParams.Eye.MONOCULAR) {
+				int halfWidth = mHmd.getScreen().getWidth() / 2;
+				mGLState.setEnabled(3089, true);
+				GLES20.glScissor(eye == EyeParams.Eye.LEFT ? 0 : halfWidth, 0, halfWidth, mHmd.getScreen().getHeight());
+				GLES20.glClear(clearMask);
+				mGLState.setEnabled(3089, false);
+			}
+			else {
+				GLES20.glClear(clearMask);
+			}
+			mGLCommandCounter.countClear();
+		}
 
-		GLES20.glScissor(mHmd.getScreen().getWidth() / 2, 0, mHmd.getScreen().getWidth() / 2, mHmd.getScreen().getHeight());
+		if (mDistortionLookup != null) {
+			GLES20.glUseProgram(mLookupProgramHolder.program);
 
-		renderDistortionMesh(mRightEyeDistortionMesh);
+			renderDistortionLookup(mDistortionLookup, eye);
 
-		GLES20.glDisableVertexAttribArray(mProgramHolder.aPosition);
-		GLES20.glDisableVertexAttribArray(mProgramHolder.aVignette);
-		GLES20.glDisableVertexAttribArray(mProgramHolder.aTextureCoord);
+			GLES20.glDisableVertexAttribArray(mLookupProgramHolder.aPosition);
+			GLES20.glDisableVertexAttribArray(mLookupProgramHolder.aTextureCoord);
+		}
+		else {
+			ProgramHolder holder = mProgramHolder;
+			int background = prepareVideoLayer();
+			mActiveLayerCount = prepareQuadLayers();
+			if ((mActiveLayerCount > 0) || (background != BACKGROUND_EYE_BUFFER)) {
+				holder = getCompositorProgramHolder((mReprojectionEnabled) && (background != BACKGROUND_VIDEO), mActiveLayerCount, background);
+			}
+			else if (mReprojectionEnabled) {
+				if (mReprojectionProgramHolder == null) {
+					mReprojectionProgramHolder = createReprojectionProgramHolder();
+				}
+				holder = mReprojectionProgramHolder;
+			}
+			GLES20.glUseProgram(holder.program);
+
+			renderDistortionMesh(mDistortionMesh, holder, eye);
+
+			GLES20.glDisableVertexAttribArray(holder.aPosition);
+			GLES20.glDisableVertexAttribArray(holder.aVignette);
+			if (holder.aTextureCoord != -1) {
+				GLES20.glDisableVertexAttribArray(holder.aTextureCoord);
+			}
+		}
 		GLES20.glUseProgram(0);
 		GLES20.glBindBuffer(34962, 0);
 		GLES20.glBindBuffer(34963, 0);
-		GLES20.glDisable(3089);
-		if (mCullFaceEnabled.array()[0] == 1) {
-			GLES20.glEnable(2884);
+		if (cullFaceEnabled) {
+			mGLState.setEnabled(2884, true);
 		}
-		if (mScissorTestEnabled.array()[0] == 1) {
-			GLES20.glEnable(3089);
+		if (scissorTestEnabled) {
+			mGLState.setEnabled(3089, true);
 		}
-		GLES20.glViewport(mViewport.array()[0], mViewport.array()[1], mViewport.array()[2], mViewport.array()[3]);
+		if (depthTestEnabled) {
+			mGLState.setEnabled(2929, true);
+		}
+		if (eye != EyeParams.Eye.MONOCULAR) {
+			mHalfCount += 1;
+		}
+		if ((eye == EyeParams.Eye.MONOCULAR) || (mHalfCount == 2)) {
+			mHalfCount = 0;
+			mGLCommandCounter.countFrame();
+		}
+	}
+
+	/**
+	 * Returns whether the distortion pass writes every pixel of the screen halves drawn for an eye, or of both halves for EyeParams.Eye.MONOCULAR.
+	 * The lookup quads always cover their half, while the mesh usually leaves its culled black border uncovered.
+	 * Covering the screen alone does not allow skipping the color clear: without an invalidation in its place, tiled GPUs would load the previous contents.
+	 */
+	private boolean isScreenCovered(int eye)
+	{
+		if (mDistortionLookup != null) {
+			return true;
+		}
+		if (mDistortionMesh == null) {
+			return false;
+		}
+		if (eye == EyeParams.Eye.MONOCULAR) {
+			return (mDistortionMesh.mEyeCovered[0]) && (mDistortionMesh.mEyeCovered[1]);
+		}
+		return mDistortionMesh.mEyeCovered[(eye == EyeParams.Eye.LEFT ? 0 : 1)];
+	}
+
+	/**
+	 * Resolves the multisampled eye buffer into the eye texture, then discards the samples.
+	 * Only the area rendered at the current resolution scale is resolved, and discarding the samples right away lets tiled GPUs skip writing them back to memory.
+	 */
+	private void resolveEyeBuffer()
+	{
+		int width = Math.min(mRenderTarget.width, (int)Math.ceil(mRenderTarget.width * mResolutionScale));
+		int height = Math.min(mRenderTarget.height, (int)Math.ceil(mRenderTarget.height * mResolutionScale));
+
+		GLES30.glBindFramebuffer(36008, mFramebufferId);
+		GLES30.glBindFramebuffer(36009, mResolveFramebufferId);
+		GLES30.glBlitFramebuffer(0, 0, width, height, 0, 0, width, height, 16384, 9728);
+		GLES30.glInvalidateFramebuffer(36008, mMultisampleDiscardAttachments.length, mMultisampleDiscardAttachments, 0);
+		mGLCommandCounter.countInvalidate(mRenderTarget.getMultisampleColorMemoryFootprint());
+
+		mGLState.bindFramebuffer(mOriginalFramebufferId);
+	}
+
+	public void invalidateGLState()
+	{
+		mGLState.invalidate();
+	}
+
+	public void setGLStateValidationEnabled(boolean enabled)
+	{
+		mGLState.setValidationEnabled(enabled);
+	}
+
+	public boolean getGLStateValidationEnabled()
+	{
+		return mGLState.isValidationEnabled();
+	}
+
+	public void setRenderTargetIdleTimeout(long idleTimeoutMs)
+	{
+		mRenderTargetPool.setIdleTimeout(idleTimeoutMs);
+	}
+
+	public long getRenderTargetIdleTimeout()
+	{
+		return mRenderTargetPool.getIdleTimeout();
+	}
+
+	public long getRenderTargetMemoryFootprint()
+	{
+		return mRenderTargetPool.getMemoryFootprint();
+	}
+
+	public GLCommandCounter getGLCommandCounter()
+	{
+		return mGLCommandCounter;
 	}
 
 	public void setResolutionScale(float scale)
@@ -110,170 +366,794 @@ public class DistortionRenderer
 		mResolutionScale = scale;
 	}
 
-	public void onProjectionChanged(HeadMountedDisplay hmd, EyeParams leftEye, EyeParams rightEye, float zNear, float zFar)
+	public void setReprojectionEnabled(boolean enabled)
 	{
-		mHmd = new HeadMountedDisplay(hmd);
-		mLeftEyeFov = new FieldOfView(leftEye.getFov());
-		mRightEyeFov = new FieldOfView(rightEye.getFov());
+		mReprojectionEnabled = enabled;
+	}
 
-		ScreenParams screen = mHmd.getScreen();
-		CardboardDeviceParams cdp = mHmd.getCardboard();
+	public boolean getReprojectionEnabled()
+	{
+		return mReprojectionEnabled;
+	}
 
+	/**
+	 * Sets the rotation applied to the eye buffers in the next distortion pass.
+	 *
+	 * The eye buffers were rendered with renderHeadView; the distortion pass shows them as seen from latestHeadView. Only the rotation parts of both matrices are used.
+	 */
+	public void setReprojectionPoses(float[] renderHeadView, float[] latestHeadView)
+	{
+		for (int row = 0; row < 3; row++) {
+			for (int col = 0; col < 3; col++) {
+				mReprojection[(col * 3 + row)] = (renderHeadView[row] * latestHeadView[col] + renderHeadView[(4 + row)] * latestHeadView[(4 + col)] + renderHeadView[(8 + row)] * latestHeadView[(8 + col)]);
+			}
+		}
+	}
+
+	public void onProjectionChanged(HeadMountedDisplay hmd, EyeParams leftEye, EyeParams rightEye, float zNear, float zFar)
+	{
 		if (mProgramHolder == null) {
 			mProgramHolder = createProgramHolder();
 		}
 
-		EyeViewport leftEyeViewport = initViewportForEye(leftEye, 0.0F);
-		EyeViewport rightEyeViewport = initViewportForEye(rightEye, leftEyeViewport.width);
+		boolean useLookup = (mDistortionMode == DistortionMode.LOOKUP_TEXTURE) && (isLookupTextureSupported());
+		final ProjectionRequest request = new ProjectionRequest(++mRequestGeneration, hmd, mPlanOptions, useLookup, leftEye, rightEye, zNear, zFar);
+		if ((useLookup) || (mReprojectionEnabled)) {
+			request.options.peripheryScale = 0.0F;
+		}
 
-		leftEye.getFov().toPerspectiveMatrix(zNear, zFar, leftEye.getTransform().getPerspective(), 0);
+		request.plan = mRenderPlanCache.peek(RenderPlan.computeFingerprint(request.hmd, request.options));
+		if ((mDistortionMesh == null) || ((request.plan != null) && (!useLookup))) {
+			request.prepare(mRenderPlanCache);
+			applyProjection(request);
+			return;
+		}
 
-		rightEye.getFov().toPerspectiveMatrix(zNear, zFar, rightEye.getTransform().getPerspective(), 0);
+		if (mWorker == null) {
+			mWorker = Executors.newSingleThreadExecutor();
+		}
+		mWorker.execute(new Runnable()
+		{
+			public void run() {
+				if (request.generation != mRequestGeneration) {
+					return;
+				}
 
-		float textureWidthM = leftEyeViewport.width + rightEyeViewport.width;
-		float textureHeightM = Math.max(leftEyeViewport.height, rightEyeViewport.height);
-		float xPxPerM = screen.getWidth() / screen.getWidthMeters();
-		float yPxPerM = screen.getHeight() / screen.getHeightMeters();
-		int textureWidthPx = Math.round(textureWidthM * xPxPerM);
-		int textureHeightPx = Math.round(textureHeightM * yPxPerM);
+				try {
+					request.prepare(mRenderPlanCache);
+					mPendingRequest.set(request);
+				} catch (RuntimeException e) {
+					Log.e(TAG, "Could not prepare render plan: " + e.toString());
+				}
+			}
+		});
+	}
 
-		float xEyeOffsetMScreen = screen.getWidthMeters() / 2.0F - cdp.getInterpupillaryDistance() / 2.0F;
-		float yEyeOffsetMScreen = cdp.getVerticalDistanceToLensCenter() - screen.getBorderSizeMeters();
+	public boolean swapPendingProjection()
+	{
+		ProjectionRequest request = mPendingRequest.getAndSet(null);
+		if ((request != null) && (request.generation == mRequestGeneration)) {
+			applyProjection(request);
+			return true;
+		}
+		return false;
+	}
 
-		mLeftEyeDistortionMesh = createDistortionMesh(leftEye, leftEyeViewport, textureWidthM, textureHeightM, xEyeOffsetMScreen, yEyeOffsetMScreen);
+	public boolean isProjectionPending()
+	{
+		return mActiveGeneration != mRequestGeneration;
+	}
 
-		xEyeOffsetMScreen = screen.getWidthMeters() - xEyeOffsetMScreen;
-		mRightEyeDistortionMesh = createDistortionMesh(rightEye, rightEyeViewport, textureWidthM, textureHeightM, xEyeOffsetMScreen, yEyeOffsetMScreen);
+	public void shutdown()
+	{
+		if (mWorker != null) {
+			mWorker.shutdownNow();
+			mWorker = null;
+		}
+		mPendingRequest.set(null);
 
-		setupRenderTextureAndRenderbuffer(textureWidthPx, textureHeightPx);
+		mRenderTargetPool.clear();
+		mRenderTarget = null;
 	}
 
-	private EyeViewport initViewportForEye(EyeParams eye, float xOffsetM)
+	private void applyProjection(ProjectionRequest request)
 	{
-		ScreenParams screen = mHmd.getScreen();
-		CardboardDeviceParams cdp = mHmd.getCardboard();
+		mHmd = request.hmd;
+		mActiveGeneration = request.generation;
+		mGLState.invalidate();
+
+		RenderPlan plan = request.plan;
+		EyeParams leftEye = request.leftEye;
+		EyeParams rightEye = request.rightEye;
+
+		leftEye.getFov().setLeft(plan.leftEyeFov.getLeft());
+		leftEye.getFov().setRight(plan.leftEyeFov.getRight());
+		leftEye.getFov().setBottom(plan.leftEyeFov.getBottom());
+		leftEye.getFov().setTop(plan.leftEyeFov.getTop());
+		rightEye.getFov().setLeft(plan.rightEyeFov.getLeft());
+		rightEye.getFov().setRight(plan.rightEyeFov.getRight());
+		rightEye.getFov().setBottom(plan.rightEyeFov.getBottom());
+		rightEye.getFov().setTop(plan.rightEyeFov.getTop());
+		mLeftEyeFov = new FieldOfView(plan.leftEyeFov);
+		mRightEyeFov = new FieldOfView(plan.rightEyeFov);
+		mRegionLayouts = plan.regionLayouts;
+
+		Viewport leftViewport = plan.leftEyeViewportPx;
+		Viewport rightViewport = plan.rightEyeViewportPx;
+		leftEye.getViewport().setViewport(leftViewport.x, leftViewport.y, leftViewport.width, leftViewport.height);
+		rightEye.getViewport().setViewport(rightViewport.x, rightViewport.y, rightViewport.width, rightViewport.height);
+
+		leftEye.getFov().toPerspectiveMatrix(request.zNear, request.zFar, leftEye.getTransform().getPerspective(), 0);
+
+		rightEye.getFov().toPerspectiveMatrix(request.zNear, request.zFar, rightEye.getTransform().getPerspective(), 0);
+
+		if (mDistortionMesh != null) {
+			mDistortionMesh.delete();
+		}
+		mDistortionMesh = new DistortionMesh(plan);
+		mMeshVertexCount = plan.vertexCount[0] + plan.vertexCount[1];
+		mEyeBufferPixelCount = plan.textureWidthPx * plan.textureHeightPx;
+		mMeshMaxErrorPx = Math.max(plan.maxErrorPx[0], plan.maxErrorPx[1]);
+		mMeshCulledFraction = (plan.culledFraction[0] + plan.culledFraction[1]) / 2.0F;
 
+		CardboardDeviceParams cdp = request.hmd.getCardboard();
 		float eyeToScreenDistanceM = cdp.getEyeToLensDistance() + cdp.getScreenToLensDistance();
-		float leftM = (float)Math.tan(Math.toRadians(eye.getFov().getLeft())) * eyeToScreenDistanceM;
+		setTanAngleFromUv(mTanAngleFromUv[0], plan.leftEyeViewport, plan.textureWidthM, plan.textureHeightM, eyeToScreenDistanceM);
+		setTanAngleFromUv(mTanAngleFromUv[1], plan.rightEyeViewport, plan.textureWidthM, plan.textureHeightM, eyeToScreenDistanceM);
 
-		float rightM = (float)Math.tan(Math.toRadians(eye.getFov().getRight())) * eyeToScreenDistanceM;
+		ScreenParams screen = request.hmd.getScreen();
+		float leftXEyeOffsetMScreen = screen.getWidthMeters() / 2.0F - cdp.getInterpupillaryDistance() / 2.0F;
+		float yEyeOffsetMScreen = cdp.getVerticalDistanceToLensCenter() - screen.getBorderSizeMeters();
+		setScreenToLens(mScreenToLens[0], screen, leftXEyeOffsetMScreen, yEyeOffsetMScreen);
+		setScreenToLens(mScreenToLens[1], screen, screen.getWidthMeters() - leftXEyeOffsetMScreen, yEyeOffsetMScreen);
+		float[] coefficients = cdp.getDistortion().getCoefficients();
+		mLayerDistortion[0] = coefficients[0];
+		mLayerDistortion[1] = coefficients[1];
+		mLayerDistortion[2] = (1.0F / eyeToScreenDistanceM);
 
-		float bottomM = (float)Math.tan(Math.toRadians(eye.getFov().getBottom())) * eyeToScreenDistanceM;
+		float[][] hiddenAreaVertices = { HiddenAreaMesh.build(request.hmd, plan.leftEyeFov, EyeParams.Eye.LEFT), HiddenAreaMesh.build(request.hmd, plan.rightEyeFov, EyeParams.Eye.RIGHT) };
 
-		float topM = (float)Math.tan(Math.toRadians(eye.getFov().getTop())) * eyeToScreenDistanceM;
+		if (mHiddenAreaMask != null) {
+			mHiddenAreaMask.delete();
+		}
+		mHiddenAreaMask = new HiddenAreaMask(hiddenAreaVertices);
+		mHiddenAreaVertices = hiddenAreaVertices;
+		mHiddenAreaFraction = (HiddenAreaMesh.getCoverage(hiddenAreaVertices[0], plan.leftEyeFov) + HiddenAreaMesh.getCoverage(hiddenAreaVertices[1], plan.rightEyeFov)) / 2.0F;
 
-		EyeViewport vp = new EyeViewport();
-		vp.x = xOffsetM;
-		vp.y = 0.0F;
-		vp.width = (leftM + rightM);
-		vp.height = (bottomM + topM);
-		vp.eyeX = (leftM + xOffsetM);
-		vp.eyeY = bottomM;
+		if (mDistortionLookup != null) {
+			mDistortionLookup.delete();
+			mDistortionLookup = null;
+		}
+		if (request.lookupTexels != null) {
+			if (mLookupProgramHolder == null) {
+				mLookupProgramHolder = createLookupProgramHolder();
+			}
+			mDistortionLookup = new DistortionLookup(request.lookupWidth, request.lookupHeight, request.lookupTexels);
+		}
+		mActiveDistortionMode = mDistortionLookup != null ? DistortionMode.LOOKUP_TEXTURE : DistortionMode.MESH;
 
-		float xPxPerM = screen.getWidth() / screen.getWidthMeters();
-		float yPxPerM = screen.getHeight() / screen.getHeightMeters();
-		eye.getViewport().x = Math.round(vp.x * xPxPerM);
-		eye.getViewport().y = Math.round(vp.y * xPxPerM);
-		eye.getViewport().width = Math.round(vp.width * xPxPerM);
-		eye.getViewport().height = Math.round(vp.height * xPxPerM);
+		setupRenderTarget(plan.textureWidthPx, plan.textureHeightPx);
+	}
 
-		return vp;
+	public void setMeshTolerance(float tolerancePx)
+	{
+		mPlanOptions.meshTolerancePx = tolerancePx;
 	}
 
-	private DistortionMesh createDistortionMesh(EyeParams eye, EyeViewport eyeViewport, float textureWidthM, float textureHeightM, float xEyeOffsetMScreen, float yEyeOffsetMScreen)
+	public float getMeshTolerance()
 	{
-		return new DistortionMesh(eye, mHmd.getCardboard().getDistortion(), mHmd.getScreen().getWidthMeters(), mHmd.getScreen().getHeightMeters(), xEyeOffsetMScreen, yEyeOffsetMScreen, textureWidthM, textureHeightM, eyeViewport.eyeX, eyeViewport.eyeY, eyeViewport.x, eyeViewport.y, eyeViewport.width, eyeViewport.height);
+		return mPlanOptions.meshTolerancePx;
 	}
 
-	private void renderDistortionMesh(DistortionMesh mesh)
+	/**
+	 * Splits each eye buffer into a full density center covering centerFraction of each axis and a periphery rendered at peripheryScale.
+	 * A scale of 0 turns the split off. It only applies while the mesh distortion mode is active without reprojection.
+	 */
+	public void setMultiResolution(float centerFraction, float peripheryScale)
+	{
+		if ((peripheryScale < 0.0F) || (peripheryScale > 1.0F) || (centerFraction <= 0.0F) || (centerFraction > 1.0F)) {
+			throw new IllegalArgumentException("Invalid multi-resolution layout: " + centerFraction + ", " + peripheryScale);
+		}
+		mPlanOptions.centerFraction = centerFraction;
+		mPlanOptions.peripheryScale = peripheryScale;
+	}
+
+	public boolean isMultiResolutionActive()
+	{
+		return mRegionLayouts != null;
+	}
+
+	/**
+	 * Sets up the regions of an eye for rendering, in eye buffer order.
+	 * Returns the number of non-empty regions written, or 0 if the eye buffers are not split.
+	 */
+	public int getEyeRegions(int eye, EyeParams[] regions, float zNear, float zFar)
+	{
+		if (mRegionLayouts == null) {
+			return 0;
+		}
+
+		EyeRegionLayout layout = mRegionLayouts[(eye == EyeParams.Eye.LEFT ? 0 : 1)];
+		FieldOfView eyeFov = eye == EyeParams.Eye.LEFT ? mLeftEyeFov : mRightEyeFov;
+		int count = 0;
+		for (int region = 0; region < EyeRegionLayout.REGION_COUNT; region++) {
+			EyeParams params = regions[count];
+			if (layout.getRegion(region, eyeFov, params.getFov(), params.getViewport())) {
+				params.getFov().toPerspectiveMatrix(zNear, zFar, params.getTransform().getPerspective(), 0);
+				count++;
+			}
+		}
+		return count;
+	}
+
+	public void setEyeBufferReferenceRadius(float radiusM)
+	{
+		if (radiusM < 0.0F) {
+			throw new IllegalArgumentException("Invalid reference radius: " + radiusM);
+		}
+		mPlanOptions.referenceRadiusM = radiusM;
+	}
+
+	public float getEyeBufferReferenceRadius()
+	{
+		return mPlanOptions.referenceRadiusM;
+	}
+
+	public int getEyeBufferPixelCount()
+	{
+		return mEyeBufferPixelCount;
+	}
+
+	/**
+	 * Enables clearing each eye viewport and masking its hidden area in depth before the eye is drawn.
+	 * Only takes effect while the eye buffers have a depth attachment.
+	 */
+	public void setHiddenAreaMaskEnabled(boolean enabled)
+	{
+		mHiddenAreaMaskEnabled = enabled;
+	}
+
+	public boolean getHiddenAreaMaskEnabled()
+	{
+		return mHiddenAreaMaskEnabled;
+	}
+
+	public boolean isHiddenAreaMaskActive()
+	{
+		return (mHiddenAreaMaskEnabled) && (mHiddenAreaMask != null) && (mActiveDepthFormat != DepthFormat.NONE);
+	}
+
+	/**
+	 * Returns the hidden area of an eye as a triangle strip of x, y pairs in tangent of angle units, or null before the first projection.
+	 * Drawn at z = -1 in eye space with the eye perspective, it covers every pixel of the eye buffer that is not visible after distortion correction.
+	 */
+	public float[] getHiddenAreaMesh(int eye)
+	{
+		float[][] vertices = mHiddenAreaVertices;
+		if (vertices == null) {
+			return null;
+		}
+		return vertices[(eye == EyeParams.Eye.LEFT ? 0 : 1)].clone();
+	}
+
+	/** Returns the fraction of the eye field of view covered by the hidden area meshes. */
+	public float getHiddenAreaFraction()
+	{
+		return mHiddenAreaFraction;
+	}
+
+	/**
+	 * Clears the color and depth of the current eye viewport and writes the hidden area of the eye into depth at the near plane.
+	 *
+	 * Call with the eye framebuffer bound and the viewport and scissor set to the eye or eye region. The mask is wound counter-clockwise.
+	 * Depth testing is left enabled, together with color and depth writes; the application must not clear depth before drawing the eye.
+	 */
+	public void drawHiddenAreaMask(EyeParams eye)
+	{
+		if (!isHiddenAreaMaskActive()) {
+			return;
+		}
+		if (mHiddenAreaProgramHolder == null) {
+			mHiddenAreaProgramHolder = createHiddenAreaProgramHolder();
+		}
+
+		FieldOfView fov = eye.getFov();
+		float tanLeft = (float)Math.tan(Math.toRadians(fov.getLeft()));
+		float tanRight = (float)Math.tan(Math.toRadians(fov.getRight()));
+		float tanBottom = (float)Math.tan(Math.toRadians(fov.getBottom()));
+		float tanTop = (float)Math.tan(Math.toRadians(fov.getTop()));
+
+		GLES20.glDepthMask(true);
+		GLES20.glColorMask(true, true, true, true);
+		GLES20.glClear(16640);
+		GLES20.glEnable(2929);
+		GLES20.glColorMask(false, false, false, false);
+
+		ProgramHolder holder = mHiddenAreaProgramHolder;
+		int index = eye.getEye() == EyeParams.Eye.RIGHT ? 1 : 0;
+		GLES20.glUseProgram(holder.program);
+		GLES20.glUniform4f(holder.uTanAngleToNdc, 2.0F / (tanLeft + tanRight), 2.0F / (tanBottom + tanTop), (tanLeft - tanRight) / (tanLeft + tanRight), (tanBottom - tanTop) / (tanBottom + tanTop));
+
+		GLES20.glBindBuffer(34962, mHiddenAreaMask.mArrayBufferId);
+		GLES20.glVertexAttribPointer(holder.aPosition, HiddenAreaMesh.FLOATS_PER_VERTEX, 5126, false, HiddenAreaMesh.FLOATS_PER_VERTEX * 4, 0);
+		GLES20.glEnableVertexAttribArray(holder.aPosition);
+		GLES20.glDrawArrays(5, mHiddenAreaMask.mEyeVertexOffset[index], mHiddenAreaMask.mEyeVertexCount[index]);
+
+		GLES20.glDisableVertexAttribArray(holder.aPosition);
+		GLES20.glBindBuffer(34962, 0);
+		GLES20.glUseProgram(0);
+		GLES20.glColorMask(true, true, true, true);
+	}
+
+	public int getMeshVertexCount()
+	{
+		return mMeshVertexCount;
+	}
+
+	public float getMeshMaxError()
+	{
+		return mMeshMaxErrorPx;
+	}
+
+	/** Returns the fraction of the screen area whose mesh triangles were culled as black, off screen or outside the lens. */
+	public float getMeshCulledFraction()
+	{
+		return mMeshCulledFraction;
+	}
+
+	public void setDistortionMode(int mode)
+	{
+		if ((mode != DistortionMode.MESH) && (mode != DistortionMode.LOOKUP_TEXTURE)) {
+			throw new IllegalArgumentException("Invalid distortion mode: " + mode);
+		}
+		mDistortionMode = mode;
+	}
+
+	public int getDistortionMode()
+	{
+		return mDistortionMode;
+	}
+
+	public int getActiveDistortionMode()
+	{
+		return mActiveDistortionMode;
+	}
+
+	public void setColorFormat(int format)
+	{
+		if ((format != ColorFormat.RGB565) && (format != ColorFormat.RGBA8888) && (format != ColorFormat.SRGB8_ALPHA8)) {
+			throw new IllegalArgumentException("Invalid color format: " + format);
+		}
+		mColorFormat = format;
+
+		if (mRenderTarget != null) {
+			setupRenderTarget(mRenderTarget.width, mRenderTarget.height);
+		}
+	}
+
+	public int getColorFormat()
+	{
+		return mColorFormat;
+	}
+
+	public int getActiveColorFormat()
+	{
+		return mActiveColorFormat;
+	}
+
+	public void setDepthFormat(int format)
+	{
+		if ((format != DepthFormat.NONE) && (format != DepthFormat.DEPTH16) && (format != DepthFormat.DEPTH24) && (format != DepthFormat.DEPTH24_STENCIL8)) {
+			throw new IllegalArgumentException("Invalid depth format: " + format);
+		}
+		mDepthFormat = format;
+
+		if (mRenderTarget != null) {
+			setupRenderTarget(mRenderTarget.width, mRenderTarget.height);
+		}
+	}
+
+	public int getDepthFormat()
+	{
+		return mDepthFormat;
+	}
+
+	public int getActiveDepthFormat()
+	{
+		return mActiveDepthFormat;
+	}
+
+	/** Sets the number of samples per pixel of the eye buffers. Counts above 1 fall back to single sampled eye buffers where multisampled renderbuffers are not supported. */
+	public void setSampleCount(int samples)
+	{
+		if (samples < 1) {
+			throw new IllegalArgumentException("Invalid sample count: " + samples);
+		}
+		mSampleCount = samples;
+
+		if (mRenderTarget != null) {
+			setupRenderTarget(mRenderTarget.width, mRenderTarget.height);
+		}
+	}
+
+	public int getSampleCount()
+	{
+		return mSampleCount;
+	}
+
+	public int getActiveSampleCount()
+	{
+		return mActiveSampleCount;
+	}
+
+	void setRenderPlanCache(RenderPlanCache cache)
+	{
+		mRenderPlanCache = cache;
+	}
+
+	void setProgramBinaryCache(ProgramBinaryCache cache)
+	{
+		mProgramBinaryCache = cache;
+	}
+
+	/** Returns the total time spent creating programs, from cached binaries or from source, in nanoseconds. */
+	public long getProgramSetupTime()
+	{
+		return mProgramSetupNanos;
+	}
+
+	private void renderDistortionMesh(DistortionMesh mesh, ProgramHolder holder, int drawnEye)
 	{
 		GLES20.glBindBuffer(34962, mesh.mArrayBufferId);
-		mesh.getClass(); mesh.getClass(); GLES20.glVertexAttribPointer(mProgramHolder.aPosition, 3, 5126, false, 20, 0 * 4);
+		GLES20.glVertexAttribPointer(holder.aPosition, 2, 5122, true, DistortionMeshEncoder.VERTEX_STRIDE_BYTES, DistortionMeshEncoder.POSITION_OFFSET_BYTES);
 
-		GLES20.glEnableVertexAttribArray(mProgramHolder.aPosition);
+		GLES20.glEnableVertexAttribArray(holder.aPosition);
 
-		mesh.getClass(); mesh.getClass(); GLES20.glVertexAttribPointer(mProgramHolder.aVignette, 1, 5126, false, 20, 2 * 4);
+		GLES20.glVertexAttribPointer(holder.aVignette, 1, 5121, true, DistortionMeshEncoder.VERTEX_STRIDE_BYTES, DistortionMeshEncoder.VIGNETTE_OFFSET_BYTES);
 
-		GLES20.glEnableVertexAttribArray(mProgramHolder.aVignette);
+		GLES20.glEnableVertexAttribArray(holder.aVignette);
 
-		mesh.getClass(); mesh.getClass(); GLES20.glVertexAttribPointer(mProgramHolder.aTextureCoord, 2, 5126, false, 20, 3 * 4);
+		if (holder.aTextureCoord != -1) {
+			GLES20.glVertexAttribPointer(holder.aTextureCoord, 2, 5123, true, DistortionMeshEncoder.VERTEX_STRIDE_BYTES, DistortionMeshEncoder.TEXTURE_COORD_OFFSET_BYTES);
 
-		GLES20.glEnableVertexAttribArray(mProgramHolder.aTextureCoord);
+			GLES20.glEnableVertexAttribArray(holder.aTextureCoord);
 
-		GLES20.glActiveTexture(33984);
-		GLES20.glBindTexture(3553, mTextureId);
-		GLES20.glUniform1i(mProgramHolder.uTextureSampler, 0);
-		GLES20.glUniform1f(mProgramHolder.uTextureCoordScale, mResolutionScale);
+			GLES20.glActiveTexture(33984);
+			GLES20.glBindTexture(3553, mTextureId);
+			GLES20.glUniform1i(holder.uTextureSampler, 0);
+			GLES20.glUniform1f(holder.uTextureCoordScale, mResolutionScale);
+		}
 
 		GLES20.glBindBuffer(34963, mesh.mElementBufferId);
-		GLES20.glDrawElements(5, mesh.nIndices, 5125, 0);
+		if ((holder.uReprojection == -1) && (holder.uScreenToLens == -1) && (drawnEye == EyeParams.Eye.MONOCULAR)) {
+			GLES20.glDrawElements(mesh.mMode, mesh.nIndices, 5123, 0);
+			return;
+		}
+
+		int layerCount = mActiveLayerCount;
+		if (holder.uReprojection != -1) {
+			GLES20.glUniformMatrix3fv(holder.uReprojection, 1, false, mReprojection, 0);
+		}
+		if (holder.uScreenToLens != -1) {
+			GLES20.glUniform3fv(holder.uDistortion, 1, mLayerDistortion, 0);
+		}
+		if (holder.uLayerTransform != -1) {
+			for (int i = 0; i < layerCount; i++) {
+				GLES20.glActiveTexture(33985 + i);
+				GLES20.glBindTexture(3553, mLayerTextureIds[i]);
+			}
+			GLES20.glUniform1iv(holder.uLayerSampler, layerCount, mLayerTextureUnits, 0);
+		}
+		if (holder.uVideoRotation != -1) {
+			GLES20.glActiveTexture(33984 + VIDEO_TEXTURE_UNIT);
+			GLES20.glBindTexture(36197, mVideoTextureId);
+			GLES20.glUniform1i(holder.uVideoSampler, VIDEO_TEXTURE_UNIT);
+			GLES20.glUniformMatrix3fv(holder.uVideoRotation, 1, false, mVideoRotation, 0);
+			GLES20.glUniformMatrix4fv(holder.uVideoTextureTransform, 1, false, mVideoTextureTransform, 0);
+		}
+		for (int eye = drawnEye == EyeParams.Eye.RIGHT ? 1 : 0; eye < (drawnEye == EyeParams.Eye.LEFT ? 1 : 2); eye++) {
+			if (holder.uReprojection != -1) {
+				GLES20.glUniform4fv(holder.uTanAngleFromUv, 1, mTanAngleFromUv[eye], 0);
+			}
+			if (holder.uScreenToLens != -1) {
+				GLES20.glUniform4fv(holder.uScreenToLens, 1, mScreenToLens[eye], 0);
+			}
+			if (holder.uLayerTransform != -1) {
+				GLES20.glUniformMatrix3fv(holder.uLayerTransform, layerCount, false, mLayerTransforms, eye * MAX_QUAD_LAYERS * 9);
+				GLES20.glUniform1fv(holder.uLayerOpacity, layerCount, mLayerOpacities, eye * MAX_QUAD_LAYERS);
+			}
+			if (holder.uVideoRect != -1) {
+				GLES20.glUniform4fv(holder.uVideoRect, 1, mVideoRects[eye], 0);
+			}
+			GLES20.glDrawElements(mesh.mMode, mesh.mEyeIndexCount[eye], 5123, mesh.mEyeIndexOffset[eye] * 2);
+		}
+		if (holder.uLayerTransform != -1) {
+			for (int i = 0; i < layerCount; i++) {
+				GLES20.glActiveTexture(33985 + i);
+				GLES20.glBindTexture(3553, 0);
+			}
+		}
+		if (holder.uVideoRotation != -1) {
+			GLES20.glActiveTexture(33984 + VIDEO_TEXTURE_UNIT);
+			GLES20.glBindTexture(36197, 0);
+		}
+		GLES20.glActiveTexture(33984);
 	}
 
-	private float computeDistortionScale(Distortion distortion, float screenWidthM, float interpupillaryDistanceM)
+	/**
+	 * Computes the ray rotation and eye rects of the video layer for the current layer poses.
+	 * Returns what the distortion pass samples under the quad layers: the eye buffer, the video, or the video with the eye buffer composited over it.
+	 */
+	private int prepareVideoLayer()
 	{
-		return distortion.distortionFactor((screenWidthM / 2.0F - interpupillaryDistanceM / 2.0F) / (screenWidthM / 4.0F));
+		VideoLayer layer = mVideoLayer;
+		if ((layer == null) || (mDistortionLookup != null)) {
+			return BACKGROUND_EYE_BUFFER;
+		}
+
+		layer.computeRayRotation(mLayerHeadView, mLayerScratch, mVideoRotation);
+		layer.getTextureTransform(mVideoTextureTransform, 0);
+		layer.getEyeRect(EyeParams.Eye.LEFT, mVideoRects[0]);
+		layer.getEyeRect(EyeParams.Eye.RIGHT, mVideoRects[1]);
+		mVideoTextureId = layer.getTextureId();
+		mVideoProjection = layer.getProjection();
+		return layer.getEyeBufferOverlay() ? BACKGROUND_VIDEO_UNDER_EYE_BUFFER : BACKGROUND_VIDEO;
+	}
+
+	/**
+	 * Sets a 360 degree video sampled by the distortion pass under the quad layers, or null to sample the eye buffers again.
+	 * The video is only used while distortion correction uses the mesh mode.
+	 */
+	public void setVideoLayer(VideoLayer layer)
+	{
+		mVideoLayer = layer;
+	}
+
+	public VideoLayer getVideoLayer()
+	{
+		return mVideoLayer;
+	}
+
+	/** Returns whether the next distortion pass samples the video layer without any eye buffer content, so the eye buffers do not need to be rendered. */
+	public boolean isVideoLayerReplacingEyeBuffers()
+	{
+		VideoLayer layer = mVideoLayer;
+		return (layer != null) && (!layer.getEyeBufferOverlay()) && (mActiveDistortionMode == DistortionMode.MESH);
+	}
+
+	/**
+	 * Computes the per-eye ray transforms of the visible quad layers for the current layer poses.
+	 * Returns the number of layers to composite, or 0 if there are none or the lookup texture distortion mode is active.
+	 */
+	private int prepareQuadLayers()
+	{
+		if ((mQuadLayers.isEmpty()) || (mDistortionLookup != null)) {
+			return 0;
+		}
+
+		int count = 0;
+		for (QuadLayer layer : mQuadLayers) {
+			boolean visible = false;
+			for (int eye = 0; eye < 2; eye++) {
+				Matrix.multiplyMM(mLayerEyeView, 0, mLayerEyeTranslate[eye], 0, mLayerHeadView, 0);
+				int transformOffset = (eye * MAX_QUAD_LAYERS + count) * 9;
+				float opacity = layer.computeRayTransform(mLayerEyeView, mLayerEyeTranslate[eye], mLayerScratch, mLayerTransforms, transformOffset);
+				if (opacity <= 0.0F) {
+					for (int i = 0; i < 9; i++) {
+						mLayerTransforms[(transformOffset + i)] = (i == 8 ? 1.0F : 0.0F);
+					}
+				}
+				mLayerOpacities[(eye * MAX_QUAD_LAYERS + count)] = opacity;
+				visible |= opacity > 0.0F;
+			}
+			if (visible) {
+				mLayerTextureIds[count] = layer.getTextureId();
+				count++;
+			}
+		}
+		return count;
 	}
 
-	private int createTexture(int width, int height)
+	/** Adds a layer composited over the eye buffers. Layers are drawn in the order they were added. */
+	public void addQuadLayer(QuadLayer layer)
 	{
-		int[] textureIds = new int[1];
-		GLES20.glGenTextures(1, textureIds, 0);
+		if (mQuadLayers.contains(layer)) {
+			return;
+		}
+		if (mQuadLayers.size() >= MAX_QUAD_LAYERS) {
+			throw new IllegalArgumentException("Too many quad layers, the maximum is " + MAX_QUAD_LAYERS);
+		}
+		mQuadLayers.add(layer);
+	}
 
-		GLES20.glBindTexture(3553, textureIds[0]);
-		GLES20.glTexParameteri(3553, 10242, 33071);
+	public void removeQuadLayer(QuadLayer layer)
+	{
+		mQuadLayers.remove(layer);
+	}
 
-		GLES20.glTexParameteri(3553, 10243, 33071);
+	/**
+	 * Sets the head view and eye translations used to place quad layers in the next distortion pass.
+	 * With reprojection enabled this should be the latest head view rather than the one the eye buffers were rendered with.
+	 */
+	public void setLayerPoses(float[] headView, float[] leftEyeTranslate, float[] rightEyeTranslate)
+	{
+		System.arraycopy(headView, 0, mLayerHeadView, 0, 16);
+		System.arraycopy(leftEyeTranslate, 0, mLayerEyeTranslate[0], 0, 16);
+		System.arraycopy(rightEyeTranslate, 0, mLayerEyeTranslate[1], 0, 16);
+	}
 
-		GLES20.glTexParameteri(3553, 10240, 9729);
+	private static void setTanAngleFromUv(float[] tanAngleFromUv, RenderPlan.EyeViewport vp, float textureWidthM, float textureHeightM, float eyeToScreenDistanceM)
+	{
+		tanAngleFromUv[0] = (textureWidthM / eyeToScreenDistanceM);
+		tanAngleFromUv[1] = (textureHeightM / eyeToScreenDistanceM);
+		tanAngleFromUv[2] = (-vp.eyeX / eyeToScreenDistanceM);
+		tanAngleFromUv[3] = (-vp.eyeY / eyeToScreenDistanceM);
+	}
 
-		GLES20.glTexParameteri(3553, 10241, 9729);
+	private static void setScreenToLens(float[] screenToLens, ScreenParams screen, float xEyeOffsetMScreen, float yEyeOffsetMScreen)
+	{
+		screenToLens[0] = (screen.getWidthMeters() / 2.0F);
+		screenToLens[1] = (screen.getHeightMeters() / 2.0F);
+		screenToLens[2] = (screen.getWidthMeters() / 2.0F - xEyeOffsetMScreen);
+		screenToLens[3] = (screen.getHeightMeters() / 2.0F - yEyeOffsetMScreen);
+	}
+
+	private void renderDistortionLookup(DistortionLookup lookup, int drawnEye)
+	{
+		GLES20.glBindBuffer(34962, lookup.mArrayBufferId);
+		GLES20.glVertexAttribPointer(mLookupProgramHolder.aPosition, 2, 5126, false, 16, 0);
+
+		GLES20.glEnableVertexAttribArray(mLookupProgramHolder.aPosition);
 
-		GLES20.glTexImage2D(3553, 0, 6407, width, height, 0, 6407, 33635, null);
+		GLES20.glVertexAttribPointer(mLookupProgramHolder.aTextureCoord, 2, 5126, false, 16, 8);
 
-		return textureIds[0];
+		GLES20.glEnableVertexAttribArray(mLookupProgramHolder.aTextureCoord);
+
+		GLES20.glActiveTexture(33984);
+		GLES20.glBindTexture(3553, mTextureId);
+		GLES20.glUniform1i(mLookupProgramHolder.uTextureSampler, 0);
+		GLES20.glUniform1i(mLookupProgramHolder.uLookupSampler, 1);
+		GLES20.glUniform1f(mLookupProgramHolder.uTextureCoordScale, mResolutionScale);
+
+		for (int eye = drawnEye == EyeParams.Eye.RIGHT ? 1 : 0; eye < (drawnEye == EyeParams.Eye.LEFT ? 1 : 2); eye++) {
+			GLES20.glActiveTexture(33985);
+			GLES20.glBindTexture(3553, lookup.mTextureIds[eye]);
+			GLES20.glDrawArrays(5, eye * 4, 4);
+		}
+		GLES20.glBindTexture(3553, 0);
+		GLES20.glActiveTexture(33984);
 	}
 
-	private int setupRenderTextureAndRenderbuffer(int width, int height)
+	private boolean isLookupTextureSupported()
 	{
-		if (mTextureId != -1) {
-			GLES20.glDeleteTextures(1, new int[] { mTextureId }, 0);
+		if (mLookupInternalFormat != 0) {
+			return mLookupInternalFormat != -1;
+		}
+
+		String version = GLES20.glGetString(7938);
+		String extensions = GLES20.glGetString(7939);
+		if ((version != null) && (version.startsWith("OpenGL ES 3"))) {
+			mLookupInternalFormat = 34843;
+			mLookupType = 5131;
 		}
-		if (mRenderbufferId != -1) {
-			GLES20.glDeleteRenderbuffers(1, new int[] { mRenderbufferId }, 0);
+		else if ((extensions != null) && (extensions.contains("GL_OES_texture_half_float")) && (extensions.contains("GL_OES_texture_half_float_linear"))) {
+			mLookupInternalFormat = 6407;
+			mLookupType = 36193;
 		}
-		if (mFramebufferId != -1) {
-			GLES20.glDeleteFramebuffers(1, new int[] { mFramebufferId }, 0);
+		else {
+			Log.w(TAG, "Half float textures are not supported, using the distortion mesh.");
+			mLookupInternalFormat = -1;
 		}
+		return mLookupInternalFormat != -1;
+	}
 
-		mTextureId = createTexture(width, height);
-		checkGlError("setupRenderTextureAndRenderbuffer: create texture");
-
-		int[] renderbufferIds = new int[1];
-		GLES20.glGenRenderbuffers(1, renderbufferIds, 0);
-		GLES20.glBindRenderbuffer(36161, renderbufferIds[0]);
-		GLES20.glRenderbufferStorage(36161, 33189, width, height);
+	private float computeDistortionScale(Distortion distortion, float screenWidthM, float interpupillaryDistanceM)
+	{
+		return distortion.distortionFactor((screenWidthM / 2.0F - interpupillaryDistanceM / 2.0F) / (screenWidthM / 4.0F));
+	}
 
-		mRenderbufferId = renderbufferIds[0];
-		checkGlError("setupRenderTextureAndRenderbuffer: create renderbuffer");
+	private void setupRenderTarget(int width, int height)
+	{
+		if (mRenderTarget != null) {
+			mRenderTargetPool.release(mRenderTarget);
+		}
 
-		int[] framebufferIds = new int[1];
-		GLES20.glGenFramebuffers(1, framebufferIds, 0);
-		GLES20.glBindFramebuffer(36160, framebufferIds[0]);
-		mFramebufferId = framebufferIds[0];
+		String version = GLES20.glGetString(7938);
+		String extensions = GLES20.glGetString(7939);
+		boolean es3 = (version != null) && (version.startsWith("OpenGL ES 3"));
+		if (extensions == null) {
+			extensions = "";
+		}
 
-		GLES20.glFramebufferTexture2D(36160, 36064, 3553, mTextureId, 0);
+		int colorFormat = mColorFormat;
+		if ((colorFormat == ColorFormat.SRGB8_ALPHA8) && (((!es3) && (!extensions.contains("GL_EXT_sRGB"))) || (!extensions.contains("GL_EXT_texture_sRGB_decode")))) {
+			Log.w(TAG, "sRGB eye buffers are not supported, using RGBA8888.");
+			colorFormat = ColorFormat.RGBA8888;
+		}
+		int depthFormat = mDepthFormat;
+		if ((depthFormat == DepthFormat.DEPTH24_STENCIL8) && (!es3) && (!extensions.contains("GL_OES_packed_depth_stencil"))) {
+			Log.w(TAG, "Packed depth stencil buffers are not supported, using a 24 bit depth buffer.");
+			depthFormat = DepthFormat.DEPTH24;
+		}
+		if ((depthFormat == DepthFormat.DEPTH24) && (!es3) && (!extensions.contains("GL_OES_depth24"))) {
+			Log.w(TAG, "24 bit depth buffers are not supported, using a 16 bit depth buffer.");
+			depthFormat = DepthFormat.DEPTH16;
+		}
 
-		GLES20.glFramebufferRenderbuffer(36160, 36096, 36161, renderbufferIds[0]);
+		int samples = mSampleCount;
+		if ((samples > 1) && (!es3)) {
+			Log.w(TAG, "Multisampled eye buffers are not supported, using single sampled eye buffers.");
+			samples = 1;
+		}
+		else if (samples > 1) {
+			int[] maxSamples = new int[1];
+			GLES20.glGetIntegerv(36183, maxSamples, 0);
+			if (samples > maxSamples[0]) {
+				Log.w(TAG, samples + " samples per pixel are not supported, using " + Math.max(1, maxSamples[0]) + ".");
+				samples = Math.max(1, maxSamples[0]);
+			}
+		}
 
-		int status = GLES20.glCheckFramebufferStatus(36160);
+		int colorInternalFormat;
+		int colorPixelFormat;
+		int colorType;
+		switch (colorFormat) {
+		case ColorFormat.RGBA8888:
+			colorInternalFormat = 6408;
+			colorPixelFormat = 6408;
+			colorType = 5121;
+			break;
+		case ColorFormat.SRGB8_ALPHA8:
+			colorInternalFormat = es3 ? 35907 : 35906;
+			colorPixelFormat = es3 ? 6408 : 35906;
+			colorType = 5121;
+			break;
+		default:
+			colorInternalFormat = 6407;
+			colorPixelFormat = 6407;
+			colorType = 33635;
+		}
 
-		if (status != 36053) {
-			throw new RuntimeException("Framebuffer is not complete: " + Integer.toHexString(status));
+		int depthInternalFormat;
+		switch (depthFormat) {
+		case DepthFormat.NONE:
+			depthInternalFormat = 0;
+			break;
+		case DepthFormat.DEPTH24:
+			depthInternalFormat = 33190;
+			break;
+		case DepthFormat.DEPTH24_STENCIL8:
+			depthInternalFormat = 35056;
+			break;
+		default:
+			depthInternalFormat = 33189;
 		}
 
-		GLES20.glBindFramebuffer(36160, 0);
+		mRenderTarget = mRenderTargetPool.acquire(width, height, colorInternalFormat, colorPixelFormat, colorType, depthInternalFormat, samples);
+		mTextureId = mRenderTarget.textureId;
+		mFramebufferId = mRenderTarget.framebufferId;
+		mResolveFramebufferId = mRenderTarget.resolveFramebufferId;
+		mActiveColorFormat = colorFormat;
+		mActiveDepthFormat = depthFormat;
+		mActiveSampleCount = samples;
+
+		mInvalidateSupported = es3;
+		switch (depthFormat) {
+		case DepthFormat.NONE:
+			mEyeDiscardAttachments = null;
+			break;
+		case DepthFormat.DEPTH24_STENCIL8:
+			mEyeDiscardAttachments = new int[] { 36096, 36128 };
+			break;
+		default:
+			mEyeDiscardAttachments = new int[] { 36096 };
+		}
 
-		return framebufferIds[0];
+		if ((colorFormat == ColorFormat.SRGB8_ALPHA8) && (extensions.contains("GL_EXT_texture_sRGB_decode"))) {
+			GLES20.glBindTexture(3553, mTextureId);
+			GLES20.glTexParameteri(3553, 35400, 35402);
+			GLES20.glBindTexture(3553, 0);
+		}
 	}
 
 	private int loadShader(int shaderType, String source) {
@@ -294,6 +1174,21 @@ public class DistortionRenderer
 	}
 
 	private int createProgram(String vertexSource, String fragmentSource) {
+		long startNanos = System.nanoTime();
+		ProgramBinaryCache cache = mProgramBinaryCache;
+		int program = cache != null ? cache.load(vertexSource, fragmentSource) : 0;
+		if (program == 0) {
+			boolean retrievable = (cache != null) && (cache.isSupported());
+			program = linkProgram(vertexSource, fragmentSource, retrievable);
+			if ((program != 0) && (retrievable)) {
+				cache.store(program, vertexSource, fragmentSource);
+			}
+		}
+		mProgramSetupNanos += System.nanoTime() - startNanos;
+		return program;
+	}
+
+	private int linkProgram(String vertexSource, String fragmentSource, boolean retrievable) {
 		int vertexShader = loadShader(35633, vertexSource);
 		if (vertexShader == 0) {
 			return 0;
@@ -309,6 +1204,9 @@ public class DistortionRenderer
 			checkGlError("glAttachShader");
 			GLES20.glAttachShader(program, pixelShader);
 			checkGlError("glAttachShader");
+			if (retrievable) {
+				GLES30.glProgramParameteri(program, 33367, 1);
+			}
 			GLES20.glLinkProgram(program);
 			int[] linkStatus = new int[1];
 			GLES20.glGetProgramiv(program, 35714, linkStatus, 0);
@@ -357,124 +1255,281 @@ public class DistortionRenderer
 		if (holder.uTextureSampler == -1) {
 			throw new RuntimeException("Could not get attrib location for uTextureSampler");
 		}
+		holder.uReprojection = -1;
+		holder.uTanAngleFromUv = -1;
 
 		return holder;
 	}
 
-	private void checkGlError(String op)
-	{
-		int error;
-		if ((error = GLES20.glGetError()) != 0) {
-			Log.e("DistortionRenderer", op + ": glError " + error);
-			throw new RuntimeException(op + ": glError " + error);
+	private ProgramHolder createReprojectionProgramHolder() {
+		ProgramHolder holder = new ProgramHolder();
+		holder.program = createProgram(REPROJECTION_VERTEX_SHADER, FRAGMENT_SHADER);
+		if (holder.program == 0) {
+			throw new RuntimeException("Could not create program");
 		}
-	}
 
-	private static float clamp(float val, float min, float max) {
-		return Math.max(min, Math.min(max, val));
-	}
+		holder.aPosition = GLES20.glGetAttribLocation(holder.program, "aPosition");
+		checkGlError("glGetAttribLocation aPosition");
+		if (holder.aPosition == -1) {
+			throw new RuntimeException("Could not get attrib location for aPosition");
+		}
+		holder.aVignette = GLES20.glGetAttribLocation(holder.program, "aVignette");
+		checkGlError("glGetAttribLocation aVignette");
+		if (holder.aVignette == -1) {
+			throw new RuntimeException("Could not get attrib location for aVignette");
+		}
+		holder.aTextureCoord = GLES20.glGetAttribLocation(holder.program, "aTextureCoord");
 
-	private class DistortionMesh
-	{
-		private static final String TAG = "DistortionMesh";
-		public static final int BYTES_PER_FLOAT = 4;
-		public static final int BYTES_PER_INT = 4;
-		public final int COMPONENTS_PER_VERT = 5;
-		public final int DATA_STRIDE_BYTES = 20;
-
-		public final int DATA_POS_OFFSET = 0;
-		public final int DATA_VIGNETTE_OFFSET = 2;
-		public final int DATA_UV_OFFSET = 3;
-		public final int ROWS = 40;
-		public final int COLS = 40;
-
-		public final float VIGNETTE_SIZE_M_SCREEN = 0.002F;
-		public int nIndices;
-		public int mArrayBufferId = -1;
-		public int mElementBufferId = -1;
+		checkGlError("glGetAttribLocation aTextureCoord");
+		if (holder.aTextureCoord == -1) {
+			throw new RuntimeException("Could not get attrib location for aTextureCoord");
+		}
+		holder.uTextureCoordScale = GLES20.glGetUniformLocation(holder.program, "uTextureCoordScale");
 
-		public DistortionMesh(EyeParams eye, Distortion distortion, float screenWidthM, float screenHeightM, float xEyeOffsetMScreen, float yEyeOffsetMScreen, float textureWidthM, float textureHeightM, float xEyeOffsetMTexture, float yEyeOffsetMTexture, float viewportXMTexture, float viewportYMTexture, float viewportWidthMTexture, float viewportHeightMTexture)
-		{
-			float mPerUScreen = screenWidthM;
-			float mPerVScreen = screenHeightM;
-			float mPerUTexture = textureWidthM;
-			float mPerVTexture = textureHeightM;
+		checkGlError("glGetUniformLocation uTextureCoordScale");
+		if (holder.uTextureCoordScale == -1) {
+			throw new RuntimeException("Could not get attrib location for uTextureCoordScale");
+		}
+		holder.uTextureSampler = GLES20.glGetUniformLocation(holder.program, "uTextureSampler");
 
-			float[] vertexData = new float[8000];
-			int vertexOffset = 0;
+		checkGlError("glGetUniformLocation uTextureSampler");
+		if (holder.uTextureSampler == -1) {
+			throw new RuntimeException("Could not get attrib location for uTextureSampler");
+		}
+		holder.uReprojection = GLES20.glGetUniformLocation(holder.program, "uReprojection");
 
-			for (int row = 0; row < 40; row++) {
-				for (int col = 0; col < 40; col++)
-				{
-					float uTexture = col / 39.0F * (viewportWidthMTexture / textureWidthM) + viewportXMTexture / textureWidthM;
+		checkGlError("glGetUniformLocation uReprojection");
+		if (holder.uReprojection == -1) {
+			throw new RuntimeException("Could not get attrib location for uReprojection");
+		}
+		holder.uTanAngleFromUv = GLES20.glGetUniformLocation(holder.program, "uTanAngleFromUv");
 
-					float vTexture = row / 39.0F * (viewportHeightMTexture / textureHeightM) + viewportYMTexture / textureHeightM;
+		checkGlError("glGetUniformLocation uTanAngleFromUv");
+		if (holder.uTanAngleFromUv == -1) {
+			throw new RuntimeException("Could not get attrib location for uTanAngleFromUv");
+		}
 
-					float xTexture = uTexture * mPerUTexture;
-					float yTexture = vTexture * mPerVTexture;
-					float xTextureEye = xTexture - xEyeOffsetMTexture;
-					float yTextureEye = yTexture - yEyeOffsetMTexture;
-					float rTexture = (float)Math.sqrt(xTextureEye * xTextureEye + yTextureEye * yTextureEye);
+		return holder;
+	}
 
-					float textureToScreen = rTexture > 0.0F ? distortion.distortInverse(rTexture) / rTexture : 1.0F;
+	private ProgramHolder createHiddenAreaProgramHolder() {
+		ProgramHolder holder = new ProgramHolder();
+		holder.program = createProgram(HIDDEN_AREA_VERTEX_SHADER, HIDDEN_AREA_FRAGMENT_SHADER);
+		if (holder.program == 0) {
+			throw new RuntimeException("Could not create program");
+		}
 
-					float xScreen = xTextureEye * textureToScreen + xEyeOffsetMScreen;
-					float yScreen = yTextureEye * textureToScreen + yEyeOffsetMScreen;
-					float uScreen = xScreen / mPerUScreen;
-					float vScreen = yScreen / mPerVScreen;
-					float vignetteSizeMTexture = 0.002F / textureToScreen;
+		holder.aPosition = GLES20.glGetAttribLocation(holder.program, "aPosition");
+		checkGlError("glGetAttribLocation aPosition");
+		if (holder.aPosition == -1) {
+			throw new RuntimeException("Could not get attrib location for aPosition");
+		}
+		holder.aVignette = -1;
+		holder.aTextureCoord = -1;
+		holder.uTanAngleToNdc = GLES20.glGetUniformLocation(holder.program, "uTanAngleToNdc");
 
-					float dxTexture = xTexture - DistortionRenderer.clamp(xTexture, viewportXMTexture + vignetteSizeMTexture, viewportXMTexture + viewportWidthMTexture - vignetteSizeMTexture);
+		checkGlError("glGetUniformLocation uTanAngleToNdc");
+		if (holder.uTanAngleToNdc == -1) {
+			throw new RuntimeException("Could not get attrib location for uTanAngleToNdc");
+		}
 
-					float dyTexture = yTexture - DistortionRenderer.clamp(yTexture, viewportYMTexture + vignetteSizeMTexture, viewportYMTexture + viewportHeightMTexture - vignetteSizeMTexture);
+		return holder;
+	}
 
-					float drTexture = (float)Math.sqrt(dxTexture * dxTexture + dyTexture * dyTexture);
+	private ProgramHolder getCompositorProgramHolder(boolean reprojection, int layerCount, int background) {
+		int projection = background == BACKGROUND_EYE_BUFFER ? 0 : mVideoProjection;
+		Integer key = Integer.valueOf((reprojection ? 1 : 0) | layerCount << 1 | background << 4 | projection << 6);
+		ProgramHolder holder = mCompositorProgramHolders.get(key);
+		if (holder == null) {
+			holder = createCompositorProgramHolder(reprojection, layerCount, background, projection);
+			mCompositorProgramHolders.put(key, holder);
+		}
+		return holder;
+	}
 
-					float vignette = 1.0F - DistortionRenderer.clamp(drTexture / vignetteSizeMTexture, 0.0F, 1.0F);
+	/**
+	 * Creates a distortion program that samples the video layer or the eye buffer, or both, and composites layerCount quad layers over them.
+	 * The vertex shader recovers the view ray of each vertex from its screen position with the distortion polynomial, so the layers do not depend on how the eye buffer is packed or reprojected.
+	 */
+	private ProgramHolder createCompositorProgramHolder(boolean reprojection, int layerCount, int background, int projection) {
+		boolean eyeBuffer = background != BACKGROUND_VIDEO;
+		boolean video = background != BACKGROUND_EYE_BUFFER;
+
+		String vertexDeclarations = "uniform vec4 uScreenToLens;\nuniform vec3 uDistortion;\n";
+		String vertexMain = "void main() {\n    vec2 lensOffset = aPosition * uScreenToLens.xy + uScreenToLens.zw;\n    float rSq = dot(lensOffset, lensOffset);\n    vec3 layerRay = vec3(lensOffset * ((1.0 + uDistortion.x * rSq + uDistortion.y * rSq * rSq) * uDistortion.z), -1.0);\n";
+		String fragmentDeclarations = "varying float vVignette;\n";
+		String fragmentMain = "void main() {\n";
+		if (eyeBuffer) {
+			fragmentDeclarations += "varying vec2 vTextureCoord;\nuniform sampler2D uTextureSampler;\n";
+		}
+		if (layerCount > 0) {
+			vertexDeclarations += "uniform mat3 uLayerTransform[" + layerCount + "];\nvarying vec3 vLayerCoord[" + layerCount + "];\n";
+			vertexMain += "    for (int i = 0; i < " + layerCount + "; i++) {\n        vLayerCoord[i] = uLayerTransform[i] * layerRay;\n    }\n";
+			fragmentDeclarations += "varying vec3 vLayerCoord[" + layerCount + "];\nuniform sampler2D uLayerSampler[" + layerCount + "];\nuniform float uLayerOpacity[" + layerCount + "];\n";
+		}
+		if (video) {
+			vertexDeclarations += "uniform mat3 uVideoRotation;\nvarying vec3 vVideoRay;\n";
+			vertexMain += "    vVideoRay = uVideoRotation * layerRay;\n";
+			fragmentDeclarations += "varying vec3 vVideoRay;\nuniform samplerExternalOES uVideoSampler;\nuniform vec4 uVideoRect;\nuniform mat4 uVideoTextureTransform;\n";
+			if (projection == VideoLayer.Projection.CUBEMAP) {
+				fragmentDeclarations += "vec2 getVideoCoord() {\n    vec3 a = abs(vVideoRay);\n    vec2 face;\n    vec2 cell;\n    if ((a.x >= a.y) && (a.x >= a.z)) {\n        face = vec2(vVideoRay.x > 0.0 ? vVideoRay.z : -vVideoRay.z, vVideoRay.y) / a.x;\n        cell = vec2(vVideoRay.x > 0.0 ? 0.0 : 1.0, 1.0);\n    }\n    else if (a.y >= a.z) {\n        face = vec2(vVideoRay.x, vVideoRay.y > 0.0 ? vVideoRay.z : -vVideoRay.z) / a.y;\n        cell = vec2(vVideoRay.y > 0.0 ? 2.0 : 0.0, vVideoRay.y > 0.0 ? 1.0 : 0.0);\n    }\n    else {\n        face = vec2(vVideoRay.z > 0.0 ? -vVideoRay.x : vVideoRay.x, vVideoRay.y) / a.z;\n        cell = vec2(vVideoRay.z > 0.0 ? 2.0 : 1.0, 0.0);\n    }\n    vec2 uv = (cell + face * 0.499 + 0.5) / vec2(3.0, 2.0);\n    return (uVideoTextureTransform * vec4(uv * uVideoRect.xy + uVideoRect.zw, 0.0, 1.0)).xy;\n}\n";
+			}
+			else {
+				fragmentDeclarations += "vec2 getVideoCoord() {\n    vec3 d = normalize(vVideoRay);\n    vec2 uv = vec2(atan(d.x, -d.z) * 0.15915494 + 0.5, asin(clamp(d.y, -1.0, 1.0)) * 0.31830989 + 0.5);\n    return (uVideoTextureTransform * vec4(uv * uVideoRect.xy + uVideoRect.zw, 0.0, 1.0)).xy;\n}\n";
+			}
+		}
 
-					vertexData[(vertexOffset + 0)] = (2.0F * uScreen - 1.0F);
-					vertexData[(vertexOffset + 1)] = (2.0F * vScreen - 1.0F);
-					vertexData[(vertexOffset + 2)] = vignette;
-					vertexData[(vertexOffset + 3)] = uTexture;
-					vertexData[(vertexOffset + 4)] = vTexture;
+		if (background == BACKGROUND_EYE_BUFFER) {
+			fragmentMain += "    vec4 color = texture2D(uTextureSampler, vTextureCoord);\n";
+		}
+		else if (background == BACKGROUND_VIDEO) {
+			fragmentMain += "    vec4 color = texture2D(uVideoSampler, getVideoCoord());\n";
+		}
+		else {
+			fragmentMain += "    vec4 overlay = texture2D(uTextureSampler, vTextureCoord);\n    vec4 color = texture2D(uVideoSampler, getVideoCoord()) * (1.0 - overlay.a) + overlay;\n";
+		}
+		if (layerCount > 0) {
+			fragmentMain += "    for (int i = 0; i < " + layerCount + "; i++) {\n        vec2 uv = vLayerCoord[i].xy / max(vLayerCoord[i].z, 0.0001);\n        float inside = step(0.0, vLayerCoord[i].z) * step(abs(uv.x), 1.0) * step(abs(uv.y), 1.0);\n        vec4 layer = texture2D(uLayerSampler[i], vec2(uv.x, -uv.y) * 0.5 + 0.5) * (uLayerOpacity[i] * inside);\n        color = color * (1.0 - layer.a) + layer;\n    }\n";
+		}
+		fragmentMain += "    gl_FragColor = vVignette * color;\n}\n";
 
-					vertexOffset += 5;
-				}
+		String vertexSource = (eyeBuffer ? (reprojection ? REPROJECTION_VERTEX_SHADER : VERTEX_SHADER) : VIDEO_VERTEX_SHADER).replace("void main() {\n", vertexDeclarations + vertexMain);
+		String fragmentSource = (video ? "#extension GL_OES_EGL_image_external : require\n" : "") + "#ifdef GL_FRAGMENT_PRECISION_HIGH\nprecision highp float;\n#else\nprecision mediump float;\n#endif\n" + fragmentDeclarations + fragmentMain;
 
-			}
+		ProgramHolder holder = new ProgramHolder();
+		holder.program = createProgram(vertexSource, fragmentSource);
+		if (holder.program == 0) {
+			throw new RuntimeException("Could not create program");
+		}
 
-			nIndices = 3158;
-			int[] indexData = new int[nIndices];
-			int indexOffset = 0;
-			vertexOffset = 0;
-			for (int row = 0; row < 39; row++) {
-				if (row > 0) {
-					indexData[indexOffset] = indexData[(indexOffset - 1)];
-					indexOffset++;
-				}
-				for (int col = 0; col < 40; col++) {
-					if (col > 0) {
-						if (row % 2 == 0)
-						{
-							vertexOffset++;
-						}
-						else {
-							vertexOffset--;
-						}
-					}
-					indexData[(indexOffset++)] = vertexOffset;
-					indexData[(indexOffset++)] = (vertexOffset + 40);
-				}
-				vertexOffset += 40;
+		holder.aPosition = GLES20.glGetAttribLocation(holder.program, "aPosition");
+		checkGlError("glGetAttribLocation aPosition");
+		if (holder.aPosition == -1) {
+			throw new RuntimeException("Could not get attrib location for aPosition");
+		}
+		holder.aVignette = GLES20.glGetAttribLocation(holder.program, "aVignette");
+		checkGlError("glGetAttribLocation aVignette");
+		if (holder.aVignette == -1) {
+			throw new RuntimeException("Could not get attrib location for aVignette");
+		}
+		holder.uReprojection = -1;
+		holder.uTanAngleFromUv = -1;
+		if (eyeBuffer) {
+			holder.aTextureCoord = GLES20.glGetAttribLocation(holder.program, "aTextureCoord");
+
+			checkGlError("glGetAttribLocation aTextureCoord");
+			if (holder.aTextureCoord == -1) {
+				throw new RuntimeException("Could not get attrib location for aTextureCoord");
 			}
+			holder.uTextureCoordScale = getUniformLocation(holder.program, "uTextureCoordScale");
+			holder.uTextureSampler = getUniformLocation(holder.program, "uTextureSampler");
+			if (reprojection) {
+				holder.uReprojection = getUniformLocation(holder.program, "uReprojection");
+				holder.uTanAngleFromUv = getUniformLocation(holder.program, "uTanAngleFromUv");
+			}
+		}
+		else {
+			holder.aTextureCoord = -1;
+			holder.uTextureCoordScale = -1;
+			holder.uTextureSampler = -1;
+		}
+		holder.uScreenToLens = getUniformLocation(holder.program, "uScreenToLens");
+		holder.uDistortion = getUniformLocation(holder.program, "uDistortion");
+		if (layerCount > 0) {
+			holder.uLayerTransform = getUniformLocation(holder.program, "uLayerTransform");
+			holder.uLayerSampler = getUniformLocation(holder.program, "uLayerSampler");
+			holder.uLayerOpacity = getUniformLocation(holder.program, "uLayerOpacity");
+		}
+		if (video) {
+			holder.uVideoRotation = getUniformLocation(holder.program, "uVideoRotation");
+			holder.uVideoSampler = getUniformLocation(holder.program, "uVideoSampler");
+			holder.uVideoRect = getUniformLocation(holder.program, "uVideoRect");
+			holder.uVideoTextureTransform = getUniformLocation(holder.program, "uVideoTextureTransform");
+		}
 
-			FloatBuffer vertexBuffer = ByteBuffer.allocateDirect(vertexData.length * 4).order(ByteOrder.nativeOrder()).asFloatBuffer();
+		return holder;
+	}
+
+	private int getUniformLocation(int program, String name) {
+		int location = GLES20.glGetUniformLocation(program, name);
+		checkGlError("glGetUniformLocation " + name);
+		if (location == -1) {
+			throw new RuntimeException("Could not get attrib location for " + name);
+		}
+		return location;
+	}
+
+	private ProgramHolder createLookupProgramHolder() {
+		ProgramHolder holder = new ProgramHolder();
+		holder.program = createProgram(LOOKUP_VERTEX_SHADER, LOOKUP_FRAGMENT_SHADER);
+		if (holder.program == 0) {
+			throw new RuntimeException("Could not create program");
+		}
+
+		holder.aPosition = GLES20.glGetAttribLocation(holder.program, "aPosition");
+		checkGlError("glGetAttribLocation aPosition");
+		if (holder.aPosition == -1) {
+			throw new RuntimeException("Could not get attrib location for aPosition");
+		}
+		holder.aVignette = -1;
+		holder.aTextureCoord = GLES20.glGetAttribLocation(holder.program, "aTextureCoord");
+
+		checkGlError("glGetAttribLocation aTextureCoord");
+		if (holder.aTextureCoord == -1) {
+			throw new RuntimeException("Could not get attrib location for aTextureCoord");
+		}
+		holder.uTextureCoordScale = GLES20.glGetUniformLocation(holder.program, "uTextureCoordScale");
+
+		checkGlError("glGetUniformLocation uTextureCoordScale");
+		if (holder.uTextureCoordScale == -1) {
+			throw new RuntimeException("Could not get attrib location for uTextureCoordScale");
+		}
+		holder.uTextureSampler = GLES20.glGetUniformLocation(holder.program, "uTextureSampler");
+
+		checkGlError("glGetUniformLocation uTextureSampler");
+		if (holder.uTextureSampler == -1) {
+			throw new RuntimeException("Could not get attrib location for uTextureSampler");
+		}
+		holder.uLookupSampler = GLES20.glGetUniformLocation(holder.program, "uLookupSampler");
+
+		checkGlError("glGetUniformLocation uLookupSampler");
+		if (holder.uLookupSampler == -1) {
+			throw new RuntimeException("Could not get attrib location for uLookupSampler");
+		}
+
+		return holder;
+	}
 
-			vertexBuffer.put(vertexData).position(0);
+	private void checkGlError(String op)
+	{
+		int error;
+		if ((error = GLES20.glGetError()) != 0) {
+			Log.e("DistortionRenderer", op + ": glError " + error);
+			throw new RuntimeException(op + ": glError " + error);
+		}
+	}
 
-			IntBuffer indexBuffer = ByteBuffer.allocateDirect(indexData.length * 4).order(ByteOrder.nativeOrder()).asIntBuffer();
+	private class DistortionMesh
+	{
+		private static final String TAG = "DistortionMesh";
+		public int nIndices;
+		public int mMode;
+		public final int[] mEyeIndexOffset = new int[2];
+		public final int[] mEyeIndexCount = new int[2];
+		public final boolean[] mEyeCovered = new boolean[2];
+		public int mArrayBufferId = -1;
+		public int mElementBufferId = -1;
 
-			indexBuffer.put(indexData).position(0);
+		public DistortionMesh(RenderPlan plan)
+		{
+			ByteBuffer vertexData = plan.vertexData;
+			ByteBuffer indexData = plan.indexData;
+			nIndices = plan.getTotalIndexCount();
+			mMode = plan.mode;
+			System.arraycopy(plan.indexOffset, 0, mEyeIndexOffset, 0, 2);
+			System.arraycopy(plan.indexCount, 0, mEyeIndexCount, 0, 2);
+			mEyeCovered[0] = DistortionMeshEncoder.coversScreenHalf(vertexData, indexData, mMode, mEyeIndexOffset[0], mEyeIndexCount[0], -1.0F, 0.0F);
+			mEyeCovered[1] = DistortionMeshEncoder.coversScreenHalf(vertexData, indexData, mMode, mEyeIndexOffset[1], mEyeIndexCount[1], 0.0F, 1.0F);
 
 			int[] bufferIds = new int[2];
 			GLES20.glGenBuffers(2, bufferIds, 0);
@@ -482,32 +1537,148 @@ public class DistortionRenderer
 			mElementBufferId = bufferIds[1];
 
 			GLES20.glBindBuffer(34962, mArrayBufferId);
-			GLES20.glBufferData(34962, vertexData.length * 4, vertexBuffer, 35044);
+			GLES20.glBufferData(34962, vertexData.limit(), vertexData.position(0), 35044);
 
 			GLES20.glBindBuffer(34963, mElementBufferId);
-			GLES20.glBufferData(34963, indexData.length * 4, indexBuffer, 35044);
+			GLES20.glBufferData(34963, indexData.limit(), indexData.position(0), 35044);
 
 			GLES20.glBindBuffer(34962, 0);
 			GLES20.glBindBuffer(34963, 0);
 		}
+
+		public void delete()
+		{
+			GLES20.glDeleteBuffers(2, new int[] { mArrayBufferId, mElementBufferId }, 0);
+			mArrayBufferId = -1;
+			mElementBufferId = -1;
+		}
 	}
 
-	private class EyeViewport
+	private class DistortionLookup
 	{
-		public float x;
-		public float y;
-		public float width;
-		public float height;
-		public float eyeX;
-		public float eyeY;
+		public final int[] mTextureIds = { -1, -1 };
+		public int mArrayBufferId = -1;
 
-		private EyeViewport()
+		public DistortionLookup(int width, int height, ByteBuffer[] texels)
 		{
+			float sMin = 0.5F / width;
+			float sMax = 1.0F - sMin;
+			float tMin = 0.5F / height;
+			float tMax = 1.0F - tMin;
+			float[] vertexData = {
+				-1.0F, -1.0F, sMin, tMin, 0.0F, -1.0F, sMax, tMin, -1.0F, 1.0F, sMin, tMax, 0.0F, 1.0F, sMax, tMax,
+				0.0F, -1.0F, sMin, tMin, 1.0F, -1.0F, sMax, tMin, 0.0F, 1.0F, sMin, tMax, 1.0F, 1.0F, sMax, tMax };
+
+			FloatBuffer vertices = ByteBuffer.allocateDirect(vertexData.length * 4).order(ByteOrder.nativeOrder()).asFloatBuffer();
+			vertices.put(vertexData).position(0);
+
+			int[] bufferIds = new int[1];
+			GLES20.glGenBuffers(1, bufferIds, 0);
+			mArrayBufferId = bufferIds[0];
+			GLES20.glBindBuffer(34962, mArrayBufferId);
+			GLES20.glBufferData(34962, vertexData.length * 4, vertices, 35044);
+			GLES20.glBindBuffer(34962, 0);
+
+			GLES20.glGenTextures(2, mTextureIds, 0);
+			GLES20.glPixelStorei(3317, 2);
+			for (int eye = 0; eye < 2; eye++) {
+				GLES20.glBindTexture(3553, mTextureIds[eye]);
+				GLES20.glTexParameteri(3553, 10242, 33071);
+				GLES20.glTexParameteri(3553, 10243, 33071);
+				GLES20.glTexParameteri(3553, 10240, 9729);
+				GLES20.glTexParameteri(3553, 10241, 9729);
+				GLES20.glTexImage2D(3553, 0, mLookupInternalFormat, width, height, 0, 6407, mLookupType, texels[eye]);
+			}
+			GLES20.glPixelStorei(3317, 4);
+			GLES20.glBindTexture(3553, 0);
+			checkGlError("DistortionLookup: create textures");
 		}
 
-		public String toString()
+		public void delete()
 		{
-			return "EyeViewport {x:" + x + " y:" + y + " width:" + width + " height:" + height + " eyeX: " + eyeX + " eyeY: " + eyeY + "}";
+			GLES20.glDeleteTextures(2, mTextureIds, 0);
+			GLES20.glDeleteBuffers(1, new int[] { mArrayBufferId }, 0);
+			mTextureIds[0] = -1;
+			mTextureIds[1] = -1;
+			mArrayBufferId = -1;
+		}
+	}
+
+	private class HiddenAreaMask
+	{
+		public final int[] mEyeVertexOffset = new int[2];
+		public final int[] mEyeVertexCount = new int[2];
+		public int mArrayBufferId = -1;
+
+		public HiddenAreaMask(float[][] eyeVertices)
+		{
+			int floatCount = eyeVertices[0].length + eyeVertices[1].length;
+			FloatBuffer vertices = ByteBuffer.allocateDirect(floatCount * 4).order(ByteOrder.nativeOrder()).asFloatBuffer();
+			for (int eye = 0; eye < 2; eye++) {
+				mEyeVertexOffset[eye] = vertices.position() / HiddenAreaMesh.FLOATS_PER_VERTEX;
+				mEyeVertexCount[eye] = eyeVertices[eye].length / HiddenAreaMesh.FLOATS_PER_VERTEX;
+				vertices.put(eyeVertices[eye]);
+			}
+			vertices.position(0);
+
+			int[] bufferIds = new int[1];
+			GLES20.glGenBuffers(1, bufferIds, 0);
+			mArrayBufferId = bufferIds[0];
+			GLES20.glBindBuffer(34962, mArrayBufferId);
+			GLES20.glBufferData(34962, floatCount * 4, vertices, 35044);
+			GLES20.glBindBuffer(34962, 0);
+		}
+
+		public void delete()
+		{
+			GLES20.glDeleteBuffers(1, new int[] { mArrayBufferId }, 0);
+			mArrayBufferId = -1;
+		}
+	}
+
+	private static class ProjectionRequest
+	{
+		final int generation;
+		final HeadMountedDisplay hmd;
+		final RenderPlan.Options options;
+		final boolean useLookup;
+		final EyeParams leftEye;
+		final EyeParams rightEye;
+		final float zNear;
+		final float zFar;
+		RenderPlan plan;
+		int lookupWidth;
+		int lookupHeight;
+		ByteBuffer[] lookupTexels;
+
+		ProjectionRequest(int generation, HeadMountedDisplay hmd, RenderPlan.Options options, boolean useLookup, EyeParams leftEye, EyeParams rightEye, float zNear, float zFar)
+		{
+			this.generation = generation;
+			this.hmd = new HeadMountedDisplay(hmd);
+			this.options = new RenderPlan.Options(options);
+			this.useLookup = useLookup;
+			this.leftEye = leftEye;
+			this.rightEye = rightEye;
+			this.zNear = zNear;
+			this.zFar = zFar;
+		}
+
+		void prepare(RenderPlanCache cache)
+		{
+			if (plan == null) {
+				plan = cache.getOrCreate(hmd, options);
+			}
+
+			if (useLookup) {
+				ScreenParams screen = hmd.getScreen();
+				lookupWidth = DistortionLookupEncoder.getLookupSize(screen.getWidth() / 2);
+				lookupHeight = DistortionLookupEncoder.getLookupSize(screen.getHeight());
+				lookupTexels = new ByteBuffer[2];
+				for (int eye = 0; eye < 2; eye++) {
+					DistortionMeshBuilder builder = plan.createMeshBuilder(hmd, eye == 0 ? EyeParams.Eye.LEFT : EyeParams.Eye.RIGHT);
+					lookupTexels[eye] = DistortionLookupEncoder.encode(builder, lookupWidth, lookupHeight, eye * 0.5F, eye * 0.5F + 0.5F);
+				}
+			}
 		}
 	}
 
@@ -519,9 +1690,46 @@ public class DistortionRenderer
 		public int aTextureCoord;
 		public int uTextureCoordScale;
 		public int uTextureSampler;
+		public int uLookupSampler;
+		public int uReprojection;
+		public int uTanAngleFromUv;
+		public int uTanAngleToNdc;
+		public int uScreenToLens = -1;
+		public int uDistortion = -1;
+		public int uLayerTransform = -1;
+		public int uLayerSampler = -1;
+		public int uLayerOpacity = -1;
+		public int uVideoRotation = -1;
+		public int uVideoSampler = -1;
+		public int uVideoRect = -1;
+		public int uVideoTextureTransform = -1;
 
 		private ProgramHolder()
 		{
 		}
 	}
-}
\ No newline at end of file
+
+	/** Defines the constants identifying the color format of the eye buffers. */
+	public static class ColorFormat
+	{
+		public static final int RGB565 = 0;
+		public static final int RGBA8888 = 1;
+		public static final int SRGB8_ALPHA8 = 2;
+	}
+
+	/** Defines the constants identifying the depth and stencil format of the eye buffers. */
+	public static class DepthFormat
+	{
+		public static final int NONE = 0;
+		public static final int DEPTH16 = 1;
+		public static final int DEPTH24 = 2;
+		public static final int DEPTH24_STENCIL8 = 3;
+	}
+
+	/** Defines the constants identifying the lens distortion correction method. */
+	public static class DistortionMode
+	{
+		public static final int MESH = 0;
+		public static final int LOOKUP_TEXTURE = 1;
+	}
+}
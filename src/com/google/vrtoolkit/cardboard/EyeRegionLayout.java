@@ -0,0 +1,164 @@
+/*
+ * Copyright 2014 Google Inc. All Rights Reserved.
+
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.vrtoolkit.cardboard;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Splits an eye buffer into a full density center and reduced density periphery, three regions along each axis.
+ *
+ * Region edges are given in eye parameter space, where 0 and 1 are the edges of the undistorted eye viewport, and are snapped to multiples of 1 / EDGE_STEPS so that distortion mesh lines can fall exactly on them.
+ */
+class EyeRegionLayout
+{
+	public static final int REGIONS_PER_AXIS = 3;
+	public static final int REGION_COUNT = REGIONS_PER_AXIS * REGIONS_PER_AXIS;
+	public static final int EDGE_STEPS = 8;
+	static final int SERIALIZED_FLOATS = 4;
+	static final int SERIALIZED_INTS = 8;
+	private final float[] mEdges;
+	private final int[] mEdgesPx;
+
+	public EyeRegionLayout()
+	{
+		mEdges = new float[4];
+		mEdgesPx = new int[8];
+	}
+
+	public static EyeRegionLayout create(RenderPlan.EyeViewport vp, Viewport eyeViewportPx, float centerFraction, float peripheryScale)
+	{
+		EyeRegionLayout layout = new EyeRegionLayout();
+		layout.initAxis(0, (vp.eyeX - vp.x) / vp.width, centerFraction, peripheryScale, eyeViewportPx.x, eyeViewportPx.width);
+		layout.initAxis(1, (vp.eyeY - vp.y) / vp.height, centerFraction, peripheryScale, eyeViewportPx.y, eyeViewportPx.height);
+		return layout;
+	}
+
+	private void initAxis(int axis, float center, float centerFraction, float peripheryScale, int originPx, int fullSizePx)
+	{
+		float start = snap(center - centerFraction / 2.0F);
+		float end = snap(center + centerFraction / 2.0F);
+		if (end <= start) {
+			end = Math.min(1.0F, start + 1.0F / EDGE_STEPS);
+			start = end - 1.0F / EDGE_STEPS;
+		}
+		mEdges[(axis * 2)] = start;
+		mEdges[(axis * 2 + 1)] = end;
+
+		int offset = axis * 4;
+		mEdgesPx[offset] = originPx;
+		mEdgesPx[(offset + 1)] = (mEdgesPx[offset] + Math.round(start * fullSizePx * peripheryScale));
+		mEdgesPx[(offset + 2)] = (mEdgesPx[(offset + 1)] + Math.round((end - start) * fullSizePx));
+		mEdgesPx[(offset + 3)] = (mEdgesPx[(offset + 2)] + Math.round((1.0F - end) * fullSizePx * peripheryScale));
+	}
+
+	private static float snap(float t)
+	{
+		return Math.max(0.0F, Math.min(1.0F, Math.round(t * EDGE_STEPS) / (float)EDGE_STEPS));
+	}
+
+	public float getEdge(int axis, int index)
+	{
+		return mEdges[(axis * 2 + index)];
+	}
+
+	public int getOriginPx(int axis)
+	{
+		return mEdgesPx[(axis * 4)];
+	}
+
+	public int getSizePx(int axis)
+	{
+		return mEdgesPx[(axis * 4 + 3)] - mEdgesPx[(axis * 4)];
+	}
+
+	/** Maps an eye parameter along an axis to its position in the eye buffer, in pixels. */
+	public float map(int axis, float t)
+	{
+		float start = mEdges[(axis * 2)];
+		float end = mEdges[(axis * 2 + 1)];
+		int offset = axis * 4;
+		if (t < start) {
+			return mEdgesPx[offset] + t / start * (mEdgesPx[(offset + 1)] - mEdgesPx[offset]);
+		}
+		if ((t <= end) || (end >= 1.0F)) {
+			return mEdgesPx[(offset + 1)] + (t - start) / (end - start) * (mEdgesPx[(offset + 2)] - mEdgesPx[(offset + 1)]);
+		}
+		return mEdgesPx[(offset + 2)] + (t - end) / (1.0F - end) * (mEdgesPx[(offset + 3)] - mEdgesPx[(offset + 2)]);
+	}
+
+	/**
+	 * Sets the field of view and viewport of a region from those of its eye.
+	 * Returns false if the region is empty.
+	 */
+	public boolean getRegion(int region, FieldOfView eyeFov, FieldOfView regionFov, Viewport regionViewport)
+	{
+		int column = region % REGIONS_PER_AXIS;
+		int row = region / REGIONS_PER_AXIS;
+		int x = mEdgesPx[column];
+		int width = mEdgesPx[(column + 1)] - x;
+		int y = mEdgesPx[(4 + row)];
+		int height = mEdgesPx[(4 + row + 1)] - y;
+		if ((width <= 0) || (height <= 0)) {
+			return false;
+		}
+		regionViewport.setViewport(x, y, width, height);
+
+		float tanLeft = (float)Math.tan(Math.toRadians(eyeFov.getLeft()));
+		float tanRight = (float)Math.tan(Math.toRadians(eyeFov.getRight()));
+		float tanBottom = (float)Math.tan(Math.toRadians(eyeFov.getBottom()));
+		float tanTop = (float)Math.tan(Math.toRadians(eyeFov.getTop()));
+		float tanWidth = tanLeft + tanRight;
+		float tanHeight = tanBottom + tanTop;
+
+		regionFov.setLeft((float)Math.toDegrees(Math.atan(tanLeft - getStart(0, column) * tanWidth)));
+		regionFov.setRight((float)Math.toDegrees(Math.atan(getEnd(0, column) * tanWidth - tanLeft)));
+		regionFov.setBottom((float)Math.toDegrees(Math.atan(tanBottom - getStart(1, row) * tanHeight)));
+		regionFov.setTop((float)Math.toDegrees(Math.atan(getEnd(1, row) * tanHeight - tanBottom)));
+		return true;
+	}
+
+	private float getStart(int axis, int index)
+	{
+		return index == 0 ? 0.0F : mEdges[(axis * 2 + index - 1)];
+	}
+
+	private float getEnd(int axis, int index)
+	{
+		return index == REGIONS_PER_AXIS - 1 ? 1.0F : mEdges[(axis * 2 + index)];
+	}
+
+	public void writeTo(ByteBuffer buffer)
+	{
+		for (float edge : mEdges) {
+			buffer.putFloat(edge);
+		}
+		for (int edgePx : mEdgesPx) {
+			buffer.putInt(edgePx);
+		}
+	}
+
+	public static EyeRegionLayout readFrom(ByteBuffer buffer)
+	{
+		EyeRegionLayout layout = new EyeRegionLayout();
+		for (int i = 0; i < layout.mEdges.length; i++) {
+			layout.mEdges[i] = buffer.getFloat();
+		}
+		for (int i = 0; i < layout.mEdgesPx.length; i++) {
+			layout.mEdgesPx[i] = buffer.getInt();
+		}
+		return layout;
+	}
+}
@@ -0,0 +1,135 @@
+/*
+ * Copyright 2014 Google Inc. All Rights Reserved.
+
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.vrtoolkit.cardboard;
+
+import android.opengl.GLES20;
+import android.opengl.GLES30;
+import android.util.Log;
+
+/**
+ * Bounds how many frames the driver may queue ahead of the GPU, with a fence sync inserted at the end of each frame on OpenGL ES 3.0 contexts.
+ * Before a frame samples its head pose, the fence of the frame maxQueuedFrames earlier is waited on, so a pose is never older than that many frames when it reaches the display.
+ */
+class FrameQueueLimiter
+{
+	private static final String TAG = "FrameQueueLimiter";
+	public static final int MAX_QUEUED_FRAMES = 4;
+	private static final long WAIT_TIMEOUT_NS = 100000000L;
+	private final long[] mFences;
+	private int mFirst;
+	private int mCount;
+	private int mMaxQueuedFrames;
+	private int mSupported;
+	private volatile long mLastWaitNanos;
+
+	public FrameQueueLimiter()
+	{
+		mFences = new long[MAX_QUEUED_FRAMES];
+	}
+
+	public boolean isSupported()
+	{
+		if (mSupported == 0) {
+			String version = GLES20.glGetString(7938);
+			if ((version != null) && (version.startsWith("OpenGL ES 3"))) {
+				mSupported = 1;
+			}
+			else {
+				Log.w(TAG, "Fence syncs are not supported, the frame queue is not limited.");
+				mSupported = -1;
+			}
+		}
+		return mSupported == 1;
+	}
+
+	/** Sets how many frames may be queued ahead of the GPU, or 0 to leave the queue to the driver. */
+	public void setMaxQueuedFrames(int frames)
+	{
+		if ((frames < 0) || (frames > MAX_QUEUED_FRAMES)) {
+			throw new IllegalArgumentException("Invalid queued frame count: " + frames);
+		}
+		mMaxQueuedFrames = frames;
+		if (frames == 0) {
+			release();
+		}
+	}
+
+	public int getMaxQueuedFrames()
+	{
+		return mMaxQueuedFrames;
+	}
+
+	/** Returns the time the last frame waited for the GPU before sampling its pose, in nanoseconds. */
+	public long getLastWaitTime()
+	{
+		return mLastWaitNanos;
+	}
+
+	/** Waits until at most maxQueuedFrames - 1 earlier frames are still queued. Fences older than the one waited on are deleted without waiting. */
+	public void waitForQueuedFrames()
+	{
+		if ((mMaxQueuedFrames == 0) || (mCount < mMaxQueuedFrames)) {
+			mLastWaitNanos = 0L;
+			return;
+		}
+
+		long startNanos = System.nanoTime();
+		while (mCount >= mMaxQueuedFrames) {
+			long fence = mFences[mFirst];
+			mFirst = (mFirst + 1) % MAX_QUEUED_FRAMES;
+			mCount -= 1;
+			if ((mCount == mMaxQueuedFrames - 1) && (GLES30.glClientWaitSync(fence, 1, WAIT_TIMEOUT_NS) == 37147)) {
+				Log.w(TAG, "Timed out waiting for a queued frame.");
+			}
+			GLES30.glDeleteSync(fence);
+		}
+		mLastWaitNanos = System.nanoTime() - startNanos;
+	}
+
+	/** Inserts the fence of the frame just submitted. */
+	public void insertFence()
+	{
+		if ((mMaxQueuedFrames == 0) || (!isSupported())) {
+			return;
+		}
+
+		if (mCount == MAX_QUEUED_FRAMES) {
+			GLES30.glDeleteSync(mFences[mFirst]);
+			mFirst = (mFirst + 1) % MAX_QUEUED_FRAMES;
+			mCount -= 1;
+		}
+		mFences[((mFirst + mCount) % MAX_QUEUED_FRAMES)] = GLES30.glFenceSync(37143, 0);
+		mCount += 1;
+	}
+
+	/** Deletes all pending fences. */
+	public void release()
+	{
+		for (int i = 0; i < mCount; i++) {
+			GLES30.glDeleteSync(mFences[((mFirst + i) % MAX_QUEUED_FRAMES)]);
+		}
+		mFirst = 0;
+		mCount = 0;
+	}
+
+	/** Forgets the pending fences and the supported state, after the GL context they belonged to was lost. */
+	public void reset()
+	{
+		mFirst = 0;
+		mCount = 0;
+		mSupported = 0;
+	}
+}
@@ -0,0 +1,96 @@
+/*
+ * Copyright 2014 Google Inc. All Rights Reserved.
+
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.vrtoolkit.cardboard;
+
+/**
+ * Counts the framebuffer commands issued by the distortion pass.
+ *
+ * An elided clear is a color clear replaced by an invalidation of the target color, because the distortion pass writes every pixel it would have cleared. The depth buffer of the target is still cleared when it has one.
+ * The discarded byte count estimates the attachment memory that tile-based GPUs do not have to write back or load because it was invalidated.
+ */
+public class GLCommandCounter
+{
+	private volatile long mFrameCount;
+	private volatile long mClearCount;
+	private volatile long mElidedClearCount;
+	private volatile long mInvalidateCount;
+	private volatile long mDiscardedBytes;
+
+	GLCommandCounter()
+	{
+	}
+
+	public long getFrameCount()
+	{
+		return mFrameCount;
+	}
+
+	public long getClearCount()
+	{
+		return mClearCount;
+	}
+
+	public long getElidedClearCount()
+	{
+		return mElidedClearCount;
+	}
+
+	public long getInvalidateCount()
+	{
+		return mInvalidateCount;
+	}
+
+	public long getDiscardedBytes()
+	{
+		return mDiscardedBytes;
+	}
+
+	public void reset()
+	{
+		mFrameCount = 0L;
+		mClearCount = 0L;
+		mElidedClearCount = 0L;
+		mInvalidateCount = 0L;
+		mDiscardedBytes = 0L;
+	}
+
+	void countFrame()
+	{
+		mFrameCount += 1L;
+	}
+
+	void countClear()
+	{
+		mClearCount += 1L;
+	}
+
+	void countElidedClear()
+	{
+		mElidedClearCount += 1L;
+	}
+
+	void countInvalidate(long discardedBytes)
+	{
+		mInvalidateCount += 1L;
+		mDiscardedBytes += discardedBytes;
+	}
+
+	public String toString()
+	{
+		long frames = mFrameCount;
+		return "GLCommandCounter {frames:" + frames + " clears:" + mClearCount + " elided clears:" + mElidedClearCount + " invalidates:" + mInvalidateCount + " discarded bytes per frame:" + (frames > 0L ? mDiscardedBytes / frames : 0L) + "}";
+	}
+}
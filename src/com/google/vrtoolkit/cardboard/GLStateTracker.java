@@ -0,0 +1,164 @@
+/*
+ * Copyright 2014 Google Inc. All Rights Reserved.
+
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.vrtoolkit.cardboard;
+
+import android.opengl.GLES20;
+import android.util.Log;
+
+/**
+ * Shadows the application GL state changed by the distortion pass so that it can be restored without querying the driver every frame.
+ *
+ * The capabilities are read from the driver at the start of every distortion pass, since applications may toggle them between frames and the queries are cheap.
+ * The framebuffer binding and the depth and color sizes are read once after each invalidation. An application that binds a different framebuffer for the distortion pass after that must invalidate the state again; the validation mode reports such mismatches.
+ */
+class GLStateTracker
+{
+	private static final String TAG = "GLStateTracker";
+	private final int[] mQuery;
+	private boolean mFramebufferSynced;
+	private boolean mDepthBitsSynced;
+	private boolean mValidationEnabled;
+	private int mFramebufferBinding;
+	private boolean mCullFaceEnabled;
+	private boolean mScissorTestEnabled;
+	private boolean mDepthTestEnabled;
+	private int mDepthBits;
+	private int mColorBits;
+
+	public GLStateTracker()
+	{
+		mQuery = new int[4];
+	}
+
+	public void invalidate()
+	{
+		mFramebufferSynced = false;
+		mDepthBitsSynced = false;
+	}
+
+	public void setValidationEnabled(boolean enabled)
+	{
+		mValidationEnabled = enabled;
+	}
+
+	public boolean isValidationEnabled()
+	{
+		return mValidationEnabled;
+	}
+
+	public int getFramebufferBinding()
+	{
+		if (!mFramebufferSynced) {
+			GLES20.glGetIntegerv(36006, mQuery, 0);
+			mFramebufferBinding = mQuery[0];
+			mFramebufferSynced = true;
+		}
+		return mFramebufferBinding;
+	}
+
+	/** Reads the tracked capabilities from the driver. Called at the start of each distortion pass. */
+	public void syncCapabilities()
+	{
+		mCullFaceEnabled = GLES20.glIsEnabled(2884);
+		mScissorTestEnabled = GLES20.glIsEnabled(3089);
+		mDepthTestEnabled = GLES20.glIsEnabled(2929);
+	}
+
+	public boolean isEnabled(int cap)
+	{
+		switch (cap) {
+		case 2884:
+			return mCullFaceEnabled;
+		case 3089:
+			return mScissorTestEnabled;
+		case 2929:
+			return mDepthTestEnabled;
+		}
+		throw new IllegalArgumentException("Untracked capability: " + cap);
+	}
+
+	/** Returns the depth buffer size of the framebuffer bound when first called after an invalidation. */
+	public int getDepthBits()
+	{
+		syncBits();
+		return mDepthBits;
+	}
+
+	/** Returns the total color buffer size of the framebuffer bound when first called after an invalidation. */
+	public int getColorBits()
+	{
+		syncBits();
+		return mColorBits;
+	}
+
+	private void syncBits()
+	{
+		if (!mDepthBitsSynced) {
+			GLES20.glGetIntegerv(3414, mQuery, 0);
+			mDepthBits = mQuery[0];
+			mColorBits = 0;
+			for (int pname = 3410; pname <= 3413; pname++) {
+				GLES20.glGetIntegerv(pname, mQuery, 0);
+				mColorBits += mQuery[0];
+			}
+			mDepthBitsSynced = true;
+		}
+	}
+
+	public void bindFramebuffer(int framebuffer)
+	{
+		GLES20.glBindFramebuffer(36160, framebuffer);
+	}
+
+	public void setEnabled(int cap, boolean enabled)
+	{
+		if (enabled) {
+			GLES20.glEnable(cap);
+		}
+		else {
+			GLES20.glDisable(cap);
+		}
+
+		switch (cap) {
+		case 2884:
+			mCullFaceEnabled = enabled;
+			break;
+		case 3089:
+			mScissorTestEnabled = enabled;
+			break;
+		case 2929:
+			mDepthTestEnabled = enabled;
+		}
+	}
+
+	public void setViewport(int x, int y, int width, int height)
+	{
+		GLES20.glViewport(x, y, width, height);
+	}
+
+	public void validateFramebufferBinding()
+	{
+		if ((!mValidationEnabled) || (!mFramebufferSynced)) {
+			return;
+		}
+
+		GLES20.glGetIntegerv(36006, mQuery, 0);
+		if (mQuery[0] != mFramebufferBinding) {
+			Log.w(TAG, "Framebuffer binding is " + mQuery[0] + " but the shadow state has " + mFramebufferBinding);
+			mFramebufferBinding = mQuery[0];
+		}
+	}
+}
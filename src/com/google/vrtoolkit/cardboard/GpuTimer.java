@@ -0,0 +1,117 @@
+/*
+ * Copyright 2014 Google Inc. All Rights Reserved.
+
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.vrtoolkit.cardboard;
+
+import android.opengl.GLES20;
+import android.opengl.GLES30;
+
+/**
+ * Measures GPU time with EXT_disjoint_timer_query on OpenGL ES 3.0 contexts, reading results from a ring of queries so that the driver is never waited on.
+ */
+class GpuTimer
+{
+	private static final int QUERY_COUNT = 4;
+	private final int[] mQueryIds;
+	private final boolean[] mQueryPending;
+	private final int[] mResult;
+	private int mSupported;
+	private int mCurrent;
+	private boolean mActive;
+
+	public GpuTimer()
+	{
+		mQueryIds = new int[QUERY_COUNT];
+		mQueryPending = new boolean[QUERY_COUNT];
+		mResult = new int[1];
+	}
+
+	public boolean isSupported()
+	{
+		if (mSupported == 0) {
+			String version = GLES20.glGetString(7938);
+			String extensions = GLES20.glGetString(7939);
+			if ((version != null) && (version.startsWith("OpenGL ES 3")) && (extensions != null) && (extensions.contains("GL_EXT_disjoint_timer_query"))) {
+				GLES30.glGenQueries(QUERY_COUNT, mQueryIds, 0);
+				mSupported = 1;
+			}
+			else {
+				mSupported = -1;
+			}
+		}
+		return mSupported == 1;
+	}
+
+	public void begin()
+	{
+		if ((!isSupported()) || (mQueryPending[mCurrent])) {
+			return;
+		}
+
+		GLES30.glBeginQuery(35007, mQueryIds[mCurrent]);
+		mActive = true;
+	}
+
+	public void end()
+	{
+		if (!mActive) {
+			return;
+		}
+
+		GLES30.glEndQuery(35007);
+		mQueryPending[mCurrent] = true;
+		mCurrent = (mCurrent + 1) % QUERY_COUNT;
+		mActive = false;
+	}
+
+	public long poll()
+	{
+		if (mSupported != 1) {
+			return -1L;
+		}
+
+		long elapsedNanos = -1L;
+		for (int i = 0; i < QUERY_COUNT; i++) {
+			int query = (mCurrent + i) % QUERY_COUNT;
+			if (!mQueryPending[query]) {
+				continue;
+			}
+
+			GLES30.glGetQueryObjectuiv(mQueryIds[query], 34919, mResult, 0);
+			if (mResult[0] == 0) {
+				break;
+			}
+
+			GLES30.glGetQueryObjectuiv(mQueryIds[query], 34918, mResult, 0);
+			elapsedNanos = mResult[0] & 0xFFFFFFFFL;
+			mQueryPending[query] = false;
+		}
+
+		GLES20.glGetIntegerv(36795, mResult, 0);
+		return mResult[0] != 0 ? -1L : elapsedNanos;
+	}
+
+	public void release()
+	{
+		if (mSupported == 1) {
+			GLES30.glDeleteQueries(QUERY_COUNT, mQueryIds, 0);
+		}
+		mSupported = 0;
+		mActive = false;
+		for (int i = 0; i < QUERY_COUNT; i++) {
+			mQueryPending[i] = false;
+		}
+	}
+}
@@ -0,0 +1,191 @@
+/*
+ * Copyright 2014 Google Inc. All Rights Reserved.
+
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.vrtoolkit.cardboard;
+
+import java.util.Arrays;
+
+/**
+ * Builds the mesh covering the parts of an eye field of view that cannot be seen after distortion correction.
+ *
+ * A direction is hidden when it lies outside the lens, or when it is distorted to a point outside the eye's half of the screen.
+ * The mesh is a closed triangle strip in tangent of angle units, alternating between the visible boundary and the edge of the field of view.
+ * Extra directions are added where the visible boundary crosses the field of view edge, and boundary vertices are pushed out so that the straight edges between them never cut into the visible area.
+ */
+class HiddenAreaMesh
+{
+	public static final int SEGMENTS = 64;
+	public static final int FLOATS_PER_VERTEX = 2;
+	private static final int CROSSING_ITERATIONS = 24;
+
+	public static float[] build(HeadMountedDisplay hmd, FieldOfView fov, int eye)
+	{
+		CardboardDeviceParams cdp = hmd.getCardboard();
+		ScreenParams screen = hmd.getScreen();
+		Distortion distortion = cdp.getDistortion();
+
+		float eyeToScreenDistanceM = cdp.getEyeToLensDistance() + cdp.getScreenToLensDistance();
+		float tanLens = cdp.getLensDiameter() / 2.0F / cdp.getEyeToLensDistance();
+
+		float leftXEyeOffsetMScreen = screen.getWidthMeters() / 2.0F - cdp.getInterpupillaryDistance() / 2.0F;
+		float xEyeOffsetMScreen = eye == EyeParams.Eye.LEFT ? leftXEyeOffsetMScreen : screen.getWidthMeters() - leftXEyeOffsetMScreen;
+		float yEyeOffsetMScreen = cdp.getVerticalDistanceToLensCenter() - screen.getBorderSizeMeters();
+		float halfStartM = eye == EyeParams.Eye.LEFT ? 0.0F : screen.getWidthMeters() / 2.0F;
+		float[] screenBounds = { halfStartM - xEyeOffsetMScreen, halfStartM + screen.getWidthMeters() / 2.0F - xEyeOffsetMScreen, -yEyeOffsetMScreen, screen.getHeightMeters() - yEyeOffsetMScreen };
+
+		float tanLeft = (float)Math.tan(Math.toRadians(fov.getLeft()));
+		float tanRight = (float)Math.tan(Math.toRadians(fov.getRight()));
+		float tanBottom = (float)Math.tan(Math.toRadians(fov.getBottom()));
+		float tanTop = (float)Math.tan(Math.toRadians(fov.getTop()));
+		float[] fovBounds = { -tanLeft, tanRight, -tanBottom, tanTop };
+
+		float[] angles = new float[SEGMENTS + 4];
+		for (int i = 0; i < SEGMENTS; i++) {
+			angles[i] = (float)(2.0D * Math.PI * i / SEGMENTS);
+		}
+		angles[SEGMENTS] = normalizeAngle(Math.atan2(tanTop, tanRight));
+		angles[(SEGMENTS + 1)] = normalizeAngle(Math.atan2(tanTop, -tanLeft));
+		angles[(SEGMENTS + 2)] = normalizeAngle(Math.atan2(-tanBottom, -tanLeft));
+		angles[(SEGMENTS + 3)] = normalizeAngle(Math.atan2(-tanBottom, tanRight));
+		Arrays.sort(angles);
+
+		float[] crossings = new float[angles.length];
+		int crossingCount = 0;
+		for (int i = 0; i < angles.length; i++) {
+			float start = angles[i];
+			float end = i + 1 < angles.length ? angles[(i + 1)] : angles[0] + (float)(2.0D * Math.PI);
+			boolean startHidden = isBoundaryHidden(start, distortion, tanLens, screenBounds, eyeToScreenDistanceM, fovBounds);
+			if (startHidden == isBoundaryHidden(end, distortion, tanLens, screenBounds, eyeToScreenDistanceM, fovBounds)) {
+				continue;
+			}
+			for (int iteration = 0; iteration < CROSSING_ITERATIONS; iteration++) {
+				float mid = (start + end) / 2.0F;
+				if (isBoundaryHidden(mid, distortion, tanLens, screenBounds, eyeToScreenDistanceM, fovBounds) == startHidden) {
+					start = mid;
+				}
+				else {
+					end = mid;
+				}
+			}
+			crossings[(crossingCount++)] = normalizeAngle(startHidden ? end : start);
+		}
+		if (crossingCount > 0) {
+			angles = Arrays.copyOf(angles, angles.length + crossingCount);
+			System.arraycopy(crossings, 0, angles, angles.length - crossingCount, crossingCount);
+			Arrays.sort(angles);
+		}
+
+		int count = angles.length;
+		float[] visible = new float[count];
+		float[] outer = new float[count];
+		for (int i = 0; i < count; i++) {
+			visible[i] = getVisibleRadius(angles[i], distortion, tanLens, screenBounds, eyeToScreenDistanceM);
+			outer[i] = getExitDistance(Math.cos(angles[i]), Math.sin(angles[i]), fovBounds);
+		}
+
+		float[] scales = new float[count];
+		Arrays.fill(scales, 1.0F);
+		for (int i = 0; i < count; i++) {
+			int next = (i + 1) % count;
+			float endAngle = next == 0 ? angles[next] + (float)(2.0D * Math.PI) : angles[next];
+			float midAngle = (angles[i] + endAngle) / 2.0F;
+
+			float x0 = visible[i] * (float)Math.cos(angles[i]);
+			float y0 = visible[i] * (float)Math.sin(angles[i]);
+			float dx = visible[next] * (float)Math.cos(angles[next]) - x0;
+			float dy = visible[next] * (float)Math.sin(angles[next]) - y0;
+			float mx = (float)Math.cos(midAngle);
+			float my = (float)Math.sin(midAngle);
+			float denominator = mx * dy - my * dx;
+			if (denominator <= 0.0F) {
+				continue;
+			}
+
+			float chordRadius = (x0 * dy - y0 * dx) / denominator;
+			float midRadius = getVisibleRadius(midAngle, distortion, tanLens, screenBounds, eyeToScreenDistanceM);
+			if ((chordRadius > 0.0F) && (chordRadius < midRadius)) {
+				float scale = midRadius / chordRadius;
+				scales[i] = Math.max(scales[i], scale);
+				scales[next] = Math.max(scales[next], scale);
+			}
+		}
+
+		float[] vertices = new float[(count + 1) * 2 * FLOATS_PER_VERTEX];
+		int offset = 0;
+		for (int j = 0; j <= count; j++) {
+			int i = j % count;
+			float cos = (float)Math.cos(angles[i]);
+			float sin = (float)Math.sin(angles[i]);
+			float inner = Math.min(visible[i] * scales[i], outer[i]);
+			vertices[(offset++)] = (inner * cos);
+			vertices[(offset++)] = (inner * sin);
+			vertices[(offset++)] = (outer[i] * cos);
+			vertices[(offset++)] = (outer[i] * sin);
+		}
+		return vertices;
+	}
+
+	/** Returns the fraction of the field of view covered by a mesh returned by build. */
+	public static float getCoverage(float[] vertices, FieldOfView fov)
+	{
+		float area = 0.0F;
+		for (int i = 0; i + 3 * FLOATS_PER_VERTEX <= vertices.length; i += FLOATS_PER_VERTEX) {
+			float ax = vertices[(i + 2)] - vertices[i];
+			float ay = vertices[(i + 3)] - vertices[(i + 1)];
+			float bx = vertices[(i + 4)] - vertices[i];
+			float by = vertices[(i + 5)] - vertices[(i + 1)];
+			area += Math.abs(ax * by - ay * bx) / 2.0F;
+		}
+
+		float width = (float)Math.tan(Math.toRadians(fov.getLeft())) + (float)Math.tan(Math.toRadians(fov.getRight()));
+		float height = (float)Math.tan(Math.toRadians(fov.getBottom())) + (float)Math.tan(Math.toRadians(fov.getTop()));
+		return area / (width * height);
+	}
+
+	private static float getVisibleRadius(double angle, Distortion distortion, float tanLens, float[] screenBounds, float eyeToScreenDistanceM)
+	{
+		float screenRadiusM = getExitDistance(Math.cos(angle), Math.sin(angle), screenBounds);
+		return Math.min(tanLens, distortion.distort(screenRadiusM) / eyeToScreenDistanceM);
+	}
+
+	/** Returns whether the field of view edge in a direction lies beyond the visible boundary. */
+	private static boolean isBoundaryHidden(double angle, Distortion distortion, float tanLens, float[] screenBounds, float eyeToScreenDistanceM, float[] fovBounds)
+	{
+		return getExitDistance(Math.cos(angle), Math.sin(angle), fovBounds) > getVisibleRadius(angle, distortion, tanLens, screenBounds, eyeToScreenDistanceM);
+	}
+
+	private static float getExitDistance(double dx, double dy, float[] bounds)
+	{
+		double distance = Double.MAX_VALUE;
+		if (dx > 0.0D) {
+			distance = Math.min(distance, bounds[1] / dx);
+		}
+		else if (dx < 0.0D) {
+			distance = Math.min(distance, bounds[0] / dx);
+		}
+		if (dy > 0.0D) {
+			distance = Math.min(distance, bounds[3] / dy);
+		}
+		else if (dy < 0.0D) {
+			distance = Math.min(distance, bounds[2] / dy);
+		}
+		return (float)Math.max(0.0D, distance);
+	}
+
+	private static float normalizeAngle(double angle)
+	{
+		return (float)(angle < 0.0D ? angle + 2.0D * Math.PI : angle);
+	}
+}
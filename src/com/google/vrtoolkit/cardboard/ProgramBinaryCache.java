@@ -0,0 +1,264 @@
+/*
+ * Copyright 2014 Google Inc. All Rights Reserved.
+
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.vrtoolkit.cardboard;
+
+import android.opengl.GLES20;
+import android.opengl.GLES30;
+import android.os.Build;
+import android.util.Log;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Caches linked program binaries as files so that a new GL context can skip compiling and linking the toolkit shaders.
+ *
+ * Entries are keyed by the GL driver strings, the system build and the shader sources. A binary the driver rejects is deleted, and the program is then compiled from source again.
+ * All methods must be called on the rendering thread with a current GL context.
+ */
+class ProgramBinaryCache
+{
+	private static final String TAG = "ProgramBinaryCache";
+	private static final String FILE_PREFIX = "program_";
+	private static final String FILE_SUFFIX = ".bin";
+	private static final int MAGIC = 0x43425042;
+	private static final int FORMAT_VERSION = 1;
+	private static final int HEADER_BYTES = 24;
+	private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+	private static final long FNV_PRIME = 0x100000001b3L;
+	private final File mDirectory;
+	private int mSupported;
+	private long mDriverHash;
+	private int mLoadedCount;
+	private int mStoredCount;
+
+	public ProgramBinaryCache(File directory)
+	{
+		mDirectory = directory;
+	}
+
+	/** Returns whether the context can retrieve and load program binaries, which needs OpenGL ES 3.0. */
+	public boolean isSupported()
+	{
+		if (mSupported == 0) {
+			String version = GLES20.glGetString(7938);
+			int[] formatCount = new int[1];
+			if ((version != null) && (version.startsWith("OpenGL ES 3"))) {
+				GLES20.glGetIntegerv(34814, formatCount, 0);
+			}
+			mSupported = formatCount[0] > 0 ? 1 : -1;
+
+			long hash = hash(FNV_OFFSET_BASIS, FORMAT_VERSION);
+			hash = hash(hash, GLES20.glGetString(7936));
+			hash = hash(hash, GLES20.glGetString(7937));
+			hash = hash(hash, version);
+			mDriverHash = hash(hash, Build.FINGERPRINT);
+		}
+		return (mSupported > 0) && (mDirectory != null);
+	}
+
+	/** Creates a program from a cached binary of the given sources, or returns 0 if there is no valid binary. */
+	public int load(String vertexSource, String fragmentSource)
+	{
+		if (!isSupported()) {
+			return 0;
+		}
+
+		long key = computeKey(vertexSource, fragmentSource);
+		File file = getFile(key);
+		if (!file.isFile()) {
+			return 0;
+		}
+
+		RandomAccessFile raf = null;
+		try {
+			raf = new RandomAccessFile(file, "r");
+			FileChannel channel = raf.getChannel();
+			MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0L, channel.size());
+			buffer.order(ByteOrder.nativeOrder());
+
+			int program = 0;
+			if ((buffer.remaining() >= HEADER_BYTES) && (buffer.getInt() == MAGIC) && (buffer.getInt() == FORMAT_VERSION) && (buffer.getLong() == key)) {
+				int binaryFormat = buffer.getInt();
+				int length = buffer.getInt();
+				if (length == buffer.remaining()) {
+					program = createProgram(binaryFormat, buffer.slice(), length);
+				}
+			}
+			if (program == 0) {
+				Log.w(TAG, "Discarding invalid program binary " + file.getName());
+				file.delete();
+			}
+			else {
+				mLoadedCount += 1;
+			}
+			return program;
+		} catch (IOException e) {
+			Log.w(TAG, "Could not read program binary " + file.getName() + ": " + e.toString());
+			return 0;
+		} finally {
+			close(raf);
+		}
+	}
+
+	/** Stores the binary of a program linked from the given sources, replacing any previous entry. */
+	public void store(int program, String vertexSource, String fragmentSource)
+	{
+		if (!isSupported()) {
+			return;
+		}
+
+		int[] binaryLength = new int[1];
+		GLES20.glGetProgramiv(program, 34625, binaryLength, 0);
+		if (binaryLength[0] <= 0) {
+			return;
+		}
+
+		ByteBuffer binary = ByteBuffer.allocateDirect(binaryLength[0]);
+		int[] length = new int[1];
+		int[] binaryFormat = new int[1];
+		GLES30.glGetProgramBinary(program, binaryLength[0], length, 0, binaryFormat, 0, binary);
+		if ((GLES20.glGetError() != 0) || (length[0] <= 0)) {
+			Log.w(TAG, "Could not retrieve program binary");
+			return;
+		}
+
+		if ((!mDirectory.isDirectory()) && (!mDirectory.mkdirs())) {
+			Log.w(TAG, "Could not create program binary cache directory " + mDirectory);
+			return;
+		}
+
+		long key = computeKey(vertexSource, fragmentSource);
+		File file = getFile(key);
+		File tempFile = new File(mDirectory, file.getName() + ".tmp");
+
+		RandomAccessFile raf = null;
+		try {
+			ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES).order(ByteOrder.nativeOrder());
+			header.putInt(MAGIC);
+			header.putInt(FORMAT_VERSION);
+			header.putLong(key);
+			header.putInt(binaryFormat[0]);
+			header.putInt(length[0]);
+			header.flip();
+			binary.limit(length[0]);
+
+			raf = new RandomAccessFile(tempFile, "rw");
+			raf.setLength(0L);
+			FileChannel channel = raf.getChannel();
+			while (header.hasRemaining()) {
+				channel.write(header);
+			}
+			while (binary.hasRemaining()) {
+				channel.write(binary);
+			}
+			close(raf);
+			raf = null;
+
+			if (!tempFile.renameTo(file)) {
+				Log.w(TAG, "Could not store program binary " + file.getName());
+				tempFile.delete();
+			}
+			else {
+				mStoredCount += 1;
+			}
+		} catch (IOException e) {
+			Log.w(TAG, "Could not write program binary " + file.getName() + ": " + e.toString());
+			tempFile.delete();
+		} finally {
+			close(raf);
+		}
+	}
+
+	public int getLoadedCount()
+	{
+		return mLoadedCount;
+	}
+
+	public int getStoredCount()
+	{
+		return mStoredCount;
+	}
+
+	private int createProgram(int binaryFormat, ByteBuffer binary, int length)
+	{
+		int program = GLES20.glCreateProgram();
+		if (program == 0) {
+			return 0;
+		}
+
+		GLES30.glProgramBinary(program, binaryFormat, binary, length);
+		int[] linkStatus = new int[1];
+		GLES20.glGetProgramiv(program, 35714, linkStatus, 0);
+		if ((GLES20.glGetError() != 0) || (linkStatus[0] != 1)) {
+			GLES20.glDeleteProgram(program);
+			return 0;
+		}
+		return program;
+	}
+
+	private long computeKey(String vertexSource, String fragmentSource)
+	{
+		return hash(hash(mDriverHash, vertexSource), fragmentSource);
+	}
+
+	private File getFile(long key)
+	{
+		return new File(mDirectory, FILE_PREFIX + Long.toHexString(key) + FILE_SUFFIX);
+	}
+
+	private static long hash(long hash, String value)
+	{
+		if (value == null) {
+			return hash(hash, -1);
+		}
+		hash = hash(hash, value.length());
+		for (int i = 0; i < value.length(); i++) {
+			char c = value.charAt(i);
+			hash ^= c & 0xFF;
+			hash *= FNV_PRIME;
+			hash ^= c >>> 8;
+			hash *= FNV_PRIME;
+		}
+		return hash;
+	}
+
+	private static long hash(long hash, int value)
+	{
+		for (int i = 0; i < 4; i++) {
+			hash ^= (value >>> (i * 8)) & 0xFF;
+			hash *= FNV_PRIME;
+		}
+		return hash;
+	}
+
+	private static void close(RandomAccessFile raf)
+	{
+		if (raf == null) {
+			return;
+		}
+
+		try {
+			raf.close();
+		} catch (IOException e) {
+			Log.w(TAG, "Could not close program binary file: " + e.toString());
+		}
+	}
+}
@@ -0,0 +1,159 @@
+/*
+ * Copyright 2014 Google Inc. All Rights Reserved.
+
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.vrtoolkit.cardboard;
+
+import android.opengl.Matrix;
+
+/**
+ * A textured quad composited over the eye buffers by the distortion pass.
+ *
+ * The quad spans its size in meters along the x and y axes of its pose, centered on the pose origin. The texture is applied with its first row at the top of the quad, as uploaded from a Bitmap, and is expected to hold premultiplied alpha.
+ * The texture must be a GL_TEXTURE_2D created on the rendering thread. Layers are drawn over the eye buffer content in the order they were added, without depth testing.
+ */
+public class QuadLayer
+{
+	private int mTextureId;
+	private float mWidth;
+	private float mHeight;
+	private float mOpacity;
+	private boolean mVisible;
+	private boolean mHeadLocked;
+	private final float[] mPose;
+
+	public QuadLayer(int textureId, float width, float height)
+	{
+		mPose = new float[16];
+		Matrix.setIdentityM(mPose, 0);
+		mTextureId = textureId;
+		mOpacity = 1.0F;
+		mVisible = true;
+		setSize(width, height);
+	}
+
+	public synchronized void setTextureId(int textureId)
+	{
+		mTextureId = textureId;
+	}
+
+	public synchronized int getTextureId()
+	{
+		return mTextureId;
+	}
+
+	public synchronized void setSize(float width, float height)
+	{
+		if ((width <= 0.0F) || (height <= 0.0F)) {
+			throw new IllegalArgumentException("Invalid quad layer size: " + width + ", " + height);
+		}
+		mWidth = width;
+		mHeight = height;
+	}
+
+	public synchronized float getWidth()
+	{
+		return mWidth;
+	}
+
+	public synchronized float getHeight()
+	{
+		return mHeight;
+	}
+
+	/** Sets the transform from quad space to world space, or to head space for head locked layers. */
+	public synchronized void setPose(float[] pose, int offset)
+	{
+		System.arraycopy(pose, offset, mPose, 0, 16);
+	}
+
+	public synchronized void getPose(float[] pose, int offset)
+	{
+		System.arraycopy(mPose, 0, pose, offset, 16);
+	}
+
+	/** Makes the pose relative to the head instead of the world, for HUD elements that follow the view. */
+	public synchronized void setHeadLocked(boolean headLocked)
+	{
+		mHeadLocked = headLocked;
+	}
+
+	public synchronized boolean isHeadLocked()
+	{
+		return mHeadLocked;
+	}
+
+	public synchronized void setOpacity(float opacity)
+	{
+		if ((opacity < 0.0F) || (opacity > 1.0F)) {
+			throw new IllegalArgumentException("Invalid quad layer opacity: " + opacity);
+		}
+		mOpacity = opacity;
+	}
+
+	public synchronized float getOpacity()
+	{
+		return mOpacity;
+	}
+
+	public synchronized void setVisible(boolean visible)
+	{
+		mVisible = visible;
+	}
+
+	public synchronized boolean isVisible()
+	{
+		return mVisible;
+	}
+
+	/**
+	 * Computes the matrix taking a view ray (tan x, tan y, -1) of an eye to homogeneous quad coordinates, in column-major order.
+	 * Dividing by the third coordinate gives the hit point in [-1, 1] across the quad, and the third coordinate is positive when the quad is in front of the eye.
+	 * Returns the layer opacity, or 0 if the layer is hidden or seen edge-on.
+	 */
+	synchronized float computeRayTransform(float[] eyeView, float[] eyeTranslate, float[] scratch, float[] transform, int offset)
+	{
+		if ((!mVisible) || (mOpacity <= 0.0F)) {
+			return 0.0F;
+		}
+
+		Matrix.multiplyMM(scratch, 0, mHeadLocked ? eyeTranslate : eyeView, 0, mPose, 0);
+
+		float ax = scratch[0] * mWidth / 2.0F;
+		float ay = scratch[1] * mWidth / 2.0F;
+		float az = scratch[2] * mWidth / 2.0F;
+		float bx = scratch[4] * mHeight / 2.0F;
+		float by = scratch[5] * mHeight / 2.0F;
+		float bz = scratch[6] * mHeight / 2.0F;
+		float cx = scratch[12];
+		float cy = scratch[13];
+		float cz = scratch[14];
+
+		float det = ax * (by * cz - bz * cy) - bx * (ay * cz - az * cy) + cx * (ay * bz - az * by);
+		if (Math.abs(det) < 1.0E-9F) {
+			return 0.0F;
+		}
+
+		transform[(offset + 0)] = ((by * cz - bz * cy) / det);
+		transform[(offset + 1)] = ((az * cy - ay * cz) / det);
+		transform[(offset + 2)] = ((ay * bz - az * by) / det);
+		transform[(offset + 3)] = ((bz * cx - bx * cz) / det);
+		transform[(offset + 4)] = ((ax * cz - az * cx) / det);
+		transform[(offset + 5)] = ((az * bx - ax * bz) / det);
+		transform[(offset + 6)] = ((bx * cy - by * cx) / det);
+		transform[(offset + 7)] = ((ay * cx - ax * cy) / det);
+		transform[(offset + 8)] = ((ax * by - ay * bx) / det);
+		return mOpacity;
+	}
+}
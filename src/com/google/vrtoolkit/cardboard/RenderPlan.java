@@ -0,0 +1,594 @@
+/*
+ * Copyright 2014 Google Inc. All Rights Reserved.
+
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.vrtoolkit.cardboard;
+
+import android.util.Log;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * Holds everything derived from a head mounted display that the distortion pass needs: field of views, eye viewports, texture size and mesh data.
+ */
+class RenderPlan
+{
+	private static final String TAG = "RenderPlan";
+	static final int MAGIC = 0x43425250;
+	static final int FORMAT_VERSION = 7;
+	private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+	private static final long FNV_PRIME = 0x100000001b3L;
+	private static final int HEADER_INTS = 4;
+	private static final int HEADER_FLOATS = 22;
+	private static final int HEADER_VIEWPORT_INTS = 10;
+	private static final int MESH_HEADER_INTS = 13;
+	public static final int ROWS = 40;
+	public static final int COLS = 40;
+	public static final int REGION_GRID_SIZE = 41;
+
+	final long fingerprint;
+	final FieldOfView leftEyeFov;
+	final FieldOfView rightEyeFov;
+	final EyeViewport leftEyeViewport;
+	final EyeViewport rightEyeViewport;
+	final Viewport leftEyeViewportPx;
+	final Viewport rightEyeViewportPx;
+	EyeRegionLayout[] regionLayouts;
+	float textureWidthM;
+	float textureHeightM;
+	int textureWidthPx;
+	int textureHeightPx;
+	ByteBuffer vertexData;
+	ByteBuffer indexData;
+	int mode;
+	final int[] indexOffset;
+	final int[] indexCount;
+	final int[] vertexCount;
+	final float[] maxErrorPx;
+	final float[] culledFraction;
+
+	private RenderPlan(long fingerprint)
+	{
+		this.fingerprint = fingerprint;
+		leftEyeFov = new FieldOfView();
+		rightEyeFov = new FieldOfView();
+		leftEyeViewport = new EyeViewport();
+		rightEyeViewport = new EyeViewport();
+		leftEyeViewportPx = new Viewport();
+		rightEyeViewportPx = new Viewport();
+		indexOffset = new int[2];
+		indexCount = new int[2];
+		vertexCount = new int[2];
+		maxErrorPx = new float[2];
+		culledFraction = new float[2];
+	}
+
+	public static long computeFingerprint(HeadMountedDisplay hmd, Options options)
+	{
+		ScreenParams screen = hmd.getScreen();
+		CardboardDeviceParams cdp = hmd.getCardboard();
+		float[] coefficients = cdp.getDistortion().getCoefficients();
+
+		long hash = FNV_OFFSET_BASIS;
+		hash = hash(hash, FORMAT_VERSION);
+		hash = hash(hash, screen.getWidth());
+		hash = hash(hash, screen.getHeight());
+		hash = hash(hash, Float.floatToIntBits(screen.getWidthMeters()));
+		hash = hash(hash, Float.floatToIntBits(screen.getHeightMeters()));
+		hash = hash(hash, Float.floatToIntBits(screen.getBorderSizeMeters()));
+		hash = hash(hash, Float.floatToIntBits(cdp.getInterpupillaryDistance()));
+		hash = hash(hash, Float.floatToIntBits(cdp.getVerticalDistanceToLensCenter()));
+		hash = hash(hash, Float.floatToIntBits(cdp.getLensDiameter()));
+		hash = hash(hash, Float.floatToIntBits(cdp.getScreenToLensDistance()));
+		hash = hash(hash, Float.floatToIntBits(cdp.getEyeToLensDistance()));
+		for (float coefficient : coefficients) {
+			hash = hash(hash, Float.floatToIntBits(coefficient));
+		}
+		hash = hash(hash, Float.floatToIntBits(options.meshTolerancePx));
+		hash = hash(hash, Float.floatToIntBits(options.referenceRadiusM));
+		hash = hash(hash, Float.floatToIntBits(options.centerFraction));
+		hash = hash(hash, Float.floatToIntBits(options.peripheryScale));
+		return hash;
+	}
+
+	private static long hash(long hash, int value)
+	{
+		for (int i = 0; i < 4; i++) {
+			hash ^= (value >>> (i * 8)) & 0xFF;
+			hash *= FNV_PRIME;
+		}
+		return hash;
+	}
+
+	public static RenderPlan create(HeadMountedDisplay hmd, Options options)
+	{
+		RenderPlan plan = new RenderPlan(computeFingerprint(hmd, options));
+		plan.initTexture(hmd, options);
+
+		DistortionMeshBuilder.Mesh[] meshes = plan.createMeshes(hmd, options);
+
+		if (meshes[0].vertexCount + meshes[1].vertexCount > DistortionMeshEncoder.MAX_VERTICES) {
+			Log.w(TAG, "Distortion meshes exceed " + DistortionMeshEncoder.MAX_VERTICES + " vertices, falling back to the fixed grid.");
+			Options gridOptions = new Options(options);
+			gridOptions.meshTolerancePx = 0.0F;
+			meshes = plan.createMeshes(hmd, gridOptions);
+		}
+		DistortionMeshBuilder.Mesh leftMesh = meshes[0];
+		DistortionMeshBuilder.Mesh rightMesh = meshes[1];
+
+		DistortionMeshEncoder.clampToHalf(leftMesh, -1.0F, 0.0F);
+		DistortionMeshEncoder.clampToHalf(rightMesh, 0.0F, 1.0F);
+
+		DistortionMeshBuilder.Mesh mesh = DistortionMeshEncoder.merge(leftMesh, rightMesh, plan.indexOffset, plan.indexCount);
+		plan.vertexData = DistortionMeshEncoder.encodeVertices(mesh);
+		plan.indexData = DistortionMeshEncoder.encodeIndices(mesh);
+		plan.mode = mesh.mode;
+		plan.vertexCount[0] = leftMesh.vertexCount;
+		plan.vertexCount[1] = rightMesh.vertexCount;
+		plan.maxErrorPx[0] = leftMesh.maxErrorPx;
+		plan.maxErrorPx[1] = rightMesh.maxErrorPx;
+
+		return plan;
+	}
+
+	/** Returns the number of eye buffer pixels a plan created with the given options would use. */
+	public static int computeTexturePixelCount(HeadMountedDisplay hmd, Options options)
+	{
+		RenderPlan plan = createLayout(hmd, options);
+		return plan.textureWidthPx * plan.textureHeightPx;
+	}
+
+	/** Returns a plan with its eye viewports and texture laid out but no meshes, for creating mesh builders. */
+	static RenderPlan createLayout(HeadMountedDisplay hmd, Options options)
+	{
+		RenderPlan plan = new RenderPlan(0L);
+		plan.initTexture(hmd, options);
+		return plan;
+	}
+
+	/**
+	 * Returns the eye buffer texels per screen pixel needed for 1:1 density at the given screen distance from the lens center.
+	 *
+	 * Texture meters map to screen meters through the distortion, which stretches radially by its derivative and tangentially by its factor. The smaller of the two decides the density that avoids blurring in either direction.
+	 */
+	static float getDensityScale(Distortion distortion, float referenceRadiusM)
+	{
+		return 1.0F / Math.min(distortion.distortDerivative(referenceRadiusM), distortion.distortionFactor(referenceRadiusM));
+	}
+
+	private void initTexture(HeadMountedDisplay hmd, Options options)
+	{
+		ScreenParams screen = hmd.getScreen();
+		float densityScale = getDensityScale(hmd.getCardboard().getDistortion(), options.referenceRadiusM);
+		float xPxPerM = screen.getWidth() / screen.getWidthMeters() * densityScale;
+		float yPxPerM = screen.getHeight() / screen.getHeightMeters() * densityScale;
+
+		updateFieldOfView(hmd, leftEyeFov, rightEyeFov);
+
+		initViewportForEye(hmd, leftEyeFov, 0.0F, xPxPerM, leftEyeViewport, leftEyeViewportPx);
+		initViewportForEye(hmd, rightEyeFov, leftEyeViewport.width, xPxPerM, rightEyeViewport, rightEyeViewportPx);
+
+		textureWidthM = leftEyeViewport.width + rightEyeViewport.width;
+		textureHeightM = Math.max(leftEyeViewport.height, rightEyeViewport.height);
+		textureWidthPx = Math.round(textureWidthM * xPxPerM);
+		textureHeightPx = Math.round(textureHeightM * yPxPerM);
+
+		if (options.peripheryScale > 0.0F) {
+			initRegionLayouts(options.centerFraction, options.peripheryScale);
+		}
+	}
+
+	/** Packs each eye's regions side by side and shrinks the eye viewports and texture to fit them. */
+	private void initRegionLayouts(float centerFraction, float peripheryScale)
+	{
+		EyeRegionLayout left = EyeRegionLayout.create(leftEyeViewport, leftEyeViewportPx, centerFraction, peripheryScale);
+		Viewport rightViewportPx = new Viewport();
+		rightViewportPx.setViewport(left.getSizePx(0), rightEyeViewportPx.y, rightEyeViewportPx.width, rightEyeViewportPx.height);
+		EyeRegionLayout right = EyeRegionLayout.create(rightEyeViewport, rightViewportPx, centerFraction, peripheryScale);
+		regionLayouts = new EyeRegionLayout[] { left, right };
+
+		leftEyeViewportPx.setViewport(left.getOriginPx(0), left.getOriginPx(1), left.getSizePx(0), left.getSizePx(1));
+		rightEyeViewportPx.setViewport(right.getOriginPx(0), right.getOriginPx(1), right.getSizePx(0), right.getSizePx(1));
+		textureWidthPx = left.getSizePx(0) + right.getSizePx(0);
+		textureHeightPx = Math.max(left.getSizePx(1), right.getSizePx(1));
+	}
+
+	public static void updateFieldOfView(HeadMountedDisplay hmd, FieldOfView leftEyeFov, FieldOfView rightEyeFov)
+	{
+		CardboardDeviceParams cdp = hmd.getCardboard();
+		ScreenParams screen = hmd.getScreen();
+		Distortion distortion = cdp.getDistortion();
+
+		float idealFovAngle = (float)Math.toDegrees(Math.atan2(cdp.getLensDiameter() / 2.0F, cdp.getEyeToLensDistance()));
+
+		float eyeToScreenDist = cdp.getEyeToLensDistance() + cdp.getScreenToLensDistance();
+
+		float outerDist = (screen.getWidthMeters() - cdp.getInterpupillaryDistance()) / 2.0F;
+
+		float innerDist = cdp.getInterpupillaryDistance() / 2.0F;
+		float bottomDist = cdp.getVerticalDistanceToLensCenter() - screen.getBorderSizeMeters();
+
+		float topDist = screen.getHeightMeters() + screen.getBorderSizeMeters() - cdp.getVerticalDistanceToLensCenter();
+
+		float[] distances = { outerDist, innerDist, bottomDist, topDist };
+		distortion.distort(distances, distances);
+
+		float outerAngle = (float)Math.toDegrees(Math.atan2(distances[0], eyeToScreenDist));
+
+		float innerAngle = (float)Math.toDegrees(Math.atan2(distances[1], eyeToScreenDist));
+
+		float bottomAngle = (float)Math.toDegrees(Math.atan2(distances[2], eyeToScreenDist));
+
+		float topAngle = (float)Math.toDegrees(Math.atan2(distances[3], eyeToScreenDist));
+
+		leftEyeFov.setLeft(Math.min(outerAngle, idealFovAngle));
+		leftEyeFov.setRight(Math.min(innerAngle, idealFovAngle));
+		leftEyeFov.setBottom(Math.min(bottomAngle, idealFovAngle));
+		leftEyeFov.setTop(Math.min(topAngle, idealFovAngle));
+
+		rightEyeFov.setLeft(Math.min(innerAngle, idealFovAngle));
+		rightEyeFov.setRight(Math.min(outerAngle, idealFovAngle));
+		rightEyeFov.setBottom(Math.min(bottomAngle, idealFovAngle));
+		rightEyeFov.setTop(Math.min(topAngle, idealFovAngle));
+	}
+
+	private static void initViewportForEye(HeadMountedDisplay hmd, FieldOfView fov, float xOffsetM, float xPxPerM, EyeViewport vp, Viewport viewportPx)
+	{
+		CardboardDeviceParams cdp = hmd.getCardboard();
+
+		float eyeToScreenDistanceM = cdp.getEyeToLensDistance() + cdp.getScreenToLensDistance();
+		float leftM = (float)Math.tan(Math.toRadians(fov.getLeft())) * eyeToScreenDistanceM;
+
+		float rightM = (float)Math.tan(Math.toRadians(fov.getRight())) * eyeToScreenDistanceM;
+
+		float bottomM = (float)Math.tan(Math.toRadians(fov.getBottom())) * eyeToScreenDistanceM;
+
+		float topM = (float)Math.tan(Math.toRadians(fov.getTop())) * eyeToScreenDistanceM;
+
+		vp.x = xOffsetM;
+		vp.y = 0.0F;
+		vp.width = (leftM + rightM);
+		vp.height = (bottomM + topM);
+		vp.eyeX = (leftM + xOffsetM);
+		vp.eyeY = bottomM;
+
+		viewportPx.x = Math.round(vp.x * xPxPerM);
+		viewportPx.y = Math.round(vp.y * xPxPerM);
+		viewportPx.width = Math.round(vp.width * xPxPerM);
+		viewportPx.height = Math.round(vp.height * xPxPerM);
+	}
+
+	DistortionMeshBuilder createMeshBuilder(HeadMountedDisplay hmd, int eye)
+	{
+		ScreenParams screen = hmd.getScreen();
+		CardboardDeviceParams cdp = hmd.getCardboard();
+
+		float leftXEyeOffsetMScreen = screen.getWidthMeters() / 2.0F - cdp.getInterpupillaryDistance() / 2.0F;
+		float rightXEyeOffsetMScreen = screen.getWidthMeters() - leftXEyeOffsetMScreen;
+		float yEyeOffsetMScreen = cdp.getVerticalDistanceToLensCenter() - screen.getBorderSizeMeters();
+
+		DistortionMeshBuilder builder;
+		if (eye == EyeParams.Eye.LEFT) {
+			builder = new DistortionMeshBuilder(hmd, leftEyeViewport, textureWidthM, textureHeightM, leftXEyeOffsetMScreen, yEyeOffsetMScreen);
+		}
+		else {
+			builder = new DistortionMeshBuilder(hmd, rightEyeViewport, textureWidthM, textureHeightM, rightXEyeOffsetMScreen, yEyeOffsetMScreen);
+		}
+
+		if (regionLayouts != null) {
+			builder.setRegionLayout(regionLayouts[(eye == EyeParams.Eye.LEFT ? 0 : 1)], textureWidthPx, textureHeightPx);
+		}
+		return builder;
+	}
+
+	private DistortionMeshBuilder.Mesh[] createMeshes(HeadMountedDisplay hmd, Options options)
+	{
+		DistortionMeshBuilder leftBuilder = createMeshBuilder(hmd, EyeParams.Eye.LEFT);
+		final DistortionMeshBuilder rightBuilder = createMeshBuilder(hmd, EyeParams.Eye.RIGHT);
+		ExecutorService executor = DistortionMeshBuilder.getExecutor();
+
+		DistortionMeshBuilder.Mesh leftMesh;
+		DistortionMeshBuilder.Mesh rightMesh;
+		if (options.meshTolerancePx > 0.0F) {
+			final float tolerancePx = options.meshTolerancePx;
+			Future<DistortionMeshBuilder.Mesh> rightFuture = null;
+			if (executor != null) {
+				rightFuture = executor.submit(new Callable<DistortionMeshBuilder.Mesh>()
+				{
+					public DistortionMeshBuilder.Mesh call() {
+						return rightBuilder.buildAdaptive(tolerancePx);
+					}
+				});
+			}
+			leftMesh = leftBuilder.buildAdaptive(tolerancePx);
+			rightMesh = rightFuture != null ? DistortionMeshBuilder.await(rightFuture) : rightBuilder.buildAdaptive(tolerancePx);
+		}
+		else {
+			int rows = regionLayouts != null ? REGION_GRID_SIZE : ROWS;
+			int cols = regionLayouts != null ? REGION_GRID_SIZE : COLS;
+			float[] leftRadii = rightBuilder.isMirrorOf(leftBuilder) ? new float[2 * rows * cols] : null;
+			leftMesh = leftBuilder.buildGrid(rows, cols, leftRadii, null, executor);
+			rightMesh = rightBuilder.buildGrid(rows, cols, null, leftRadii, executor);
+		}
+
+		float[] lens = new float[4];
+		getLensBounds(hmd, EyeParams.Eye.LEFT, lens);
+		leftMesh = DistortionMeshEncoder.cull(leftMesh, -1.0F, 0.0F, lens[0], lens[1], lens[2], lens[3], culledFraction, 0);
+		getLensBounds(hmd, EyeParams.Eye.RIGHT, lens);
+		rightMesh = DistortionMeshEncoder.cull(rightMesh, 0.0F, 1.0F, lens[0], lens[1], lens[2], lens[3], culledFraction, 1);
+
+		return new DistortionMeshBuilder.Mesh[] { DistortionMeshEncoder.optimize(leftMesh), DistortionMeshEncoder.optimize(rightMesh) };
+	}
+
+	/**
+	 * Stores the center and radii of the lens of an eye in screen normalized device coordinates.
+	 * The lens edge is the screen circle that distorts to the angle limited by the lens diameter.
+	 */
+	static void getLensBounds(HeadMountedDisplay hmd, int eye, float[] bounds)
+	{
+		ScreenParams screen = hmd.getScreen();
+		CardboardDeviceParams cdp = hmd.getCardboard();
+
+		float eyeToScreenDistanceM = cdp.getEyeToLensDistance() + cdp.getScreenToLensDistance();
+		float lensRadiusMTexture = cdp.getLensDiameter() / 2.0F / cdp.getEyeToLensDistance() * eyeToScreenDistanceM;
+		float lensRadiusMScreen = cdp.getDistortion().distortInverse(lensRadiusMTexture);
+
+		float leftXEyeOffsetMScreen = screen.getWidthMeters() / 2.0F - cdp.getInterpupillaryDistance() / 2.0F;
+		float xEyeOffsetMScreen = eye == EyeParams.Eye.LEFT ? leftXEyeOffsetMScreen : screen.getWidthMeters() - leftXEyeOffsetMScreen;
+		float yEyeOffsetMScreen = cdp.getVerticalDistanceToLensCenter() - screen.getBorderSizeMeters();
+
+		bounds[0] = (2.0F * xEyeOffsetMScreen / screen.getWidthMeters() - 1.0F);
+		bounds[1] = (2.0F * yEyeOffsetMScreen / screen.getHeightMeters() - 1.0F);
+		bounds[2] = (2.0F * lensRadiusMScreen / screen.getWidthMeters());
+		bounds[3] = (2.0F * lensRadiusMScreen / screen.getHeightMeters());
+	}
+
+	public int getTotalIndexCount()
+	{
+		return indexOffset[1] + indexCount[1];
+	}
+
+	public int getSerializedSize()
+	{
+		int regionBytes = regionLayouts != null ? 2 * (EyeRegionLayout.SERIALIZED_FLOATS + EyeRegionLayout.SERIALIZED_INTS) * 4 : 0;
+		return (HEADER_INTS + HEADER_FLOATS + HEADER_VIEWPORT_INTS + 1 + MESH_HEADER_INTS) * 4 + 8 + regionBytes + vertexData.capacity() + indexData.capacity();
+	}
+
+	public void writeTo(ByteBuffer buffer)
+	{
+		buffer.putInt(MAGIC);
+		buffer.putInt(FORMAT_VERSION);
+		buffer.putLong(fingerprint);
+		buffer.putInt(0);
+		buffer.putInt(0);
+
+		writeFov(buffer, leftEyeFov);
+		writeFov(buffer, rightEyeFov);
+		writeEyeViewport(buffer, leftEyeViewport);
+		writeEyeViewport(buffer, rightEyeViewport);
+		buffer.putFloat(textureWidthM);
+		buffer.putFloat(textureHeightM);
+
+		writeViewport(buffer, leftEyeViewportPx);
+		writeViewport(buffer, rightEyeViewportPx);
+		buffer.putInt(textureWidthPx);
+		buffer.putInt(textureHeightPx);
+
+		buffer.putInt(regionLayouts != null ? 1 : 0);
+		if (regionLayouts != null) {
+			regionLayouts[0].writeTo(buffer);
+			regionLayouts[1].writeTo(buffer);
+		}
+
+		buffer.putInt(mode);
+		for (int eye = 0; eye < 2; eye++) {
+			buffer.putInt(vertexCount[eye]);
+			buffer.putFloat(maxErrorPx[eye]);
+			buffer.putFloat(culledFraction[eye]);
+			buffer.putInt(indexOffset[eye]);
+			buffer.putInt(indexCount[eye]);
+		}
+		buffer.putInt(vertexData.capacity());
+		buffer.putInt(indexData.capacity());
+		ByteBuffer vertices = vertexData.duplicate();
+		vertices.clear();
+		buffer.put(vertices);
+		ByteBuffer indices = indexData.duplicate();
+		indices.clear();
+		buffer.put(indices);
+	}
+
+	public static RenderPlan readFrom(ByteBuffer buffer, long expectedFingerprint)
+	{
+		if (buffer.remaining() < (HEADER_INTS + HEADER_FLOATS + HEADER_VIEWPORT_INTS) * 4 + 8) {
+			return null;
+		}
+
+		if ((buffer.getInt() != MAGIC) || (buffer.getInt() != FORMAT_VERSION)) {
+			return null;
+		}
+
+		RenderPlan plan = new RenderPlan(buffer.getLong());
+		if (plan.fingerprint != expectedFingerprint) {
+			return null;
+		}
+		buffer.getInt();
+		buffer.getInt();
+
+		readFov(buffer, plan.leftEyeFov);
+		readFov(buffer, plan.rightEyeFov);
+		readEyeViewport(buffer, plan.leftEyeViewport);
+		readEyeViewport(buffer, plan.rightEyeViewport);
+		plan.textureWidthM = buffer.getFloat();
+		plan.textureHeightM = buffer.getFloat();
+
+		readViewport(buffer, plan.leftEyeViewportPx);
+		readViewport(buffer, plan.rightEyeViewportPx);
+		plan.textureWidthPx = buffer.getInt();
+		plan.textureHeightPx = buffer.getInt();
+
+		if (buffer.remaining() < 4) {
+			return null;
+		}
+		if (buffer.getInt() != 0) {
+			if (buffer.remaining() < 2 * (EyeRegionLayout.SERIALIZED_FLOATS + EyeRegionLayout.SERIALIZED_INTS) * 4) {
+				return null;
+			}
+			plan.regionLayouts = new EyeRegionLayout[] { EyeRegionLayout.readFrom(buffer), EyeRegionLayout.readFrom(buffer) };
+		}
+
+		if (buffer.remaining() < MESH_HEADER_INTS * 4) {
+			return null;
+		}
+		plan.mode = buffer.getInt();
+		for (int eye = 0; eye < 2; eye++) {
+			plan.vertexCount[eye] = buffer.getInt();
+			plan.maxErrorPx[eye] = buffer.getFloat();
+			plan.culledFraction[eye] = buffer.getFloat();
+			plan.indexOffset[eye] = buffer.getInt();
+			plan.indexCount[eye] = buffer.getInt();
+		}
+		int vertexBytes = buffer.getInt();
+		int indexBytes = buffer.getInt();
+		if ((vertexBytes < 0) || (indexBytes < 0) || (buffer.remaining() < vertexBytes + indexBytes)) {
+			return null;
+		}
+		if (!fitsMeshData(plan, vertexBytes, indexBytes)) {
+			return null;
+		}
+		plan.vertexData = slice(buffer, vertexBytes);
+		plan.indexData = slice(buffer, indexBytes);
+
+		return plan;
+	}
+
+	/** Returns whether the eye vertex and index ranges of a plan lie within mesh data of the given byte lengths. */
+	private static boolean fitsMeshData(RenderPlan plan, int vertexBytes, int indexBytes)
+	{
+		long vertices = 0L;
+		for (int eye = 0; eye < 2; eye++) {
+			if ((plan.vertexCount[eye] < 0) || (plan.indexOffset[eye] < 0) || (plan.indexCount[eye] < 0)) {
+				return false;
+			}
+			if (((long)plan.indexOffset[eye] + plan.indexCount[eye]) * 2L > indexBytes) {
+				return false;
+			}
+			vertices += plan.vertexCount[eye];
+		}
+		return (vertices <= DistortionMeshEncoder.MAX_VERTICES) && (vertices * DistortionMeshEncoder.VERTEX_STRIDE_BYTES <= vertexBytes);
+	}
+
+	/** Returns the next length bytes of the buffer as a buffer whose capacity is exactly length, and advances past them. */
+	private static ByteBuffer slice(ByteBuffer buffer, int length)
+	{
+		ByteBuffer slice = buffer.slice();
+		slice.limit(length);
+		buffer.position(buffer.position() + length);
+		return slice.slice().order(ByteOrder.nativeOrder());
+	}
+
+	private static void writeFov(ByteBuffer buffer, FieldOfView fov)
+	{
+		buffer.putFloat(fov.getLeft());
+		buffer.putFloat(fov.getRight());
+		buffer.putFloat(fov.getBottom());
+		buffer.putFloat(fov.getTop());
+	}
+
+	private static void readFov(ByteBuffer buffer, FieldOfView fov)
+	{
+		fov.setLeft(buffer.getFloat());
+		fov.setRight(buffer.getFloat());
+		fov.setBottom(buffer.getFloat());
+		fov.setTop(buffer.getFloat());
+	}
+
+	private static void writeEyeViewport(ByteBuffer buffer, EyeViewport vp)
+	{
+		buffer.putFloat(vp.x);
+		buffer.putFloat(vp.y);
+		buffer.putFloat(vp.width);
+		buffer.putFloat(vp.height);
+		buffer.putFloat(vp.eyeX);
+		buffer.putFloat(vp.eyeY);
+	}
+
+	private static void readEyeViewport(ByteBuffer buffer, EyeViewport vp)
+	{
+		vp.x = buffer.getFloat();
+		vp.y = buffer.getFloat();
+		vp.width = buffer.getFloat();
+		vp.height = buffer.getFloat();
+		vp.eyeX = buffer.getFloat();
+		vp.eyeY = buffer.getFloat();
+	}
+
+	private static void writeViewport(ByteBuffer buffer, Viewport viewport)
+	{
+		buffer.putInt(viewport.x);
+		buffer.putInt(viewport.y);
+		buffer.putInt(viewport.width);
+		buffer.putInt(viewport.height);
+	}
+
+	private static void readViewport(ByteBuffer buffer, Viewport viewport)
+	{
+		viewport.setViewport(buffer.getInt(), buffer.getInt(), buffer.getInt(), buffer.getInt());
+	}
+
+	private static float clamp(float val, float min, float max)
+	{
+		return Math.max(min, Math.min(max, val));
+	}
+
+	/** Eye viewport in texture meters, with the position of the lens center. */
+	static class EyeViewport
+	{
+		public float x;
+		public float y;
+		public float width;
+		public float height;
+		public float eyeX;
+		public float eyeY;
+
+		public String toString()
+		{
+			return "EyeViewport {x:" + x + " y:" + y + " width:" + width + " height:" + height + " eyeX: " + eyeX + " eyeY: " + eyeY + "}";
+		}
+	}
+
+	/** Settings that change the generated plan and are therefore part of its fingerprint. */
+	static class Options
+	{
+		public float meshTolerancePx;
+		public float referenceRadiusM;
+		public float centerFraction;
+		public float peripheryScale;
+
+		public Options()
+		{
+		}
+
+		public Options(Options other)
+		{
+			meshTolerancePx = other.meshTolerancePx;
+			referenceRadiusM = other.referenceRadiusM;
+			centerFraction = other.centerFraction;
+			peripheryScale = other.peripheryScale;
+		}
+	}
+}
@@ -0,0 +1,181 @@
+/*
+ * Copyright 2014 Google Inc. All Rights Reserved.
+
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.vrtoolkit.cardboard;
+
+import android.util.Log;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Caches render plans in memory and as memory-mapped files so that projection changes can skip the distortion mesh computation.
+ */
+class RenderPlanCache
+{
+	private static final String TAG = "RenderPlanCache";
+	private static final String FILE_PREFIX = "render_plan_";
+	private static final String FILE_SUFFIX = ".bin";
+	private static final int MAX_MEMORY_ENTRIES = 4;
+	private final File mDirectory;
+	private final Map<Long, RenderPlan> mPlans;
+
+	public RenderPlanCache(File directory)
+	{
+		mDirectory = directory;
+		mPlans = new LinkedHashMap<Long, RenderPlan>(MAX_MEMORY_ENTRIES, 0.75F, true)
+		{
+			protected boolean removeEldestEntry(Map.Entry<Long, RenderPlan> eldest) {
+				return size() > MAX_MEMORY_ENTRIES;
+			}
+		};
+	}
+
+	public RenderPlan getOrCreate(HeadMountedDisplay hmd, RenderPlan.Options options)
+	{
+		long fingerprint = RenderPlan.computeFingerprint(hmd, options);
+
+		RenderPlan plan = get(fingerprint);
+		if (plan != null) {
+			return plan;
+		}
+
+		plan = RenderPlan.create(hmd, options);
+		put(plan);
+		return plan;
+	}
+
+	public synchronized RenderPlan get(long fingerprint)
+	{
+		RenderPlan plan = mPlans.get(fingerprint);
+		if (plan != null) {
+			return plan;
+		}
+
+		plan = load(fingerprint);
+		if (plan != null) {
+			mPlans.put(fingerprint, plan);
+		}
+		return plan;
+	}
+
+	public synchronized RenderPlan peek(long fingerprint)
+	{
+		return mPlans.get(fingerprint);
+	}
+
+	public synchronized void put(RenderPlan plan)
+	{
+		mPlans.put(plan.fingerprint, plan);
+		store(plan);
+	}
+
+	private File getFile(long fingerprint)
+	{
+		return new File(mDirectory, FILE_PREFIX + Long.toHexString(fingerprint) + FILE_SUFFIX);
+	}
+
+	private RenderPlan load(long fingerprint)
+	{
+		if (mDirectory == null) {
+			return null;
+		}
+
+		File file = getFile(fingerprint);
+		if (!file.isFile()) {
+			return null;
+		}
+
+		RandomAccessFile raf = null;
+		try {
+			raf = new RandomAccessFile(file, "r");
+			FileChannel channel = raf.getChannel();
+			MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0L, channel.size());
+			buffer.order(ByteOrder.nativeOrder());
+
+			RenderPlan plan = RenderPlan.readFrom(buffer, fingerprint);
+			if (plan == null) {
+				Log.w(TAG, "Discarding invalid render plan " + file.getName());
+				file.delete();
+			}
+			return plan;
+		} catch (IOException e) {
+			Log.w(TAG, "Could not read render plan " + file.getName() + ": " + e.toString());
+			return null;
+		} finally {
+			close(raf);
+		}
+	}
+
+	private void store(RenderPlan plan)
+	{
+		if (mDirectory == null) {
+			return;
+		}
+
+		if ((!mDirectory.isDirectory()) && (!mDirectory.mkdirs())) {
+			Log.w(TAG, "Could not create render plan cache directory " + mDirectory);
+			return;
+		}
+
+		File file = getFile(plan.fingerprint);
+		File tempFile = new File(mDirectory, file.getName() + ".tmp");
+
+		RandomAccessFile raf = null;
+		try {
+			ByteBuffer buffer = ByteBuffer.allocate(plan.getSerializedSize()).order(ByteOrder.nativeOrder());
+			plan.writeTo(buffer);
+			buffer.flip();
+
+			raf = new RandomAccessFile(tempFile, "rw");
+			raf.setLength(0L);
+			FileChannel channel = raf.getChannel();
+			while (buffer.hasRemaining()) {
+				channel.write(buffer);
+			}
+			close(raf);
+			raf = null;
+
+			if (!tempFile.renameTo(file)) {
+				Log.w(TAG, "Could not store render plan " + file.getName());
+				tempFile.delete();
+			}
+		} catch (IOException e) {
+			Log.w(TAG, "Could not write render plan " + file.getName() + ": " + e.toString());
+			tempFile.delete();
+		} finally {
+			close(raf);
+		}
+	}
+
+	private static void close(RandomAccessFile raf)
+	{
+		if (raf == null) {
+			return;
+		}
+
+		try {
+			raf.close();
+		} catch (IOException e) {
+			Log.w(TAG, "Could not close render plan file: " + e.toString());
+		}
+	}
+}
@@ -0,0 +1,327 @@
+/*
+ * Copyright 2014 Google Inc. All Rights Reserved.
+
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.vrtoolkit.cardboard;
+
+import android.opengl.GLES20;
+import android.opengl.GLES30;
+import android.os.SystemClock;
+import android.util.Log;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Pools eye buffer render targets by size and format so that projection changes can reuse them instead of reallocating GPU memory.
+ *
+ * Multisampled targets render into multisampled color and depth renderbuffers, and resolve the color into a single sampled texture that carries no depth buffer.
+ */
+class RenderTargetPool
+{
+	private static final String TAG = "RenderTargetPool";
+	public static final long DEFAULT_IDLE_TIMEOUT_MS = 5000L;
+	private final List<RenderTarget> mTargets;
+	private volatile long mIdleTimeoutMs;
+	private volatile long mMemoryFootprintBytes;
+
+	public RenderTargetPool()
+	{
+		mTargets = new ArrayList<RenderTarget>();
+		mIdleTimeoutMs = DEFAULT_IDLE_TIMEOUT_MS;
+	}
+
+	public void setIdleTimeout(long idleTimeoutMs)
+	{
+		mIdleTimeoutMs = idleTimeoutMs;
+	}
+
+	public long getIdleTimeout()
+	{
+		return mIdleTimeoutMs;
+	}
+
+	public long getMemoryFootprint()
+	{
+		return mMemoryFootprintBytes;
+	}
+
+	public RenderTarget acquire(int width, int height, int colorInternalFormat, int colorFormat, int colorType, int depthFormat, int samples)
+	{
+		for (RenderTarget target : mTargets) {
+			if ((!target.inUse) && (target.matches(width, height, colorInternalFormat, colorFormat, colorType, depthFormat, samples))) {
+				target.inUse = true;
+				return target;
+			}
+		}
+
+		RenderTarget target = create(width, height, colorInternalFormat, colorFormat, colorType, depthFormat, samples);
+		target.inUse = true;
+		mTargets.add(target);
+		updateMemoryFootprint();
+		return target;
+	}
+
+	public void release(RenderTarget target)
+	{
+		target.inUse = false;
+		target.releaseTimeMs = SystemClock.elapsedRealtime();
+	}
+
+	public void evictIdle()
+	{
+		long now = SystemClock.elapsedRealtime();
+		boolean evicted = false;
+
+		for (Iterator<RenderTarget> it = mTargets.iterator(); it.hasNext(); ) {
+			RenderTarget target = it.next();
+			if ((!target.inUse) && (now - target.releaseTimeMs >= mIdleTimeoutMs)) {
+				target.delete();
+				it.remove();
+				evicted = true;
+			}
+		}
+
+		if (evicted) {
+			updateMemoryFootprint();
+		}
+	}
+
+	public void clear()
+	{
+		for (RenderTarget target : mTargets) {
+			target.delete();
+		}
+		mTargets.clear();
+		updateMemoryFootprint();
+	}
+
+	private void updateMemoryFootprint()
+	{
+		long bytes = 0L;
+		for (RenderTarget target : mTargets) {
+			bytes += target.getMemoryFootprint();
+		}
+		mMemoryFootprintBytes = bytes;
+	}
+
+	private RenderTarget create(int width, int height, int colorInternalFormat, int colorFormat, int colorType, int depthFormat, int samples)
+	{
+		RenderTarget target = new RenderTarget(width, height, colorInternalFormat, colorFormat, colorType, depthFormat, samples);
+
+		int[] textureIds = new int[1];
+		GLES20.glGenTextures(1, textureIds, 0);
+		target.textureId = textureIds[0];
+
+		GLES20.glBindTexture(3553, target.textureId);
+		GLES20.glTexParameteri(3553, 10242, 33071);
+
+		GLES20.glTexParameteri(3553, 10243, 33071);
+
+		GLES20.glTexParameteri(3553, 10240, 9729);
+
+		GLES20.glTexParameteri(3553, 10241, 9729);
+
+		GLES20.glTexImage2D(3553, 0, colorInternalFormat, width, height, 0, colorFormat, colorType, null);
+		checkGlError("RenderTargetPool: create texture");
+
+		if (depthFormat != 0) {
+			int[] renderbufferIds = new int[1];
+			GLES20.glGenRenderbuffers(1, renderbufferIds, 0);
+			GLES20.glBindRenderbuffer(36161, renderbufferIds[0]);
+			if (samples > 1) {
+				GLES30.glRenderbufferStorageMultisample(36161, samples, depthFormat, width, height);
+			}
+			else {
+				GLES20.glRenderbufferStorage(36161, depthFormat, width, height);
+			}
+
+			target.renderbufferId = renderbufferIds[0];
+			checkGlError("RenderTargetPool: create renderbuffer");
+		}
+
+		if (samples > 1) {
+			int[] renderbufferIds = new int[1];
+			GLES20.glGenRenderbuffers(1, renderbufferIds, 0);
+			GLES20.glBindRenderbuffer(36161, renderbufferIds[0]);
+			GLES30.glRenderbufferStorageMultisample(36161, samples, getColorRenderbufferFormat(colorInternalFormat, colorType), width, height);
+
+			target.colorRenderbufferId = renderbufferIds[0];
+			checkGlError("RenderTargetPool: create multisampled renderbuffer");
+
+			int[] framebufferIds = new int[1];
+			GLES20.glGenFramebuffers(1, framebufferIds, 0);
+			GLES20.glBindFramebuffer(36160, framebufferIds[0]);
+			target.resolveFramebufferId = framebufferIds[0];
+
+			GLES20.glFramebufferTexture2D(36160, 36064, 3553, target.textureId, 0);
+
+			int status = GLES20.glCheckFramebufferStatus(36160);
+
+			if (status != 36053) {
+				target.delete();
+				throw new RuntimeException("Resolve framebuffer is not complete: " + Integer.toHexString(status));
+			}
+		}
+
+		int[] framebufferIds = new int[1];
+		GLES20.glGenFramebuffers(1, framebufferIds, 0);
+		GLES20.glBindFramebuffer(36160, framebufferIds[0]);
+		target.framebufferId = framebufferIds[0];
+
+		if (target.colorRenderbufferId != -1) {
+			GLES20.glFramebufferRenderbuffer(36160, 36064, 36161, target.colorRenderbufferId);
+		}
+		else {
+			GLES20.glFramebufferTexture2D(36160, 36064, 3553, target.textureId, 0);
+		}
+
+		if (target.renderbufferId != -1) {
+			GLES20.glFramebufferRenderbuffer(36160, 36096, 36161, target.renderbufferId);
+			if (depthFormat == 35056) {
+				GLES20.glFramebufferRenderbuffer(36160, 36128, 36161, target.renderbufferId);
+			}
+		}
+
+		int status = GLES20.glCheckFramebufferStatus(36160);
+
+		if (status != 36053) {
+			target.delete();
+			throw new RuntimeException("Framebuffer is not complete: " + Integer.toHexString(status));
+		}
+
+		GLES20.glBindFramebuffer(36160, 0);
+
+		return target;
+	}
+
+	private static int getColorRenderbufferFormat(int colorInternalFormat, int colorType)
+	{
+		if (colorType == 33635) {
+			return 36194;
+		}
+		return colorInternalFormat == 6408 ? 32856 : colorInternalFormat;
+	}
+
+	private static void checkGlError(String op)
+	{
+		int error;
+		if ((error = GLES20.glGetError()) != 0) {
+			Log.e(TAG, op + ": glError " + error);
+			throw new RuntimeException(op + ": glError " + error);
+		}
+	}
+
+	/**
+	 * An eye buffer made of a color texture, an optional depth renderbuffer and the framebuffer binding them.
+	 * When multisampled, the framebuffer binds a multisampled color renderbuffer instead, and the resolve framebuffer binds the texture.
+	 */
+	static class RenderTarget
+	{
+		final int width;
+		final int height;
+		final int colorInternalFormat;
+		final int colorFormat;
+		final int colorType;
+		final int depthFormat;
+		final int samples;
+		int textureId = -1;
+		int renderbufferId = -1;
+		int colorRenderbufferId = -1;
+		int framebufferId = -1;
+		int resolveFramebufferId = -1;
+		boolean inUse;
+		long releaseTimeMs;
+
+		RenderTarget(int width, int height, int colorInternalFormat, int colorFormat, int colorType, int depthFormat, int samples)
+		{
+			this.width = width;
+			this.height = height;
+			this.colorInternalFormat = colorInternalFormat;
+			this.colorFormat = colorFormat;
+			this.colorType = colorType;
+			this.depthFormat = depthFormat;
+			this.samples = samples;
+		}
+
+		boolean matches(int width, int height, int colorInternalFormat, int colorFormat, int colorType, int depthFormat, int samples)
+		{
+			return (this.width == width) && (this.height == height) && (this.colorInternalFormat == colorInternalFormat) && (this.colorFormat == colorFormat) && (this.colorType == colorType) && (this.depthFormat == depthFormat) && (this.samples == samples);
+		}
+
+		long getMemoryFootprint()
+		{
+			int colorBytes = getColorBytesPerPixel(colorFormat, colorType);
+			return (long)width * height * (colorBytes + getDepthBytesPerPixel(depthFormat) * samples + (samples > 1 ? colorBytes * samples : 0));
+		}
+
+		long getDepthMemoryFootprint()
+		{
+			return (long)width * height * getDepthBytesPerPixel(depthFormat) * samples;
+		}
+
+		long getMultisampleColorMemoryFootprint()
+		{
+			return samples > 1 ? (long)width * height * getColorBytesPerPixel(colorFormat, colorType) * samples : 0L;
+		}
+
+		void delete()
+		{
+			if (textureId != -1) {
+				GLES20.glDeleteTextures(1, new int[] { textureId }, 0);
+			}
+			if (renderbufferId != -1) {
+				GLES20.glDeleteRenderbuffers(1, new int[] { renderbufferId }, 0);
+			}
+			if (colorRenderbufferId != -1) {
+				GLES20.glDeleteRenderbuffers(1, new int[] { colorRenderbufferId }, 0);
+			}
+			if (framebufferId != -1) {
+				GLES20.glDeleteFramebuffers(1, new int[] { framebufferId }, 0);
+			}
+			if (resolveFramebufferId != -1) {
+				GLES20.glDeleteFramebuffers(1, new int[] { resolveFramebufferId }, 0);
+			}
+			textureId = -1;
+			renderbufferId = -1;
+			colorRenderbufferId = -1;
+			framebufferId = -1;
+			resolveFramebufferId = -1;
+		}
+
+		private static int getColorBytesPerPixel(int colorFormat, int colorType)
+		{
+			switch (colorType) {
+			case 33635:
+			case 32819:
+			case 32820:
+				return 2;
+			}
+			return colorFormat == 6407 ? 3 : 4;
+		}
+
+		private static int getDepthBytesPerPixel(int depthFormat)
+		{
+			switch (depthFormat) {
+			case 0:
+				return 0;
+			case 33189:
+				return 2;
+			case 33190:
+				return 3;
+			}
+			return 4;
+		}
+	}
+}
@@ -0,0 +1,151 @@
+/*
+ * Copyright 2014 Google Inc. All Rights Reserved.
+
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.vrtoolkit.cardboard;
+
+/**
+ * Adjusts the eye buffer resolution scale from measured frame times to hold a target frame rate.
+ *
+ * Frame time is the larger of the CPU time spent rendering and, where timer queries are available, the GPU time. The scale only changes when the smoothed headroom leaves a dead band, and at most once per adjustment interval.
+ */
+class ResolutionGovernor
+{
+	public static final float DEFAULT_TARGET_FRAME_RATE = 60.0F;
+	public static final float DEFAULT_MIN_SCALE = 0.5F;
+	public static final float DEFAULT_MAX_SCALE = 1.0F;
+	private static final float SMOOTHING = 0.1F;
+	private static final float DECREASE_HEADROOM = 0.0F;
+	private static final float INCREASE_HEADROOM = 0.2F;
+	private static final float TARGET_HEADROOM = 0.1F;
+	private static final float MAX_DECREASE_STEP = 0.1F;
+	private static final float MAX_INCREASE_STEP = 0.05F;
+	private static final int ADJUST_INTERVAL_FRAMES = 30;
+	private final GpuTimer mGpuTimer;
+	private float mMinScale;
+	private float mMaxScale;
+	private float mTargetFrameRate;
+	private volatile float mScale;
+	private volatile float mHeadroom;
+	private float mSmoothedFrameNanos;
+	private long mFrameStartNanos;
+	private int mFramesSinceAdjust;
+
+	public ResolutionGovernor()
+	{
+		mGpuTimer = new GpuTimer();
+		mMinScale = DEFAULT_MIN_SCALE;
+		mMaxScale = DEFAULT_MAX_SCALE;
+		mTargetFrameRate = DEFAULT_TARGET_FRAME_RATE;
+		mScale = DEFAULT_MAX_SCALE;
+	}
+
+	public void setBounds(float minScale, float maxScale)
+	{
+		if ((minScale <= 0.0F) || (maxScale > 1.0F) || (minScale > maxScale)) {
+			throw new IllegalArgumentException("Invalid resolution scale bounds: " + minScale + ", " + maxScale);
+		}
+
+		mMinScale = minScale;
+		mMaxScale = maxScale;
+		mScale = clamp(mScale, minScale, maxScale);
+	}
+
+	public void setTargetFrameRate(float frameRate)
+	{
+		if (frameRate <= 0.0F) {
+			throw new IllegalArgumentException("Invalid target frame rate: " + frameRate);
+		}
+
+		mTargetFrameRate = frameRate;
+	}
+
+	public void reset(float scale)
+	{
+		mScale = clamp(scale, mMinScale, mMaxScale);
+		mHeadroom = 0.0F;
+		mSmoothedFrameNanos = 0.0F;
+		mFramesSinceAdjust = 0;
+	}
+
+	public float getScale()
+	{
+		return mScale;
+	}
+
+	public float getHeadroom()
+	{
+		return mHeadroom;
+	}
+
+	public void beginFrame()
+	{
+		mFrameStartNanos = System.nanoTime();
+		mGpuTimer.begin();
+	}
+
+	/** Leaves time the rendering thread spent waiting, rather than rendering, out of the CPU time of the current frame. */
+	public void excludeTime(long nanos)
+	{
+		mFrameStartNanos += nanos;
+	}
+
+	public boolean endFrame()
+	{
+		mGpuTimer.end();
+		long cpuNanos = System.nanoTime() - mFrameStartNanos;
+		long gpuNanos = mGpuTimer.poll();
+		float frameNanos = Math.max(cpuNanos, gpuNanos);
+
+		if (mSmoothedFrameNanos == 0.0F) {
+			mSmoothedFrameNanos = frameNanos;
+		}
+		else {
+			mSmoothedFrameNanos += SMOOTHING * (frameNanos - mSmoothedFrameNanos);
+		}
+
+		float targetNanos = 1.0E9F / mTargetFrameRate;
+		mHeadroom = 1.0F - mSmoothedFrameNanos / targetNanos;
+
+		if (++mFramesSinceAdjust < ADJUST_INTERVAL_FRAMES) {
+			return false;
+		}
+		mFramesSinceAdjust = 0;
+
+		if ((mHeadroom >= DECREASE_HEADROOM) && (mHeadroom <= INCREASE_HEADROOM)) {
+			return false;
+		}
+
+		float scale = mScale * (float)Math.sqrt(targetNanos * (1.0F - TARGET_HEADROOM) / mSmoothedFrameNanos);
+
+		scale = clamp(scale, mScale - MAX_DECREASE_STEP, mScale + MAX_INCREASE_STEP);
+		scale = clamp(scale, mMinScale, mMaxScale);
+		if (scale == mScale) {
+			return false;
+		}
+
+		mScale = scale;
+		return true;
+	}
+
+	public void release()
+	{
+		mGpuTimer.release();
+	}
+
+	private static float clamp(float val, float min, float max)
+	{
+		return Math.max(min, Math.min(max, val));
+	}
+}
@@ -0,0 +1,334 @@
+/*
+ * Copyright 2014 Google Inc. All Rights Reserved.
+
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.vrtoolkit.cardboard;
+
+import android.opengl.EGL14;
+import android.opengl.EGLContext;
+import android.opengl.EGLDisplay;
+import android.opengl.EGLSurface;
+import android.opengl.GLES20;
+import android.opengl.GLES30;
+import android.opengl.GLSurfaceView;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+import android.view.Choreographer;
+import android.view.Display;
+import android.view.Surface;
+import java.util.concurrent.locks.LockSupport;
+import javax.microedition.khronos.egl.EGL10;
+import javax.microedition.khronos.egl.EGLConfig;
+
+/**
+ * Paces the distortion pass of each eye against the display scanout when rendering straight to a single buffered surface.
+ *
+ * The display scans one half of the landscape screen and then the other during each refresh. The eye scanned first is drawn while the display scans the second half, and the other eye once the next refresh has started, each with a pose sampled just before its draw.
+ * Vsync times come from the Choreographer on the main thread. On OpenGL ES 3.0 contexts a fence after each half tells whether its GPU work finished before the display reached it.
+ */
+class ScanlineRacer
+implements Choreographer.FrameCallback
+{
+	private static final String TAG = "ScanlineRacer";
+	private static final int EGL_MUTABLE_RENDER_BUFFER_BIT_KHR = 4096;
+	private static final int EGL_FRONT_BUFFER_AUTO_REFRESH_ANDROID = 12620;
+	private final Display mDisplay;
+	private final Handler mHandler;
+	private boolean mVsyncRunning;
+	private volatile long mVsyncNanos;
+	private long mLastWaitNanos;
+	private int mSupported;
+	private boolean mAutoRefreshSupported;
+	private boolean mSingleBufferRequested;
+	private final int[] mRenderBuffer;
+	private final long[] mFences;
+	private final long[] mDeadlineNanos;
+	private final long[] mRacesWon;
+	private final long[] mRacesLost;
+	private final long[] mSubmitLeadNanos;
+	private final long[] mSlackNanos;
+
+	public ScanlineRacer(Display display)
+	{
+		mDisplay = display;
+		mHandler = new Handler(Looper.getMainLooper());
+		mRenderBuffer = new int[1];
+		mFences = new long[2];
+		mDeadlineNanos = new long[2];
+		mRacesWon = new long[2];
+		mRacesLost = new long[2];
+		mSubmitLeadNanos = new long[2];
+		mSlackNanos = new long[2];
+	}
+
+	/** Starts or stops tracking vsync on the main thread. */
+	public void setVsyncTracking(final boolean enabled)
+	{
+		mHandler.post(new Runnable()
+		{
+			public void run() {
+				if (mVsyncRunning == enabled) {
+					return;
+				}
+				mVsyncRunning = enabled;
+				if (enabled) {
+					Choreographer.getInstance().postFrameCallback(ScanlineRacer.this);
+				}
+				else {
+					Choreographer.getInstance().removeFrameCallback(ScanlineRacer.this);
+				}
+			}
+		});
+	}
+
+	public void doFrame(long frameTimeNanos)
+	{
+		mVsyncNanos = frameTimeNanos;
+		if (mVsyncRunning) {
+			Choreographer.getInstance().postFrameCallback(this);
+		}
+	}
+
+	/**
+	 * Requests single or double buffering for the current surface, and returns whether the surface renders to a single buffer for this frame.
+	 * A switch takes effect after the next buffer swap, so this keeps returning the previous mode until then.
+	 */
+	public boolean update(boolean singleBuffer)
+	{
+		if ((singleBuffer == mSingleBufferRequested) && ((!singleBuffer) || (mSupported != 1))) {
+			return false;
+		}
+
+		EGLDisplay display = EGL14.eglGetCurrentDisplay();
+		if (singleBuffer != mSingleBufferRequested) {
+			EGLSurface surface = EGL14.eglGetCurrentSurface(12377);
+			mSingleBufferRequested = singleBuffer;
+			if ((!singleBuffer) || (isSupported(display))) {
+				if (!EGL14.eglSurfaceAttrib(display, surface, 12422, singleBuffer ? 12421 : 12420)) {
+					Log.w(TAG, "The surface does not support single buffering, rendering is double buffered.");
+					mSupported = -1;
+				}
+				else if (mAutoRefreshSupported) {
+					EGL14.eglSurfaceAttrib(display, surface, EGL_FRONT_BUFFER_AUTO_REFRESH_ANDROID, singleBuffer ? 1 : 0);
+				}
+			}
+			if (!singleBuffer) {
+				release();
+			}
+		}
+		if ((!mSingleBufferRequested) || (mSupported != 1)) {
+			return false;
+		}
+
+		EGLContext context = EGL14.eglGetCurrentContext();
+		return (EGL14.eglQueryContext(display, context, 12422, mRenderBuffer, 0)) && (mRenderBuffer[0] == 12421);
+	}
+
+	/**
+	 * Waits until the display is scanning the other half of the screen than the one about to be drawn, and returns the eye to draw.
+	 * The first half of a frame is the eye the display scans first. The fence of the previously drawn half is waited on until its deadline on the way.
+	 */
+	public int beginHalf(int half)
+	{
+		long startNanos = System.nanoTime();
+		int firstEye = getFirstScannedEye();
+		int eye = half == 0 ? firstEye : getOtherEye(firstEye);
+		long period = getRefreshPeriod();
+
+		long now = System.nanoTime();
+		long phase = getPhase(now, period);
+		long target = now;
+		if ((half == 0) && (phase < period / 2L)) {
+			target = now + (period / 2L - phase);
+		}
+		else if ((half == 1) && (phase >= period / 2L)) {
+			target = now + (period - phase);
+		}
+
+		checkRace(getOtherEye(eye));
+		now = System.nanoTime();
+		if (target > now) {
+			LockSupport.parkNanos(target - now);
+		}
+		mLastWaitNanos = System.nanoTime() - startNanos;
+		return eye;
+	}
+
+	/** Submits the half just drawn and records how far ahead of the display it was submitted. */
+	public void endHalf(int eye)
+	{
+		int index = eye == EyeParams.Eye.LEFT ? 0 : 1;
+		long period = getRefreshPeriod();
+
+		if (isFenceSupported()) {
+			if (mFences[index] != 0L) {
+				GLES30.glDeleteSync(mFences[index]);
+			}
+			mFences[index] = GLES30.glFenceSync(37143, 0);
+		}
+		GLES20.glFlush();
+
+		long now = System.nanoTime();
+		long halfStart = eye == getFirstScannedEye() ? 0L : period / 2L;
+		long deadline = now - getPhase(now, period) + halfStart;
+		if (deadline <= now) {
+			deadline += period;
+		}
+		mDeadlineNanos[index] = deadline;
+		mSubmitLeadNanos[index] = (deadline - now);
+	}
+
+	/** Returns the time the last beginHalf call spent waiting for the display and the previous half, in nanoseconds. */
+	public long getLastWaitTime()
+	{
+		return mLastWaitNanos;
+	}
+
+	public long getRacesWon(int eye)
+	{
+		return mRacesWon[(eye == EyeParams.Eye.LEFT ? 0 : 1)];
+	}
+
+	public long getRacesLost(int eye)
+	{
+		return mRacesLost[(eye == EyeParams.Eye.LEFT ? 0 : 1)];
+	}
+
+	/** Returns how long before the display reached the half it was submitted, in nanoseconds. */
+	public long getSubmitLead(int eye)
+	{
+		return mSubmitLeadNanos[(eye == EyeParams.Eye.LEFT ? 0 : 1)];
+	}
+
+	/** Returns how long before the display reached the half the GPU finished drawing it, in the last race won, in nanoseconds. */
+	public long getSlack(int eye)
+	{
+		return mSlackNanos[(eye == EyeParams.Eye.LEFT ? 0 : 1)];
+	}
+
+	/** Deletes the pending fences. */
+	public void release()
+	{
+		for (int i = 0; i < 2; i++) {
+			if (mFences[i] != 0L) {
+				GLES30.glDeleteSync(mFences[i]);
+				mFences[i] = 0L;
+			}
+		}
+	}
+
+	/** Forgets the pending fences and the surface state, after the GL context they belonged to was lost. */
+	public void reset()
+	{
+		mFences[0] = 0L;
+		mFences[1] = 0L;
+		mSupported = 0;
+		mSingleBufferRequested = false;
+	}
+
+	private void checkRace(int eye)
+	{
+		int index = eye == EyeParams.Eye.LEFT ? 0 : 1;
+		long fence = mFences[index];
+		if (fence == 0L) {
+			return;
+		}
+
+		long timeout = Math.max(0L, mDeadlineNanos[index] - System.nanoTime());
+		int result = GLES30.glClientWaitSync(fence, 0, timeout);
+		if ((result == 37146) || (result == 37148)) {
+			mRacesWon[index] += 1L;
+			mSlackNanos[index] = Math.max(0L, mDeadlineNanos[index] - System.nanoTime());
+		}
+		else {
+			mRacesLost[index] += 1L;
+		}
+		GLES30.glDeleteSync(fence);
+		mFences[index] = 0L;
+	}
+
+	private boolean isSupported(EGLDisplay display)
+	{
+		if (mSupported == 0) {
+			String extensions = EGL14.eglQueryString(display, 12373);
+			if ((extensions != null) && (extensions.contains("EGL_KHR_mutable_render_buffer"))) {
+				mSupported = 1;
+				mAutoRefreshSupported = extensions.contains("EGL_ANDROID_front_buffer_auto_refresh");
+			}
+			else {
+				Log.w(TAG, "Single buffered surfaces are not supported, rendering is double buffered.");
+				mSupported = -1;
+			}
+		}
+		return mSupported == 1;
+	}
+
+	private boolean isFenceSupported()
+	{
+		String version = GLES20.glGetString(7938);
+		return (version != null) && (version.startsWith("OpenGL ES 3"));
+	}
+
+	/** Returns the eye on the half of the screen the display scans first, assuming the panel scans from its natural top edge. */
+	private int getFirstScannedEye()
+	{
+		return mDisplay.getRotation() == Surface.ROTATION_270 ? EyeParams.Eye.RIGHT : EyeParams.Eye.LEFT;
+	}
+
+	private static int getOtherEye(int eye)
+	{
+		return eye == EyeParams.Eye.LEFT ? EyeParams.Eye.RIGHT : EyeParams.Eye.LEFT;
+	}
+
+	private long getRefreshPeriod()
+	{
+		float refreshRate = mDisplay.getRefreshRate();
+		return (long)(1.0E9F / (refreshRate > 0.0F ? refreshRate : 60.0F));
+	}
+
+	private long getPhase(long now, long period)
+	{
+		long vsync = mVsyncNanos;
+		return ((now - vsync) % period + period) % period;
+	}
+
+	/** Chooses an RGB888 config with a 16 bit depth buffer whose window surfaces can switch to single buffering, or any such config without that ability. */
+	static class ConfigChooser
+	implements GLSurfaceView.EGLConfigChooser
+	{
+		public EGLConfig chooseConfig(EGL10 egl, javax.microedition.khronos.egl.EGLDisplay display)
+		{
+			EGLConfig config = chooseConfig(egl, display, 4 | EGL_MUTABLE_RENDER_BUFFER_BIT_KHR);
+			if (config == null) {
+				config = chooseConfig(egl, display, 4);
+			}
+			if (config == null) {
+				throw new IllegalArgumentException("No EGL config matches the requested attributes");
+			}
+			return config;
+		}
+
+		private EGLConfig chooseConfig(EGL10 egl, javax.microedition.khronos.egl.EGLDisplay display, int surfaceType)
+		{
+			int[] attributes = { 12324, 8, 12323, 8, 12322, 8, 12325, 16, 12352, 4, 12339, surfaceType, 12344 };
+			EGLConfig[] configs = new EGLConfig[1];
+			int[] configCount = new int[1];
+			if ((!egl.eglChooseConfig(display, attributes, configs, 1, configCount)) || (configCount[0] == 0)) {
+				return null;
+			}
+			return configs[0];
+		}
+	}
+}
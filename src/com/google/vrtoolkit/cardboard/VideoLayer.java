@@ -0,0 +1,155 @@
+/*
+ * Copyright 2014 Google Inc. All Rights Reserved.
+
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.vrtoolkit.cardboard;
+
+import android.opengl.Matrix;
+
+/**
+ * A 360 degree video sampled directly by the distortion pass, in place of the eye buffers.
+ *
+ * The texture must be a GL_TEXTURE_EXTERNAL_OES texture attached to a SurfaceTexture, and the transform returned by SurfaceTexture.getTransformMatrix should be passed to setTextureTransform after each updateTexImage.
+ * Equirectangular frames map longitude across the frame with the forward direction (-z) at the center, and latitude up the frame.
+ * Cubemap frames hold six faces in a 3x2 grid: right, left and up on the top row, then down, front and back on the bottom row, each seen from inside the sphere with up along +y, or facing the back for the up face and the front for the down face.
+ */
+public class VideoLayer
+{
+	private int mTextureId;
+	private int mProjection;
+	private int mStereoLayout;
+	private boolean mEyeBufferOverlay;
+	private final float[] mOrientation;
+	private final float[] mTextureTransform;
+
+	public VideoLayer(int textureId, int projection)
+	{
+		mOrientation = new float[16];
+		mTextureTransform = new float[16];
+		Matrix.setIdentityM(mOrientation, 0);
+		Matrix.setIdentityM(mTextureTransform, 0);
+		mTextureId = textureId;
+		mStereoLayout = StereoLayout.MONO;
+		setProjection(projection);
+	}
+
+	public synchronized void setTextureId(int textureId)
+	{
+		mTextureId = textureId;
+	}
+
+	public synchronized int getTextureId()
+	{
+		return mTextureId;
+	}
+
+	public synchronized void setProjection(int projection)
+	{
+		if ((projection != Projection.EQUIRECTANGULAR) && (projection != Projection.CUBEMAP)) {
+			throw new IllegalArgumentException("Invalid video projection: " + projection);
+		}
+		mProjection = projection;
+	}
+
+	public synchronized int getProjection()
+	{
+		return mProjection;
+	}
+
+	/** Sets how the frame is split between the eyes. With TOP_BOTTOM the left eye image is the top half of the frame. */
+	public synchronized void setStereoLayout(int stereoLayout)
+	{
+		if ((stereoLayout != StereoLayout.MONO) && (stereoLayout != StereoLayout.TOP_BOTTOM) && (stereoLayout != StereoLayout.LEFT_RIGHT)) {
+			throw new IllegalArgumentException("Invalid video stereo layout: " + stereoLayout);
+		}
+		mStereoLayout = stereoLayout;
+	}
+
+	public synchronized int getStereoLayout()
+	{
+		return mStereoLayout;
+	}
+
+	/** Sets the rotation from video space to world space. Any translation is ignored, the video is at infinity. */
+	public synchronized void setOrientation(float[] orientation, int offset)
+	{
+		System.arraycopy(orientation, offset, mOrientation, 0, 16);
+	}
+
+	public synchronized void getOrientation(float[] orientation, int offset)
+	{
+		System.arraycopy(mOrientation, 0, orientation, offset, 16);
+	}
+
+	/** Sets the texture coordinate transform of the current frame, as returned by SurfaceTexture.getTransformMatrix. */
+	public synchronized void setTextureTransform(float[] transform, int offset)
+	{
+		System.arraycopy(transform, offset, mTextureTransform, 0, 16);
+	}
+
+	public synchronized void getTextureTransform(float[] transform, int offset)
+	{
+		System.arraycopy(mTextureTransform, 0, transform, offset, 16);
+	}
+
+	/**
+	 * Keeps rendering the eye buffers and composites them over the video by their alpha, for 3D controls drawn over the video.
+	 * The eye buffers then need a color format with alpha and must be cleared to transparent. Without an overlay the eye buffer pass of a StereoRenderer is skipped entirely.
+	 */
+	public synchronized void setEyeBufferOverlay(boolean eyeBufferOverlay)
+	{
+		mEyeBufferOverlay = eyeBufferOverlay;
+	}
+
+	public synchronized boolean getEyeBufferOverlay()
+	{
+		return mEyeBufferOverlay;
+	}
+
+	/** Computes the column-major matrix rotating a view ray of the head to a direction in video space. */
+	synchronized void computeRayRotation(float[] headView, float[] scratch, float[] rotation)
+	{
+		Matrix.multiplyMM(scratch, 0, headView, 0, mOrientation, 0);
+		for (int column = 0; column < 3; column++) {
+			for (int row = 0; row < 3; row++) {
+				rotation[(column * 3 + row)] = scratch[(row * 4 + column)];
+			}
+		}
+	}
+
+	/** Gets the scale and offset taking full frame texture coordinates to the part of the frame seen by an eye. */
+	synchronized void getEyeRect(int eye, float[] rect)
+	{
+		boolean right = eye == EyeParams.Eye.RIGHT;
+		rect[0] = (mStereoLayout == StereoLayout.LEFT_RIGHT ? 0.5F : 1.0F);
+		rect[1] = (mStereoLayout == StereoLayout.TOP_BOTTOM ? 0.5F : 1.0F);
+		rect[2] = ((mStereoLayout == StereoLayout.LEFT_RIGHT) && (right) ? 0.5F : 0.0F);
+		rect[3] = ((mStereoLayout == StereoLayout.TOP_BOTTOM) && (!right) ? 0.5F : 0.0F);
+	}
+
+	/** Defines the constants identifying how the sphere is mapped to a video frame. */
+	public static class Projection
+	{
+		public static final int EQUIRECTANGULAR = 0;
+		public static final int CUBEMAP = 1;
+	}
+
+	/** Defines the constants identifying how a video frame is split between the eyes. */
+	public static class StereoLayout
+	{
+		public static final int MONO = 0;
+		public static final int TOP_BOTTOM = 1;
+		public static final int LEFT_RIGHT = 2;
+	}
+}
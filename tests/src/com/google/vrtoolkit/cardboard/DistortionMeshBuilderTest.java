@@ -0,0 +1,131 @@
+/*
+ * Copyright 2014 Google Inc. All Rights Reserved.
+
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.vrtoolkit.cardboard;
+
+import android.test.AndroidTestCase;
+import android.view.WindowManager;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Checks that the parallel and mirrored fixed grid builds are bit-identical to the serial build.
+ */
+public class DistortionMeshBuilderTest extends AndroidTestCase
+{
+	private static final float ASYMMETRIC_OFFSET_M = 0.001F;
+	private ExecutorService mExecutor;
+
+	protected void setUp() throws Exception
+	{
+		super.setUp();
+		mExecutor = Executors.newFixedThreadPool(4);
+	}
+
+	protected void tearDown() throws Exception
+	{
+		mExecutor.shutdown();
+		super.tearDown();
+	}
+
+	public void testDefaultParams()
+	{
+		HeadMountedDisplay hmd = createHmd(0.06F, 0.035F, null);
+		RenderPlan plan = RenderPlan.createLayout(hmd, new RenderPlan.Options());
+		DistortionMeshBuilder left = plan.createMeshBuilder(hmd, EyeParams.Eye.LEFT);
+		DistortionMeshBuilder right = plan.createMeshBuilder(hmd, EyeParams.Eye.RIGHT);
+
+		assertTrue(right.isMirrorOf(left));
+		checkGrid(left, right, RenderPlan.ROWS, RenderPlan.COLS);
+	}
+
+	public void testCustomParams()
+	{
+		HeadMountedDisplay hmd = createHmd(0.064F, 0.032F, new float[] { 0.3F, 0.1F });
+		RenderPlan plan = RenderPlan.createLayout(hmd, new RenderPlan.Options());
+
+		checkGrid(plan.createMeshBuilder(hmd, EyeParams.Eye.LEFT), plan.createMeshBuilder(hmd, EyeParams.Eye.RIGHT), RenderPlan.ROWS, RenderPlan.COLS);
+	}
+
+	public void testRegionLayout()
+	{
+		HeadMountedDisplay hmd = createHmd(0.06F, 0.035F, null);
+		RenderPlan.Options options = new RenderPlan.Options();
+		options.centerFraction = 0.5F;
+		options.peripheryScale = 0.5F;
+		RenderPlan plan = RenderPlan.createLayout(hmd, options);
+
+		checkGrid(plan.createMeshBuilder(hmd, EyeParams.Eye.LEFT), plan.createMeshBuilder(hmd, EyeParams.Eye.RIGHT), RenderPlan.REGION_GRID_SIZE, RenderPlan.REGION_GRID_SIZE);
+	}
+
+	public void testAsymmetricEyes()
+	{
+		// Device parameters always place the lenses symmetrically, so the right eye is offset by hand.
+		HeadMountedDisplay hmd = createHmd(0.06F, 0.035F, null);
+		RenderPlan plan = RenderPlan.createLayout(hmd, new RenderPlan.Options());
+		ScreenParams screen = hmd.getScreen();
+		CardboardDeviceParams cdp = hmd.getCardboard();
+		float xEyeOffsetMScreen = screen.getWidthMeters() / 2.0F + cdp.getInterpupillaryDistance() / 2.0F + ASYMMETRIC_OFFSET_M;
+		float yEyeOffsetMScreen = cdp.getVerticalDistanceToLensCenter() - screen.getBorderSizeMeters();
+
+		DistortionMeshBuilder left = plan.createMeshBuilder(hmd, EyeParams.Eye.LEFT);
+		DistortionMeshBuilder right = new DistortionMeshBuilder(hmd, plan.rightEyeViewport, plan.textureWidthM, plan.textureHeightM, xEyeOffsetMScreen, yEyeOffsetMScreen);
+
+		assertFalse(right.isMirrorOf(left));
+		checkGrid(left, right, RenderPlan.ROWS, RenderPlan.COLS);
+	}
+
+	private void checkGrid(DistortionMeshBuilder left, DistortionMeshBuilder right, int rows, int cols)
+	{
+		DistortionMeshBuilder.Mesh leftSerial = left.buildGrid(rows, cols);
+		DistortionMeshBuilder.Mesh rightSerial = right.buildGrid(rows, cols);
+
+		float[] leftRadii = new float[2 * rows * cols];
+		assertMeshEquals(leftSerial, left.buildGrid(rows, cols, leftRadii, null, mExecutor));
+		assertMeshEquals(rightSerial, right.buildGrid(rows, cols, null, null, mExecutor));
+		assertMeshEquals(rightSerial, right.buildGrid(rows, cols, null, leftRadii, null));
+		assertMeshEquals(rightSerial, right.buildGrid(rows, cols, null, leftRadii, mExecutor));
+	}
+
+	private static void assertMeshEquals(DistortionMeshBuilder.Mesh expected, DistortionMeshBuilder.Mesh actual)
+	{
+		assertEquals(expected.vertexCount, actual.vertexCount);
+		assertEquals(expected.mode, actual.mode);
+		assertTrue(Arrays.equals(expected.indexData, actual.indexData));
+		for (int i = 0; i < expected.vertexData.length; i++) {
+			assertEquals("Vertex component " + i, Float.floatToRawIntBits(expected.vertexData[i]), Float.floatToRawIntBits(actual.vertexData[i]));
+		}
+	}
+
+	private HeadMountedDisplay createHmd(float interpupillaryDistance, float verticalDistanceToLensCenter, float[] coefficients)
+	{
+		WindowManager windowManager = (WindowManager)getContext().getSystemService("window");
+		HeadMountedDisplay hmd = new HeadMountedDisplay(windowManager.getDefaultDisplay());
+		ScreenParams screen = new ScreenParams(hmd.getScreen());
+		screen.setWidth(1920);
+		screen.setHeight(1080);
+		hmd.setScreen(screen);
+
+		CardboardDeviceParams cdp = new CardboardDeviceParams();
+		cdp.setInterpupillaryDistance(interpupillaryDistance);
+		cdp.setVerticalDistanceToLensCenter(verticalDistanceToLensCenter);
+		if (coefficients != null) {
+			cdp.getDistortion().setCoefficients(coefficients);
+		}
+		hmd.setCardboard(cdp);
+		return hmd;
+	}
+}